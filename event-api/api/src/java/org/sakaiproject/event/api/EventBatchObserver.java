@@ -0,0 +1,49 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ * 
+ * Licensed under the Educational Community License, Version 1.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.opensource.org/licenses/ecl1.php
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+
+package org.sakaiproject.event.api;
+
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * <p>
+ * EventBatchObserver is an event Observer that can take a batch of events in one call.
+ * </p>
+ * <p>
+ * When events are posted as a batch, a batch observer is sent the whole batch with updateBatch(); other observers are sent each event in turn with
+ * update(). Single events are still sent with update().
+ * </p>
+ */
+public interface EventBatchObserver extends Observer
+{
+	/**
+	 * Accept notification of a batch of new events.
+	 * 
+	 * @param o
+	 *        The observable object.
+	 * @param events
+	 *        The List (Event) of new events, in the order they were posted.
+	 */
+	void updateBatch(Observable o, List<Event> events);
+}
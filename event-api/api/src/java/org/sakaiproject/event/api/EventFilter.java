@@ -0,0 +1,149 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.api;
+
+/**
+ * <p>
+ * EventFilter selects events by function, resource and modify flag. An event is accepted if it passes every criterion that is set.
+ * </p>
+ * <p>
+ * EventFilters are immutable, so one may be shared between threads.
+ * </p>
+ */
+public class EventFilter
+{
+	/** Accept only events whose function starts with one of these, or any function if null. */
+	protected String[] m_functionPrefixes = null;
+
+	/** Accept only events whose resource starts with this, or any resource if null. */
+	protected String m_resourcePrefix = null;
+
+	/** Accept only modify events, if true. */
+	protected boolean m_modifyOnly = false;
+
+	/**
+	 * Construct.
+	 *
+	 * @param functionPrefixes
+	 *        Accept only events whose function starts with one of these, or any function if null.
+	 * @param resourcePrefix
+	 *        Accept only events whose resource starts with this, or any resource if null.
+	 * @param modifyOnly
+	 *        If true, accept only events that modified their resource.
+	 */
+	public EventFilter(String[] functionPrefixes, String resourcePrefix, boolean modifyOnly)
+	{
+		if (functionPrefixes != null)
+		{
+			m_functionPrefixes = new String[functionPrefixes.length];
+			System.arraycopy(functionPrefixes, 0, m_functionPrefixes, 0, functionPrefixes.length);
+		}
+		m_resourcePrefix = resourcePrefix;
+		m_modifyOnly = modifyOnly;
+	}
+
+	/**
+	 * Access the function prefixes.
+	 *
+	 * @return A copy of the function prefixes, or null if any function is accepted.
+	 */
+	public String[] getFunctionPrefixes()
+	{
+		if (m_functionPrefixes == null) return null;
+
+		String[] rv = new String[m_functionPrefixes.length];
+		System.arraycopy(m_functionPrefixes, 0, rv, 0, m_functionPrefixes.length);
+		return rv;
+	}
+
+	/**
+	 * Access the resource prefix.
+	 *
+	 * @return The resource prefix, or null if any resource is accepted.
+	 */
+	public String getResourcePrefix()
+	{
+		return m_resourcePrefix;
+	}
+
+	/**
+	 * Is this filter for modify events only?
+	 *
+	 * @return true if only modify events are accepted, false if not.
+	 */
+	public boolean getModifyOnly()
+	{
+		return m_modifyOnly;
+	}
+
+	/**
+	 * Check an event against the filter.
+	 *
+	 * @param event
+	 *        The event.
+	 * @return true if the event passes, false if not.
+	 */
+	public boolean accept(Event event)
+	{
+		if (m_modifyOnly && !event.getModify()) return false;
+
+		if ((m_resourcePrefix != null) && ((event.getResource() == null) || !event.getResource().startsWith(m_resourcePrefix))) return false;
+
+		if (m_functionPrefixes != null)
+		{
+			String function = event.getEvent();
+			if (function == null) return false;
+
+			for (int i = 0; i < m_functionPrefixes.length; i++)
+			{
+				if (function.startsWith(m_functionPrefixes[i])) return true;
+			}
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String toString()
+	{
+		StringBuilder buf = new StringBuilder("EventFilter functions: ");
+		if (m_functionPrefixes == null)
+		{
+			buf.append("*");
+		}
+		else
+		{
+			for (int i = 0; i < m_functionPrefixes.length; i++)
+			{
+				if (i > 0) buf.append(",");
+				buf.append(m_functionPrefixes[i]).append("*");
+			}
+		}
+		buf.append(" resource: ").append((m_resourcePrefix == null) ? "" : m_resourcePrefix).append("*");
+		if (m_modifyOnly) buf.append(" modify only");
+
+		return buf.toString();
+	}
+}
@@ -21,8 +21,13 @@
 
 package org.sakaiproject.event.api;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Observer;
 
+import org.sakaiproject.user.api.User;
+
 /**
  * <p>
  * The event tracking service provides activity event tracking and monitoring.<br />
@@ -82,6 +87,25 @@ public interface EventTrackingService
 	 */
 	void post(Event event, UsageSession session);
 
+	/**
+	 * Post a batch of events. Observers are notified of the batch together; those that are EventBatchObservers in a single call.
+	 * 
+	 * @param events
+	 *        The Collection (Event) of event objects (created with newEvent()). Note: the current session user will be used as the user responsible for
+	 *        the events.
+	 */
+	void post(Collection<Event> events);
+
+	/**
+	 * Post a batch of events on behalf of a user. Observers are notified of the batch together; those that are EventBatchObservers in a single call.
+	 * 
+	 * @param events
+	 *        The Collection (Event) of event objects (created with newEvent()).
+	 * @param user
+	 *        The User object of the user responsible for the events.
+	 */
+	void post(Collection<Event> events, User user);
+
 	/**
 	 * Add an observer of events. The observer will be notified whenever there are new events.
 	 * 
@@ -113,6 +137,121 @@ public interface EventTrackingService
 	 *        The class observing to delete.
 	 */
 	void deleteObserver(Observer observer);
+
+	/**
+	 * Catch an observer up on the events after a sequence number, then keep it notified of new events, as addObserver() does.<br />
+	 * The stored events (including any archived, if the archive is configured to be read back) are sent first, in sequence order, a page at a time, on
+	 * the calling thread; this returns once the observer has caught up and has been handed over to live delivery. Events from other servers are sent
+	 * once; events posted on this server while the replay runs may be sent twice. Use deleteObserver() to stop.
+	 * 
+	 * @param fromSeq
+	 *        Send the events with sequence numbers after this (0 for all).
+	 * @param filter
+	 *        If not null, send only the events it accepts.
+	 * @param observer
+	 *        The observer.
+	 */
+	void replay(long fromSeq, EventFilter filter, Observer observer);
+
+	/**
+	 * Find the recent events that match all the criteria given, from those kept in memory by this server - those posted here and (if configured to
+	 * track the whole cluster) those read from the other servers of the cluster. The database is not read, so only the most recent few thousand events
+	 * (as configured) are considered.
+	 * 
+	 * @param since
+	 *        Only events from this time on (ms since the epoch).
+	 * @param resourcePrefix
+	 *        If not null, only events whose resource reference starts with this.
+	 * @param userId
+	 *        If not null, only events of this user. Events of a usage session are only found by user if they were posted here, from that session.
+	 * @param sessionId
+	 *        If not null, only events of this usage session.
+	 * @param function
+	 *        If not null, only events with this function.
+	 * @param max
+	 *        The most events to return.
+	 * @return The List (Event) of the matching events, newest first (may be empty).
+	 */
+	List<Event> getRecentEvents(long since, String resourcePrefix, String userId, String sessionId, String function, int max);
+
+	/**
+	 * Access the per minute counts of the events seen by this server (those posted here and, if configured to track the whole cluster, those read
+	 * from the other servers of the cluster), by event function.
+	 * 
+	 * @param minutes
+	 *        The number of minutes, including the current one (at most the number kept, as configured).
+	 * @return A Map of event function to its counts in each minute, oldest first, ending with the current (partial) minute.
+	 */
+	Map<String, long[]> getEventCountsByFunction(int minutes);
+
+	/**
+	 * Access the per minute counts of the events seen by this server, by the context (site id) of the event resource.
+	 * 
+	 * @param minutes
+	 *        The number of minutes, including the current one (at most the number kept, as configured).
+	 * @return A Map of context to its counts in each minute, oldest first, ending with the current (partial) minute.
+	 */
+	Map<String, long[]> getEventCountsByContext(int minutes);
+
+	/**
+	 * Find the most accessed resources, as seen by this server, estimated from streaming sketches kept over fixed time windows (as configured).
+	 * 
+	 * @param since
+	 *        From this time (ms since the epoch) on, to the start of the window it falls in.
+	 * @param max
+	 *        The most resources to return.
+	 * @return A Map of resource reference to its estimated count of events, largest first.
+	 */
+	Map<String, Long> getTopResources(long since, int max);
+
+	/**
+	 * Estimate the number of distinct users of a context (site), as seen by this server, from streaming sketches kept over fixed time windows (as
+	 * configured). The user of a session event posted on another server is found from its usage session; events whose user cannot be found are not
+	 * counted.
+	 * 
+	 * @param context
+	 *        The context (site id).
+	 * @param since
+	 *        From this time (ms since the epoch) on, to the start of the window it falls in.
+	 * @return The estimated count of distinct users.
+	 */
+	long getDistinctUserCount(String context, long since);
+
+	/**
+	 * Read a page of the stored events of a usage session, oldest first. Each event is sent to the observer's update(), with a null Observable, as it
+	 * is read. Only the events still in the event table are read, not those archived.
+	 * 
+	 * @param sessionId
+	 *        The usage session id.
+	 * @param afterSeq
+	 *        Read the events after this sequence number: 0 for the first page, else the value returned for the page before.
+	 * @param max
+	 *        The most events to read.
+	 * @param filter
+	 *        If not null, read only the events it accepts.
+	 * @param observer
+	 *        The observer to send the events to.
+	 * @return The sequence number to read the next page after, or -1 if there are no more events.
+	 */
+	long getSessionEvents(String sessionId, long afterSeq, int max, EventFilter filter, Observer observer);
+
+	/**
+	 * Read a page of the stored events of the usage sessions of a user, oldest first, as getSessionEvents() does, along with the events posted for
+	 * the user outside a usage session (by jobs and such, on behalf of the user).
+	 * 
+	 * @param userId
+	 *        The user id.
+	 * @param afterSeq
+	 *        Read the events after this sequence number: 0 for the first page, else the value returned for the page before.
+	 * @param max
+	 *        The most events to read.
+	 * @param filter
+	 *        If not null, read only the events it accepts.
+	 * @param observer
+	 *        The observer to send the events to.
+	 * @return The sequence number to read the next page after, or -1 if there are no more events.
+	 */
+	long getUserEvents(String userId, long afterSeq, int max, EventFilter filter, Observer observer);
 	
 	/**
 	 * Cleans up old events.
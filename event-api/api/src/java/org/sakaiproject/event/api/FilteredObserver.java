@@ -0,0 +1,45 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.api;
+
+import java.util.Observer;
+
+/**
+ * <p>
+ * FilteredObserver is an event Observer that declares which events it is interested in. When every observer of the events from other servers declares
+ * its interest, the event service reads only the events some observer is interested in from the other servers.
+ * </p>
+ * <p>
+ * The declared interest is a hint, not a guarantee: an observer may still be sent events outside its filter (those another observer is interested in,
+ * and those posted on this server), so it must check the events it is sent. The filter is read when the observer is added; to change it, add the
+ * observer again.
+ * </p>
+ */
+public interface FilteredObserver extends Observer
+{
+	/**
+	 * Access the filter of the events this observer is interested in.
+	 *
+	 * @return The filter, or null if it is interested in all events.
+	 */
+	EventFilter getEventFilter();
+}
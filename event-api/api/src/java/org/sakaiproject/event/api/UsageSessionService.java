@@ -23,6 +23,8 @@ package org.sakaiproject.event.api;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Observer;
+import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -147,16 +149,53 @@ public interface UsageSessionService
 	/**
 	 * Access a list of all open sessions.
 	 * 
-	 * @return a List (UsageSession) of all open sessions, ordered by server, then by start (asc)
+	 * @return a List (UsageSession) of all open sessions, ordered by server, then by start (asc); it may be shared with other callers, so must not be
+	 *         changed.
 	 */
 	List getOpenSessions();
 
 	/**
 	 * Access a list of all open sessions, grouped by server.
 	 * 
-	 * @return a Map (server id -> List (UsageSession)) of all open sessions, ordered by server, then by start (asc)
+	 * @return a Map (server id -> List (UsageSession)) of all open sessions, ordered by server, then by start (asc); it may be shared with other
+	 *         callers, so must not be changed.
 	 */
 	Map getOpenSessionsByServer();
+
+	/**
+	 * Access a page of the open sessions. Walking the open sessions a page at a time, each page starting after the last session of the one before,
+	 * holds only a page in memory however many sessions are open.
+	 * 
+	 * @param after
+	 *        The last session of the previous page, or null for the first page.
+	 * @param max
+	 *        The most sessions to return.
+	 * @return a List (UsageSession) of up to max of the open sessions that follow after, ordered by server, then by start (asc), then by id; fewer
+	 *         than max if there are no more.
+	 */
+	List getOpenSessions(UsageSession after, int max);
+
+	/**
+	 * Read all the open sessions, one at a time, without holding them all in memory.
+	 * 
+	 * @param observer
+	 *        The observer, sent update(null, session) with each open session (UsageSession), ordered by server, then by start (asc), then by id.
+	 */
+	void readOpenSessions(Observer observer);
+
+	/**
+	 * Count the open sessions on each server, without reading the sessions.
+	 * 
+	 * @return a Map (server id -> Integer) of the number of open sessions on each server that has any, ordered by server.
+	 */
+	Map<String, Integer> getOpenSessionCountsByServer();
+
+	/**
+	 * Count the open sessions on all servers, without reading the sessions.
+	 * 
+	 * @return the number of open sessions.
+	 */
+	int getOpenSessionCount();
 	
 	/**
 	 * Start a usage session and do any other book-keeping needed to login a user who has already been authenticated.
@@ -189,4 +228,12 @@ public interface UsageSessionService
 	 * Remove old inactive sessions.
 	 */
 	void cleanupSessions();
+
+	/**
+	 * Remove old inactive sessions, a chunk at a time, letting the caller pace the chunks.
+	 * 
+	 * @param pause
+	 *        Called between chunks, in place of the configured pause: it may wait as long as it likes, and returns false to stop the cleanup there.
+	 */
+	void cleanupSessions(Callable<Boolean> pause);
 }
@@ -119,4 +119,87 @@ public class EventTrackingService
 
 		service.post(param0);
 	}
+
+	public static void post(java.util.Collection<org.sakaiproject.event.api.Event> param0)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return;
+
+		service.post(param0);
+	}
+
+	public static void post(java.util.Collection<org.sakaiproject.event.api.Event> param0, org.sakaiproject.user.api.User param1)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return;
+
+		service.post(param0, param1);
+	}
+
+	public static void replay(long param0, org.sakaiproject.event.api.EventFilter param1, java.util.Observer param2)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return;
+
+		service.replay(param0, param1, param2);
+	}
+
+	public static java.util.List<org.sakaiproject.event.api.Event> getRecentEvents(long param0, java.lang.String param1, java.lang.String param2,
+			java.lang.String param3, java.lang.String param4, int param5)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return null;
+
+		return service.getRecentEvents(param0, param1, param2, param3, param4, param5);
+	}
+
+	public static java.util.Map<java.lang.String, long[]> getEventCountsByFunction(int param0)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return null;
+
+		return service.getEventCountsByFunction(param0);
+	}
+
+	public static java.util.Map<java.lang.String, long[]> getEventCountsByContext(int param0)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return null;
+
+		return service.getEventCountsByContext(param0);
+	}
+
+	public static java.util.Map<java.lang.String, java.lang.Long> getTopResources(long param0, int param1)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return null;
+
+		return service.getTopResources(param0, param1);
+	}
+
+	public static long getDistinctUserCount(java.lang.String param0, long param1)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return 0;
+
+		return service.getDistinctUserCount(param0, param1);
+	}
+
+	public static long getSessionEvents(java.lang.String param0, long param1, int param2, org.sakaiproject.event.api.EventFilter param3,
+			java.util.Observer param4)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return -1;
+
+		return service.getSessionEvents(param0, param1, param2, param3, param4);
+	}
+
+	public static long getUserEvents(java.lang.String param0, long param1, int param2, org.sakaiproject.event.api.EventFilter param3,
+			java.util.Observer param4)
+	{
+		org.sakaiproject.event.api.EventTrackingService service = getInstance();
+		if (service == null) return -1;
+
+		return service.getUserEvents(param0, param1, param2, param3, param4);
+	}
 }
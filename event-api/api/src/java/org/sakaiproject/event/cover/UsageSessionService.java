@@ -158,6 +158,38 @@ public class UsageSessionService
 		return service.getOpenSessionsByServer();
 	}
 
+	public static java.util.List getOpenSessions(org.sakaiproject.event.api.UsageSession param0, int param1)
+	{
+		org.sakaiproject.event.api.UsageSessionService service = getInstance();
+		if (service == null) return null;
+
+		return service.getOpenSessions(param0, param1);
+	}
+
+	public static void readOpenSessions(java.util.Observer param0)
+	{
+		org.sakaiproject.event.api.UsageSessionService service = getInstance();
+		if (service == null) return;
+
+		service.readOpenSessions(param0);
+	}
+
+	public static java.util.Map<String, Integer> getOpenSessionCountsByServer()
+	{
+		org.sakaiproject.event.api.UsageSessionService service = getInstance();
+		if (service == null) return null;
+
+		return service.getOpenSessionCountsByServer();
+	}
+
+	public static int getOpenSessionCount()
+	{
+		org.sakaiproject.event.api.UsageSessionService service = getInstance();
+		if (service == null) return 0;
+
+		return service.getOpenSessionCount();
+	}
+
 	public static boolean login(org.sakaiproject.user.api.Authentication param0, javax.servlet.http.HttpServletRequest param1)
 	{
 		org.sakaiproject.event.api.UsageSessionService service = getInstance();
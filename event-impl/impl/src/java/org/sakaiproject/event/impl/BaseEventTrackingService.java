@@ -22,17 +22,32 @@
 package org.sakaiproject.event.impl;
 
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventBatchObserver;
+import org.sakaiproject.event.api.EventFilter;
+import org.sakaiproject.event.api.FilteredObserver;
 import org.sakaiproject.event.api.EventTrackingService;
 import org.sakaiproject.event.api.NotificationService;
 import org.sakaiproject.event.api.UsageSession;
 import org.sakaiproject.event.api.UsageSessionService;
-import org.sakaiproject.time.api.Time;
 import org.sakaiproject.user.api.User;
 import org.sakaiproject.tool.api.SessionManager;
 
@@ -55,19 +70,325 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 	/** An observable object helper for see-only-local-events observers. */
 	protected MyObservable m_localObservableHelper = new MyObservable();
 
+	/** Timings of observer notification, or null if we are not timing. */
+	protected ObserverTimings m_observerTimings = null;
+
+	/** The name under which the observer timings are registered with JMX. */
+	protected static final String OBSERVER_TIMINGS_MBEAN = "org.sakaiproject.event:type=ObserverTimings";
+
+	/** The most event function strings we will share between events. */
+	protected static final int MAX_SHARED_FUNCTIONS = 4096;
+
+	/** The event function strings shared between events, keyed by themselves. */
+	protected ConcurrentHashMap<String, String> m_functions = new ConcurrentHashMap<String, String>();
+
+	/**********************************************************************************************************************************************************************************************************************************************************
+	 * Configuration
+	 *********************************************************************************************************************************************************************************************************************************************************/
+
+	/** If true, time each observer's handling of each event. */
+	protected boolean m_timeObservers = true;
+
+	/**
+	 * Configuration: set the observer timing flag.
+	 * 
+	 * @param value
+	 *        The observer timing value.
+	 */
+	public void setTimeObservers(String value)
+	{
+		try
+		{
+			m_timeObservers = new Boolean(value).booleanValue();
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** The time (ms) an observer may take with an event before we warn that it is slow. */
+	protected long m_slowObserverThreshold = 1000L;
+
+	/**
+	 * Configuration: set the time (ms) an observer may take with an event before we warn that it is slow.
+	 * 
+	 * @param value
+	 *        The slow observer threshold, in ms.
+	 */
+	public void setSlowObserverThreshold(String value)
+	{
+		try
+		{
+			m_slowObserverThreshold = Long.parseLong(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** How many of the most recent events to keep in memory, 0 for none. */
+	protected int m_recentEventsSize = 5000;
+
+	/**
+	 * Configuration: set how many of the most recent events to keep in memory for getRecentEvents(), 0 to keep none.
+	 * 
+	 * @param value
+	 *        The number of events.
+	 */
+	public void setRecentEventsSize(String value)
+	{
+		try
+		{
+			m_recentEventsSize = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** The most recent events, or null if we are not keeping them. */
+	protected RecentEvents m_recentEvents = null;
+
+	/** If true, the recent events, event counts and sketches take in the events from other servers too. */
+	protected boolean m_trackRemoteEvents = false;
+
+	/**
+	 * Configuration: set whether the recent events, event counts and sketches take in the events read from the other servers, or only those posted
+	 * here (the default). They want every event, so while they take in the other servers' events, those are all read from the db, whatever the
+	 * observers' declared interest. By default each server's trackers see only its own events, and the cluster poll reads just the events its
+	 * observers are interested in; set this true for a cluster-wide view in each server's trackers, at the cost of reading every event on every
+	 * server.
+	 * 
+	 * @param value
+	 *        "true" to track the other servers' events, "false" to track only this server's.
+	 */
+	public void setTrackRemoteEvents(String value)
+	{
+		try
+		{
+			m_trackRemoteEvents = new Boolean(value).booleanValue();
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** How many minutes of event counts to keep, 0 for none. */
+	protected int m_eventCountMinutes = 60;
+
+	/**
+	 * Configuration: set how many minutes of per minute event counts to keep, 0 to not count events.
+	 * 
+	 * @param value
+	 *        The number of minutes.
+	 */
+	public void setEventCountMinutes(String value)
+	{
+		try
+		{
+			m_eventCountMinutes = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** The per minute event counts, or null if we are not counting. */
+	protected EventCounters m_eventCounters = null;
+
+	/** The JMX name of the event counts. */
+	protected static final String EVENT_COUNTERS_MBEAN = "org.sakaiproject.event:type=EventCounters";
+
+	/** The length (minutes) of each event sketch window, 0 (the default) for no sketches. */
+	protected int m_sketchWindowMinutes = 0;
+
+	/**
+	 * Configuration: set the length, in minutes, of the windows the top resource and distinct user sketches are kept for, 0 to keep no sketches. The
+	 * sketches take up to about 1.1MB a window (with the default top resource capacity), for the current window and each one kept.
+	 * 
+	 * @param value
+	 *        The window length, in minutes.
+	 */
+	public void setSketchWindowMinutes(String value)
+	{
+		try
+		{
+			m_sketchWindowMinutes = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** How many past sketch windows to keep. */
+	protected int m_sketchWindows = 24;
+
+	/**
+	 * Configuration: set how many past windows of sketches to keep.
+	 * 
+	 * @param value
+	 *        The number of windows.
+	 */
+	public void setSketchWindows(String value)
+	{
+		try
+		{
+			m_sketchWindows = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** How many resources each window's top resources sketch counts. */
+	protected int m_topResourceCapacity = 1000;
+
+	/**
+	 * Configuration: set how many resources each window's top resources sketch counts; the more, the more accurate.
+	 * 
+	 * @param value
+	 *        The number of resources.
+	 */
+	public void setTopResourceCapacity(String value)
+	{
+		try
+		{
+			m_topResourceCapacity = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** The top resource and distinct user sketches, or null if we are not keeping them. */
+	protected EventSketches m_eventSketches = null;
+
+	/** The most live events held for a replay observer while its replay runs, before the replay goes back to storage for them. */
+	protected static final int MAX_REPLAY_BUFFER = 10000;
+
+	/** Counts the changes to the observers of the events from other servers. */
+	protected AtomicInteger m_observerChanges = new AtomicInteger();
+
+	/** The live observer registered for each replay consumer. */
+	protected ConcurrentHashMap<Observer, ReplayObserver> m_replayObservers = new ConcurrentHashMap<Observer, ReplayObserver>();
+
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * Observable implementation
 	 *********************************************************************************************************************************************************************************************************************************************************/
 
 	/**
-	 * Extend Observable to "public"ize setChanges, so we can set it. Why a helper object? Cause the service (which is observable) already 'extends' TurbineBaseService, and cannot also 'extend' Observable.
+	 * Extend Observable to "public"ize setChanges, so we can set it. Why a helper object? Cause the service (which is observable) already 'extends' TurbineBaseService, and cannot also 'extend' Observable.<br />
+	 * We keep our own copy-on-write list of observers, and notify regardless of the changed flag, so that more than one thread can notify through the
+	 * same helper at once without losing notifications (Observable clears the shared changed flag on each notify).
 	 */
 	protected class MyObservable extends Observable
 	{
+		/** The observers, in the order they were added. */
+		protected CopyOnWriteArrayList m_observers = new CopyOnWriteArrayList();
+
 		public void setChanged()
 		{
 			super.setChanged();
 		}
+
+		public void addObserver(Observer o)
+		{
+			if (o == null) throw new NullPointerException();
+			if (m_observers.addIfAbsent(o)) m_observerChanges.incrementAndGet();
+		}
+
+		public void deleteObserver(Observer o)
+		{
+			if (m_observers.remove(o)) m_observerChanges.incrementAndGet();
+		}
+
+		public void deleteObservers()
+		{
+			m_observers.clear();
+			m_observerChanges.incrementAndGet();
+		}
+
+		public int countObservers()
+		{
+			return m_observers.size();
+		}
+
+		public void notifyObservers()
+		{
+			notifyObservers(null);
+		}
+
+		public void notifyObservers(Object arg)
+		{
+			clearChanged();
+
+			// as Observable does, notify the most recently added observers first
+			Object[] observers = m_observers.toArray();
+			ObserverTimings timings = m_observerTimings;
+			for (int i = observers.length - 1; i >= 0; i--)
+			{
+				update((Observer) observers[i], arg, timings);
+			}
+		}
+
+		/**
+		 * Notify the observers of a batch of events: batch observers get the whole batch at once, others get each event in turn.
+		 * 
+		 * @param events
+		 *        The List (Event) of events.
+		 */
+		public void notifyObserversBatch(List<Event> events)
+		{
+			clearChanged();
+
+			Object[] observers = m_observers.toArray();
+			ObserverTimings timings = m_observerTimings;
+			for (int i = observers.length - 1; i >= 0; i--)
+			{
+				Observer observer = (Observer) observers[i];
+				if (observer instanceof EventBatchObserver)
+				{
+					long start = (timings == null) ? 0 : System.nanoTime();
+					try
+					{
+						((EventBatchObserver) observer).updateBatch(this, events);
+					}
+					finally
+					{
+						if (timings != null) timings.record(observer, System.nanoTime() - start, events.size() + " events");
+					}
+				}
+				else
+				{
+					for (Iterator<Event> e = events.iterator(); e.hasNext();)
+					{
+						update(observer, e.next(), timings);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Notify one observer, timing it if we are timing observers.
+		 */
+		protected void update(Observer observer, Object arg, ObserverTimings timings)
+		{
+			if (timings == null)
+			{
+				observer.update(this, arg);
+				return;
+			}
+
+			long start = System.nanoTime();
+			try
+			{
+				observer.update(this, arg);
+			}
+			finally
+			{
+				timings.record(observer, System.nanoTime() - start, arg);
+			}
+		}
 	}
 
 	/**********************************************************************************************************************************************************************************************************************************************************
@@ -82,6 +403,20 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 	 */
 	protected abstract void postEvent(Event event);
 
+	/**
+	 * Cause this batch of new events to get to wherever they have to go for persistence, etc. Unless overridden, each event is posted on its own.
+	 * 
+	 * @param events
+	 *        The List (Event) of new events to post.
+	 */
+	protected void postEvents(List<Event> events)
+	{
+		for (Iterator<Event> i = events.iterator(); i.hasNext();)
+		{
+			postEvent(i.next());
+		}
+	}
+
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * Observer notification
 	 *********************************************************************************************************************************************************************************************************************************************************/
@@ -100,6 +435,8 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 
 		if (M_log.isDebugEnabled()) M_log.debug(this + " Notification - Event: " + event);
 
+		track(event, local);
+
 		// first, notify all priority observers
 		m_priorityObservableHelper.setChanged();
 		m_priorityObservableHelper.notifyObservers(event);
@@ -116,10 +453,133 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 		}
 	}
 
+	/**
+	 * Find the shared copy of an event function string, so that the many events with the same function do not each hold their own copy.
+	 * 
+	 * @param function
+	 *        The event function.
+	 * @return The shared copy of the function string.
+	 */
+	protected String sharedFunction(String function)
+	{
+		String rv = m_functions.get(function);
+		if (rv != null) return rv;
+
+		// there are only a few hundred functions, but don't let a misbehaving client fill memory
+		if (m_functions.size() >= MAX_SHARED_FUNCTIONS) return function;
+
+		rv = m_functions.putIfAbsent(function, function);
+		return (rv == null) ? function : rv;
+	}
+
+	/**
+	 * Send notification about a batch of new events to observers.
+	 * 
+	 * @param events
+	 *        The List (Event) of events to send notification about.
+	 * @param local
+	 *        True if the events originated on this server, false if they came from another server.
+	 */
+	protected void notifyObservers(List<Event> events, boolean local)
+	{
+		if (M_log.isDebugEnabled()) M_log.debug(this + " Notification - Events: " + events);
+
+		for (Iterator<Event> i = events.iterator(); i.hasNext();)
+		{
+			track(i.next(), local);
+		}
+
+		// first, notify all priority observers
+		m_priorityObservableHelper.notifyObserversBatch(events);
+
+		// notify the normal observers
+		m_observableHelper.notifyObserversBatch(events);
+
+		// if the events are local, notify local observers
+		if (local)
+		{
+			m_localObservableHelper.notifyObserversBatch(events);
+		}
+	}
+
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * Dependencies
 	 *********************************************************************************************************************************************************************************************************************************************************/
 
+	/**
+	 * Find the events from other servers that our observers are interested in.
+	 * 
+	 * @return The filters of the events some observer is interested in (an empty List if none are), or null if all events are of interest.
+	 */
+	protected List<EventFilter> remoteInterest()
+	{
+		// the recent events and the sketches keep them all, unless they track only this server's
+		if (m_trackRemoteEvents && ((m_recentEvents != null) || (m_eventSketches != null))) return null;
+
+		Map<String, EventFilter> rv = new LinkedHashMap<String, EventFilter>();
+		MyObservable[] helpers = new MyObservable[] {m_priorityObservableHelper, m_observableHelper};
+		for (int h = 0; h < helpers.length; h++)
+		{
+			for (Iterator i = helpers[h].m_observers.iterator(); i.hasNext();)
+			{
+				Object observer = i.next();
+				if (!(observer instanceof FilteredObserver)) return null;
+
+				EventFilter filter = ((FilteredObserver) observer).getEventFilter();
+				if (filter == null) return null;
+
+				rv.put(filter.toString(), filter);
+			}
+		}
+
+		return new ArrayList<EventFilter>(rv.values());
+	}
+
+	/**
+	 * Keep an event with the recent events, and add it to the sketches.
+	 * 
+	 * @param event
+	 *        The event.
+	 * @param local
+	 *        true if the event was posted on this server, false if it was read from another.
+	 */
+	protected void track(Event event, boolean local)
+	{
+		if (!local && !m_trackRemoteEvents) return;
+
+		RecentEvents recent = m_recentEvents;
+		EventSketches sketches = m_eventSketches;
+		if ((recent == null) && (sketches == null)) return;
+
+		// the user of a session event is known (from memory) only if it is from the current session
+		String userId = event.getUserId();
+		if ((userId == null) && local && (event.getSessionId() != null) && (usageSessionService() != null)
+				&& event.getSessionId().equals(usageSessionService().getSessionId()))
+		{
+			userId = sessionManager().getCurrentSessionUserId();
+		}
+
+		// the distinct user sketches need the user: find it from the usage session (mostly from the session cache)
+		if ((userId == null) && (sketches != null) && (event.getSessionId() != null) && (usageSessionService() != null))
+		{
+			UsageSession session = usageSessionService().getSession(event.getSessionId());
+			if (session != null) userId = session.getUserId();
+		}
+
+		if (recent != null)
+		{
+			long time = ((BaseEvent) event).m_time;
+			if (time == 0) time = System.currentTimeMillis();
+
+			recent.add(event, time, userId);
+		}
+
+		if (sketches != null)
+		{
+			sketches.add(event, userId);
+		}
+	}
+
 	/**
 	 * @return the UsageSessionService collaborator.
 	 */
@@ -139,7 +599,53 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 	 */
 	public void init()
 	{
-		M_log.info(this + ".init()");
+		if (m_recentEventsSize > 0)
+		{
+			m_recentEvents = new RecentEvents(m_recentEventsSize);
+		}
+
+		if (m_sketchWindowMinutes > 0)
+		{
+			m_eventSketches = new EventSketches(m_sketchWindowMinutes * 60L * 1000L, m_sketchWindows, m_topResourceCapacity);
+		}
+
+		if (m_eventCountMinutes > 0)
+		{
+			m_eventCounters = new EventCounters(m_eventCountMinutes);
+			if (m_trackRemoteEvents)
+			{
+				m_observableHelper.addObserver(m_eventCounters);
+			}
+			else
+			{
+				m_localObservableHelper.addObserver(m_eventCounters);
+			}
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().registerMBean(m_eventCounters, new ObjectName(EVENT_COUNTERS_MBEAN));
+			}
+			catch (Exception e)
+			{
+				M_log.warn(this + ".init(): registering event counters with JMX: " + e);
+			}
+		}
+
+		if (m_timeObservers)
+		{
+			m_observerTimings = new ObserverTimings(m_slowObserverThreshold);
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().registerMBean(m_observerTimings, new ObjectName(OBSERVER_TIMINGS_MBEAN));
+			}
+			catch (Exception e)
+			{
+				M_log.warn(this + ".init(): registering observer timings with JMX: " + e);
+			}
+		}
+
+		M_log.info(this + ".init() - timeObservers: " + m_timeObservers + " slowObserverThreshold: " + m_slowObserverThreshold + " recentEventsSize: "
+				+ m_recentEventsSize + " eventCountMinutes: " + m_eventCountMinutes + " sketchWindowMinutes: " + m_sketchWindowMinutes
+				+ " sketchWindows: " + m_sketchWindows + " trackRemoteEvents: " + m_trackRemoteEvents);
 	}
 
 	/**
@@ -147,6 +653,34 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 	 */
 	public void destroy()
 	{
+		if (m_eventCounters != null)
+		{
+			m_observableHelper.deleteObserver(m_eventCounters);
+			m_localObservableHelper.deleteObserver(m_eventCounters);
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(EVENT_COUNTERS_MBEAN));
+			}
+			catch (Exception e)
+			{
+				M_log.warn(this + ".destroy(): unregistering event counters with JMX: " + e);
+			}
+			m_eventCounters = null;
+		}
+
+		if (m_observerTimings != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBSERVER_TIMINGS_MBEAN));
+			}
+			catch (Exception e)
+			{
+				M_log.warn(this + ".destroy(): unregistering observer timings with JMX: " + e);
+			}
+			m_observerTimings = null;
+		}
+
 		M_log.info(this + ".destroy()");
 	}
 
@@ -252,6 +786,71 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 		postEvent(event);
 	}
 
+	/**
+	 * Post a batch of events
+	 * 
+	 * @param events
+	 *        The Collection (Event) of event objects (created with newEvent()). Note: the current session user will be used as the user responsible for
+	 *        the events.
+	 */
+	public void post(Collection<Event> events)
+	{
+		if (events.isEmpty()) return;
+
+		// get the session id or user id, once for the batch
+		String id = usageSessionService().getSessionId();
+		boolean isSession = (id != null);
+		if (!isSession)
+		{
+			// post for the session "thread" user
+			id = sessionManager().getCurrentSessionUserId();
+			if (id == null)
+			{
+				id = "?";
+			}
+		}
+
+		List<Event> batch = new ArrayList<Event>(events);
+		for (Iterator<Event> i = batch.iterator(); i.hasNext();)
+		{
+			BaseEvent event = (BaseEvent) i.next();
+			if (isSession)
+			{
+				event.setSessionId(id);
+			}
+			else
+			{
+				event.setUserId(id);
+			}
+		}
+
+		postEvents(batch);
+	}
+
+	/**
+	 * Post a batch of events on behalf of a user.
+	 * 
+	 * @param events
+	 *        The Collection (Event) of event objects (created with newEvent()).
+	 * @param user
+	 *        The User object of the user responsible for the events.
+	 */
+	public void post(Collection<Event> events, User user)
+	{
+		if (events.isEmpty()) return;
+
+		String id = "?";
+		if (user != null) id = user.getId();
+
+		List<Event> batch = new ArrayList<Event>(events);
+		for (Iterator<Event> i = batch.iterator(); i.hasNext();)
+		{
+			((BaseEvent) i.next()).setUserId(id);
+		}
+
+		postEvents(batch);
+	}
+
 	/**
 	 * Add an observer of events. The observer will be notified whenever there are new events.
 	 * 
@@ -308,6 +907,262 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 		m_observableHelper.deleteObserver(observer);
 		m_priorityObservableHelper.deleteObserver(observer);
 		m_localObservableHelper.deleteObserver(observer);
+
+		ObserverTimings timings = m_observerTimings;
+		if (timings != null) timings.remove(observer);
+
+		// and the live observer of a replay consumer
+		ReplayObserver replay = m_replayObservers.remove(observer);
+		if (replay != null)
+		{
+			m_observableHelper.deleteObserver(replay);
+			if (timings != null) timings.remove(replay);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void replay(long fromSeq, EventFilter filter, Observer observer)
+	{
+		// replace any earlier registration of this observer
+		deleteObserver(observer);
+
+		// hold the live events from now on, while we catch up from storage
+		ReplayObserver replay = new ReplayObserver(observer, filter);
+		m_replayObservers.put(observer, replay);
+		m_observableHelper.addObserver(replay);
+
+		long lastSeq = fromSeq;
+		while (true)
+		{
+			// make sure the events posted here before we started holding are stored
+			flushEvents();
+
+			lastSeq = replayStored(lastSeq, filter, observer);
+
+			// hand over to live delivery, unless we held too many to keep and have to catch up on them from storage
+			synchronized (replay)
+			{
+				if (replay.m_overflow)
+				{
+					replay.m_overflow = false;
+					continue;
+				}
+
+				replay.goLive(lastSeq);
+				break;
+			}
+		}
+
+		if (M_log.isDebugEnabled()) M_log.debug(this + ".replay: " + observer + " live after event #: " + lastSeq);
+	}
+
+	/**
+	 * Make sure all events posted on this server so far are stored, so a replay from storage will find them.
+	 */
+	protected void flushEvents()
+	{
+		// nothing stored, nothing to flush
+	}
+
+	/**
+	 * Send a replay observer the stored events after a sequence number, in sequence order.
+	 * 
+	 * @param afterSeq
+	 *        Send events after this sequence number.
+	 * @param filter
+	 *        If not null, send only events it accepts.
+	 * @param observer
+	 *        The observer.
+	 * @return The sequence number of the last event read from storage (sent or not), or afterSeq if there were none.
+	 */
+	protected long replayStored(long afterSeq, EventFilter filter, Observer observer)
+	{
+		// no storage
+		return afterSeq;
+	}
+
+	/**
+	 * ReplayObserver is the live observer of a replay consumer. While the replay reads stored events, it holds the live events; at the hand over it
+	 * sends those not already replayed, then passes on the live events as they come.<br />
+	 * Events read from other servers are sent once, in sequence order. Events posted on this server are not yet numbered when they are notified, so
+	 * those held during the replay may be sent twice, once from storage and once live.
+	 */
+	protected class ReplayObserver implements FilteredObserver
+	{
+		/** The consumer. */
+		protected Observer m_observer = null;
+
+		/** The filter, or null for all events. */
+		protected EventFilter m_filter = null;
+
+		/** The live events held while the replay runs, or null once live. */
+		protected List<Event> m_held = new ArrayList<Event>();
+
+		/** Set if we had to drop held events. */
+		protected boolean m_overflow = false;
+
+		/** The sequence number of the last numbered event sent. */
+		protected long m_lastSeq = 0;
+
+		public ReplayObserver(Observer observer, EventFilter filter)
+		{
+			m_observer = observer;
+			m_filter = filter;
+		}
+
+		public synchronized void update(Observable o, Object arg)
+		{
+			if (!(arg instanceof Event)) return;
+			Event event = (Event) arg;
+			if ((m_filter != null) && !m_filter.accept(event)) return;
+
+			if (m_held != null)
+			{
+				// too many to hold: drop them all, and have the replay read them from storage
+				if (m_held.size() >= MAX_REPLAY_BUFFER)
+				{
+					m_held.clear();
+					m_overflow = true;
+				}
+				if (!m_overflow) m_held.add(event);
+				return;
+			}
+
+			send(o, event);
+		}
+
+		/**
+		 * Send an event on, unless it is a numbered event that was already sent.
+		 */
+		protected void send(Observable o, Event event)
+		{
+			long seq = ((BaseEvent) event).m_seq;
+			if (seq > 0)
+			{
+				if (seq <= m_lastSeq) return;
+				m_lastSeq = seq;
+			}
+
+			m_observer.update(o, event);
+		}
+
+		/**
+		 * Send the held events and start passing on the live events. Call while synchronized on this.
+		 * 
+		 * @param lastSeq
+		 *        The sequence number of the last event sent by the replay.
+		 */
+		protected void goLive(long lastSeq)
+		{
+			m_lastSeq = lastSeq;
+			List<Event> held = m_held;
+			m_held = null;
+
+			for (Iterator<Event> i = held.iterator(); i.hasNext();)
+			{
+				send(m_observableHelper, i.next());
+			}
+		}
+
+		public EventFilter getEventFilter()
+		{
+			return m_filter;
+		}
+
+		public String toString()
+		{
+			return "replay: " + m_observer;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public List<Event> getRecentEvents(long since, String resourcePrefix, String userId, String sessionId, String function, int max)
+	{
+		RecentEvents recent = m_recentEvents;
+		if (recent == null) return new ArrayList<Event>();
+
+		return recent.find(since, resourcePrefix, userId, sessionId, function, max);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, long[]> getEventCountsByFunction(int minutes)
+	{
+		EventCounters counters = m_eventCounters;
+		if (counters == null) return new HashMap<String, long[]>();
+
+		return counters.getCounts(false, minutes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, long[]> getEventCountsByContext(int minutes)
+	{
+		EventCounters counters = m_eventCounters;
+		if (counters == null) return new HashMap<String, long[]>();
+
+		return counters.getCounts(true, minutes);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Long> getTopResources(long since, int max)
+	{
+		EventSketches sketches = m_eventSketches;
+		if (sketches == null) return new HashMap<String, Long>();
+
+		return sketches.getTopResources(since, max);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getDistinctUserCount(String context, long since)
+	{
+		EventSketches sketches = m_eventSketches;
+		if (sketches == null) return 0;
+
+		return sketches.getDistinctUsers(context, since);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getSessionEvents(String sessionId, long afterSeq, int max, EventFilter filter, Observer observer)
+	{
+		// no storage
+		return -1;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getUserEvents(String userId, long afterSeq, int max, EventFilter filter, Observer observer)
+	{
+		// no storage
+		return -1;
+	}
+
+	/**
+	 * Access the sketch windows (the current one and the snapshots of past ones) that overlap a time range, to merge with those of other servers.
+	 * 
+	 * @param since
+	 *        The start of the time range (ms since the epoch); the range runs to now.
+	 * @return The windows, newest first, or an empty List if we are not keeping sketches.
+	 */
+	public List<EventSketches.Window> getSketchWindows(long since)
+	{
+		EventSketches sketches = m_eventSketches;
+		if (sketches == null) return new ArrayList<EventSketches.Window>();
+
+		return sketches.getWindows(since);
 	}
 
 	/**********************************************************************************************************************************************************************************************************************************************************
@@ -350,8 +1205,8 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 		/** The Event's notification priority. */
 		protected int m_priority = NotificationService.NOTI_OPTIONAL;
 
-		/** Event creation time. */
-		protected Time m_time = null;
+		/** Event creation time, in ms since the epoch (0 until the event is posted or read). */
+		protected long m_time = 0;
 
 		/**
 		 * Access the event id string
@@ -463,7 +1318,7 @@ public abstract class BaseEventTrackingService implements EventTrackingService
 		{
 			if (id != null)
 			{
-				m_id = id;
+				m_id = sharedFunction(id);
 			}
 			else
 			{
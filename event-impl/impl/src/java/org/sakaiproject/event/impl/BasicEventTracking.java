@@ -21,6 +21,9 @@
 
 package org.sakaiproject.event.impl;
 
+import java.util.Iterator;
+import java.util.List;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.event.api.Event;
@@ -53,19 +56,44 @@ public abstract class BasicEventTracking extends BaseEventTrackingService
 	 */
 	protected void postEvent(Event event)
 	{
-		String reportId = null;
-		if (event.getSessionId() != null)
+		M_log.info(m_logId + reportId(event) + "@" + event);
+
+		// notify observers, sending the event
+		notifyObservers(event, true);
+	}
+
+	/**
+	 * Cause this batch of new events to get to wherever they have to go for persistence, etc.
+	 * 
+	 * @param events
+	 *        The List (Event) of new events to post.
+	 */
+	protected void postEvents(List<Event> events)
+	{
+		for (Iterator<Event> i = events.iterator(); i.hasNext();)
 		{
-			reportId = event.getSessionId();
+			Event event = i.next();
+			M_log.info(m_logId + reportId(event) + "@" + event);
 		}
-		else
+
+		// notify observers, sending the events
+		notifyObservers(events, true);
+	}
+
+	/**
+	 * Form the id logged for the session or user responsible for an event.
+	 * 
+	 * @param event
+	 *        The event.
+	 * @return The session id, or "~" and the user id.
+	 */
+	protected String reportId(Event event)
+	{
+		if (event.getSessionId() != null)
 		{
-			reportId = "~" + event.getUserId();
+			return event.getSessionId();
 		}
 
-		M_log.info(m_logId + reportId + "@" + event);
-
-		// notify observers, sending the event
-		notifyObservers(event, true);
+		return "~" + event.getUserId();
 	}
 }
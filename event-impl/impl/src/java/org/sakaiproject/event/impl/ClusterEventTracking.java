@@ -21,14 +21,33 @@
 
 package org.sakaiproject.event.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.TimeZone;
+import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,6 +56,7 @@ import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.db.api.SqlReader;
 import org.sakaiproject.db.api.SqlService;
 import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventFilter;
 import org.sakaiproject.event.api.NotificationService;
 import org.sakaiproject.time.api.Time;
 import org.sakaiproject.time.api.TimeService;
@@ -67,6 +87,12 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 
 	/** Queue of events to write if we are batching. */
 	protected Collection m_eventQueue = null;
+
+	/** Queue of priority events to write on the low latency lane, if we are batching. */
+	protected List m_priorityEventQueue = null;
+
+	/** The priority event writer thread. */
+	protected Thread m_priorityThread = null;
 	
 	/** Duration to keep events in the DB for in ms. Default is 1 week. */
 	protected long keepEventsDuration = 1000*60*60*24*7;
@@ -74,6 +100,51 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 	/** Should we archive events into another table? */
 	protected boolean archiveEvents = true;
 
+	/** The segment file archive that old events go to in place of the archive table, or null to use the table. */
+	protected EventArchive m_eventArchive = null;
+
+	/** The export files the events are written to, or null if not exporting. */
+	protected EventExport m_eventExport = null;
+
+	/** Set once the driver has shown it cannot report the EVENT_IDs generated, so the export goes without. */
+	protected boolean m_keysUnsupported = false;
+
+	/** The function dictionary: function name to id. */
+	protected ConcurrentHashMap<String, Integer> m_functionIds = new ConcurrentHashMap<String, Integer>();
+
+	/** The function dictionary: function id to name. */
+	protected ConcurrentHashMap<Integer, String> m_functionNames = new ConcurrentHashMap<Integer, String>();
+
+	/** The pool used to dispatch remote events to observers in parallel, or null to dispatch on the event checking thread. */
+	protected ExecutorService m_dispatchExecutor = null;
+
+	/** The scheduled cleanup thread. */
+	protected Thread m_cleanupThread = null;
+
+	/** The moving average time (ms) of the live event writes and polls. */
+	protected volatile double m_dbLatency = 0;
+
+	/** When a scheduled cleanup must stop (ms since the epoch), or 0 if it may run to the end. */
+	protected volatile long m_cleanupDeadline = 0;
+
+	/** The name of our row in SAKAI_EVENT_MAINTENANCE. */
+	protected static final String CLEANUP_TASK = "cleanup";
+
+	/** The filters of the events from other servers our observers are interested in, or null for all events. */
+	protected List<EventFilter> m_pollInterest = null;
+
+	/** The poll statement for m_pollInterest. */
+	protected String m_pollInterestSql = null;
+
+	/** The parameters of the m_pollInterest criteria. */
+	protected List<Object> m_pollInterestFields = null;
+
+	/** The count of observer changes m_pollInterest was worked out at. */
+	protected int m_pollInterestChanges = -1;
+
+	/** The number of events read in each page of a replay. */
+	protected static final int REPLAY_PAGE = 1000;
+
 	/*************************************************************************************************************************************************
 	 * Dependencies
 	 ************************************************************************************************************************************************/
@@ -165,466 +236,2784 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 		m_period = Integer.parseInt(time) * 1000L;
 	}
 
+	/** If true, priority events are written on their own low latency lane rather than waiting for the next batch write. */
+	protected boolean m_priorityWrite = true;
+
 	/**
-	 * Amount of time in ms to keep events in the database for. 
-	 * @param keepEventsDuration
+	 * Configuration: set the priority write flag.
+	 * 
+	 * @param value
+	 *        The priority write value.
 	 */
-	public void setKeepEventsDuration(long keepEventsDuration) {
-		this.keepEventsDuration = keepEventsDuration;
-	}
-
-	/** contains a map of the database dependent handler. */
-	protected Map<String, ClusterEventTrackingServiceSql> databaseBeans;
-
-	/** contains database dependent code. */
-	protected ClusterEventTrackingServiceSql clusterEventTrackingServiceSql;
-
-	public void setDatabaseBeans(Map databaseBeans)
+	public void setPriorityWrite(String value)
 	{
-		this.databaseBeans = databaseBeans;
+		try
+		{
+			m_priorityWrite = new Boolean(value).booleanValue();
+		}
+		catch (Exception any)
+		{
+		}
 	}
 
-	public ClusterEventTrackingServiceSql getClusterEventTrackingServiceSql()
-	{
-		return clusterEventTrackingServiceSql;
-	}
+	/** How long (ms) the priority writer waits after the first priority event, to write any others that come along with it. */
+	protected long m_priorityWriteDelay = 20L;
 
 	/**
-	 * sets which bean containing database dependent code should be used depending on the database vendor.
+	 * Configuration: set the # ms the priority writer waits after the first priority event, to write any others that come along with it.
+	 * 
+	 * @param value
+	 *        The priority write delay, in ms.
 	 */
-	public void setClusterEventTrackingServiceSql(String vendor)
+	public void setPriorityWriteDelay(String value)
 	{
-		this.clusterEventTrackingServiceSql = (databaseBeans.containsKey(vendor) ? databaseBeans.get(vendor) : databaseBeans.get("default"));
+		try
+		{
+			m_priorityWriteDelay = Long.parseLong(value);
+		}
+		catch (Exception any)
+		{
+		}
 	}
 
-	/*************************************************************************************************************************************************
-	 * Init and Destroy
-	 ************************************************************************************************************************************************/
+	/** Event functions (prefixes) that are written on the priority lane even when they are not modify events. */
+	protected String[] m_priorityFunctions = new String[0];
 
 	/**
-	 * Final initialization, once all dependencies are set.
+	 * Configuration: set the event functions, or function prefixes, that are written on the priority lane even when they are not modify events.
+	 * Modify events always are.
+	 * 
+	 * @param value
+	 *        A comma separated list of event functions or function prefixes.
 	 */
-	public void init()
+	public void setPriorityFunctions(String value)
 	{
-		setClusterEventTrackingServiceSql(sqlService().getVendor());
-		try
-		{
-			// if we are auto-creating our schema, check and create
-			if (m_autoDdl)
-			{
-				sqlService().ddl(this.getClass().getClassLoader(), "sakai_event");
-			}
-
-			super.init();
-
-			if (m_batchWrite)
-			{
-				m_eventQueue = new Vector();
-			}
-
-			// startup the event checking
-			if (m_checkDb)
-			{
-				start();
-			}
+		if (value == null) return;
 
-			M_log.info(this + ".init() - period: " + m_period / 1000 + " batch: " + m_batchWrite + " checkDb: " + m_checkDb);
-		}
-		catch (Throwable t)
+		List<String> functions = new ArrayList<String>();
+		String[] parts = StringUtil.split(value, ",");
+		for (int i = 0; i < parts.length; i++)
 		{
-			M_log.warn(this + ".init(): ", t);
+			String function = parts[i].trim();
+			if (function.length() > 0) functions.add(function);
 		}
+
+		m_priorityFunctions = functions.toArray(new String[functions.size()]);
 	}
 
+	/** How many threads to use to dispatch remote events to observers - 1 or less dispatches them on the event checking thread. */
+	protected int m_dispatchThreads = 1;
+
 	/**
-	 * Final cleanup.
+	 * Configuration: set the number of threads used to dispatch remote events to observers. Events are partitioned by resource, so each resource's
+	 * events are still seen in order, but observers must be prepared to be called from more than one thread at once.
+	 * 
+	 * @param value
+	 *        The number of dispatch threads.
 	 */
-	public void destroy()
+	public void setDispatchThreads(String value)
 	{
-		// stop our thread
-		stop();
-
-		super.destroy();
+		try
+		{
+			m_dispatchThreads = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
 	}
 
-	/*************************************************************************************************************************************************
-	 * Event post / flow
-	 ************************************************************************************************************************************************/
+	/** How many event ids to archive and delete in each cleanup transaction. */
+	protected long m_cleanupChunkSize = 10000L;
 
 	/**
-	 * Cause this new event to get to wherever it has to go for persistence, etc.
+	 * Configuration: set the number of event ids to archive and delete in each cleanup transaction.
 	 * 
-	 * @param event
-	 *        The new event to post.
+	 * @param value
+	 *        The cleanup chunk size.
 	 */
-	protected void postEvent(Event event)
+	public void setCleanupChunkSize(String value)
 	{
-		// mark the event time
-		((BaseEvent) event).m_time = timeService().newTime();
-
-		// notify locally generated events immediately -
-		// they will not be process again when read back from the database
 		try
 		{
-			notifyObservers(event, true);
+			m_cleanupChunkSize = Long.parseLong(value);
 		}
-		catch (Throwable t)
+		catch (Exception any)
 		{
-			M_log.warn("postEvent, notifyObservers(), event: " + event.toString(), t);
 		}
+	}
 
-		// batch the event if we are batching
-		if (m_batchWrite)
+	/** How long (ms) to pause between cleanup transactions, to let the live event writes and polls through. */
+	protected long m_cleanupChunkPause = 100L;
+
+	/**
+	 * Configuration: set the # ms to pause between cleanup transactions.
+	 * 
+	 * @param value
+	 *        The cleanup pause, in ms.
+	 */
+	public void setCleanupChunkPause(String value)
+	{
+		try
 		{
-			synchronized (m_eventQueue)
-			{
-				m_eventQueue.add(event);
-			}
+			m_cleanupChunkPause = Long.parseLong(value);
 		}
-
-		// if not batching, write out the individual event
-		else
+		catch (Exception any)
 		{
-			writeEvent(event, null);
 		}
-
-		if (M_log.isDebugEnabled()) M_log.debug(m_logId + event);
 	}
 
+	/** If true, the event writes also keep the SAKAI_EVENT_ROLLUP counts. */
+	protected boolean m_rollup = false;
+
 	/**
-	 * Write a single event to the db
+	 * Configuration: set to keep hourly counts of the events, by function, context and modify flag, in SAKAI_EVENT_ROLLUP as the events are written.
 	 * 
-	 * @param event
-	 *        The event to write.
+	 * @param value
+	 *        The rollup setting.
 	 */
-	protected void writeEvent(Event event, Connection conn)
+	public void setRollup(String value)
 	{
-		// get the SQL statement
-		String statement = insertStatement();
+		m_rollup = new Boolean(value).booleanValue();
+	}
 
-		// collect the fields
-		Object fields[] = new Object[5];
-		bindValues(event, fields);
+	/** The directory for the segment file event archive, or null to archive to SAKAI_EVENT_ARCHIVE. */
+	protected String m_archiveDirectory = null;
 
-		// process the insert
-		boolean ok = sqlService().dbWrite(conn, statement, fields);
-		if (!ok)
+	/**
+	 * Configuration: set a directory to archive old events to, as compressed segment files, in place of the SAKAI_EVENT_ARCHIVE table.<br />
+	 * The scheduled cleanup runs on whichever server claims it each day, and the archive is read (by getArchivedEvents() and replay()) from each
+	 * server's own directory, so the directory must be one shared by all the servers of the cluster - unless archiveServer pins the cleanup, and so
+	 * the archive, to one server, when the archive is only complete when read there.
+	 * 
+	 * @param value
+	 *        The archive directory.
+	 */
+	public void setArchiveDirectory(String value)
+	{
+		if ((value != null) && (value.trim().length() > 0))
 		{
-			M_log.warn(this + ".writeEvent(): dbWrite failed: session: " + fields[3] + " event: " + event.toString());
+			m_archiveDirectory = value.trim();
 		}
 	}
 
+	/** The server id of the one server to run the cleanup, and so write the segment file archive, or null for any server. */
+	protected String m_archiveServer = null;
+
 	/**
-	 * Write a batch of events to the db
+	 * Configuration: set the server id of the one server that runs the scheduled cleanup while archiving to segment files, so the archive is all in
+	 * that server's archive directory (for a directory that is not shared by all the servers). No other server cleans up events or sessions, so
+	 * while that server is down nothing is cleaned up.
 	 * 
-	 * @param events
-	 *        The collection of event to write.
+	 * @param value
+	 *        The server id.
 	 */
-	protected void writeBatchEvents(Collection events)
+	public void setArchiveServer(String value)
 	{
-		// get a connection
-		Connection conn = null;
-		boolean wasCommit = true;
-		try
+		if ((value != null) && (value.trim().length() > 0))
 		{
-			conn = sqlService().borrowConnection();
-			wasCommit = conn.getAutoCommit();
-			if (wasCommit)
-			{
-				conn.setAutoCommit(false);
-			}
-
-			// Note: investigate batch writing via the jdbc driver: make sure we can still use prepared statements (check out host arrays, too)
-			// -ggolden
-
-			// common preparation for each insert
-			String statement = insertStatement();
-			Object fields[] = new Object[5];
+			m_archiveServer = value.trim();
+		}
+	}
 
-			// write all events
-			for (Iterator i = events.iterator(); i.hasNext();)
-			{
-				Event event = (Event) i.next();
-				bindValues(event, fields);
+	/** The server ids the events posted outside a session may be stored under, as ~server~user, for the user timeline. */
+	protected ConcurrentHashMap<String, Boolean> m_timelineServers = new ConcurrentHashMap<String, Boolean>();
 
-				// process the insert
-				boolean ok = sqlService().dbWrite(conn, statement, fields);
-				if (!ok)
-				{
-					M_log.warn(this + ".writeBatchEvents(): dbWrite failed: session: " + fields[3] + " event: " + event.toString());
-				}
-			}
+	/**
+	 * Configuration: set the server ids of the cluster, so the user timeline finds the user's events posted outside a session on any of them (these
+	 * are stored under ~server~user, and looked up by exact id so the SESSION_ID index is used). This server, and any server whose events it has
+	 * read since it started, are added as they are seen: list here all the servers, including retired ones, whose events are still in the db.
+	 * 
+	 * @param value
+	 *        A comma separated list of server ids.
+	 */
+	public void setTimelineServers(String value)
+	{
+		if (value == null) return;
 
-			// commit
-			conn.commit();
-		}
-		catch (Throwable e)
-		{
-			if (conn != null)
-			{
-				try
-				{
-					conn.rollback();
-				}
-				catch (Exception ee)
-				{
-					M_log.warn(this + ".writeBatchEvents, while rolling back: " + ee);
-				}
-			}
-			M_log.warn(this + ".writeBatchEvents: " + e);
-		}
-		finally
+		String[] parts = StringUtil.split(value, ",");
+		for (int i = 0; i < parts.length; i++)
 		{
-			if (conn != null)
-			{
-				try
-				{
-					if (conn.getAutoCommit() != wasCommit)
-					{
-						conn.setAutoCommit(wasCommit);
-					}
-				}
-				catch (Exception e)
-				{
-					M_log.warn(this + ".writeBatchEvents, while setting auto commit: " + e);
-				}
-				sqlService().returnConnection(conn);
-			}
+			String server = parts[i].trim();
+			if (server.length() > 0) m_timelineServers.put(server, Boolean.TRUE);
 		}
 	}
 
+	/** The directory to export the events to as they are written, or null to not export them. */
+	protected String m_exportDirectory = null;
+
 	/**
-	 * Form the proper event insert statement for the database technology.
+	 * Configuration: set a local directory to export the events to, as newline delimited JSON files, as they are written to the db.
 	 * 
-	 * @return The SQL insert statement for writing an event.
+	 * @param value
+	 *        The export directory.
 	 */
-	protected String insertStatement()
+	public void setExportDirectory(String value)
 	{
-		return clusterEventTrackingServiceSql.getInsertEventSql();
+		if ((value != null) && (value.trim().length() > 0))
+		{
+			m_exportDirectory = value.trim();
+		}
 	}
 
+	/** The size (bytes) at which an export file is rolled over. */
+	protected long m_exportMaxSize = 64L * 1024L * 1024L;
+
 	/**
-	 * Bind the event values into an array of fields for inserting.
+	 * Configuration: set the size, in megabytes, at which an export file is rolled over.
 	 * 
-	 * @param event
-	 *        The event to write.
-	 * @param fields
-	 *        The object[] to hold bind variables.
+	 * @param value
+	 *        The export file size.
 	 */
-	protected void bindValues(Event event, Object[] fields)
+	public void setExportMaxSize(String value)
 	{
-		// session or user?
-		String reportId = null;
-		if (event.getSessionId() != null)
+		try
 		{
-			reportId = event.getSessionId();
+			m_exportMaxSize = Long.parseLong(value) * 1024L * 1024L;
 		}
-		else
+		catch (Exception t)
 		{
-			// form an id based on the cluster server's id and the event user id
-			reportId = "~" + serverConfigurationService().getServerId() + "~" + event.getUserId();
 		}
-
-		fields[0] = ((BaseEvent) event).m_time;
-		fields[1] = event.getEvent();
-		fields[2] = event.getResource() != null && event.getResource().length() > 255 ? 
-				event.getResource().substring(0, 255) : event.getResource();
-		fields[3] = reportId;
-		fields[4] = (event.getModify() ? "m" : "a");
 	}
 
-	/*************************************************************************************************************************************************
-	 * Runnable
+	/** The age (ms) at which an export file is rolled over. */
+	protected long m_exportMaxAge = 60L * 60L * 1000L;
+
+	/**
+	 * Configuration: set the age, in minutes, at which an export file is rolled over.
+	 * 
+	 * @param value
+	 *        The export file age.
+	 */
+	public void setExportMaxAge(String value)
+	{
+		try
+		{
+			m_exportMaxAge = Long.parseLong(value) * 60L * 1000L;
+		}
+		catch (Exception t)
+		{
+		}
+	}
+
+	/** If true, cleanupEvents and cleanupSessions are run each day in the cleanup window. */
+	protected boolean m_scheduleCleanup = false;
+
+	/**
+	 * Configuration: set to run the event and session cleanup each day, in the cleanup window.
+	 * 
+	 * @param value
+	 *        The schedule cleanup setting.
+	 */
+	public void setScheduleCleanup(String value)
+	{
+		m_scheduleCleanup = new Boolean(value).booleanValue();
+	}
+
+	/** The start of the cleanup window, in minutes after (server local) midnight. */
+	protected int m_cleanupWindowStart = 2 * 60;
+
+	/** The end of the cleanup window, in minutes after (server local) midnight. */
+	protected int m_cleanupWindowEnd = 5 * 60;
+
+	/**
+	 * Configuration: set the time of day the scheduled cleanup may run in, as "HH:mm-HH:mm" server local time. The window may span midnight.
+	 * 
+	 * @param value
+	 *        The cleanup window.
+	 */
+	public void setCleanupWindow(String value)
+	{
+		try
+		{
+			String[] parts = StringUtil.split(value.trim(), "-");
+			int start = parseMinutes(parts[0]);
+			int end = parseMinutes(parts[1]);
+			m_cleanupWindowStart = start;
+			m_cleanupWindowEnd = end;
+		}
+		catch (Exception any)
+		{
+			M_log.warn("setCleanupWindow: invalid window: " + value);
+		}
+	}
+
+	/**
+	 * Parse HH:mm into minutes after midnight.
+	 */
+	protected int parseMinutes(String value)
+	{
+		String[] parts = StringUtil.split(value.trim(), ":");
+		int rv = Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+		if ((rv < 0) || (rv >= 24 * 60)) throw new IllegalArgumentException(value);
+		return rv;
+	}
+
+	/** The live write and poll time (ms) we aim to keep the cleanup under: above this, the cleanup pauses grow. */
+	protected long m_cleanupLatencyTarget = 100L;
+
+	/**
+	 * Configuration: set the time (ms) of the live event writes and polls above which the cleanup slows down.
+	 * 
+	 * @param value
+	 *        The latency target, in ms.
+	 */
+	public void setCleanupLatencyTarget(String value)
+	{
+		try
+		{
+			m_cleanupLatencyTarget = Long.parseLong(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** The longest pause (ms) the cleanup takes between transactions when it is backing off. */
+	protected static final long MAX_CLEANUP_PAUSE = 60L * 1000L;
+
+	/** If true, old events are removed by dropping whole date partitions of SAKAI_EVENT, where the db supports it. */
+	protected boolean m_partitionRetention = false;
+
+	/**
+	 * Configuration: set to remove old events by dropping date partitions (needs the partitioned SAKAI_EVENT table).
+	 * 
+	 * @param value
+	 *        The partition retention setting.
+	 */
+	public void setPartitionRetention(String value)
+	{
+		m_partitionRetention = new Boolean(value).booleanValue();
+	}
+
+	/** The span of each SAKAI_EVENT partition: "month" or "week". */
+	protected String m_partitionPeriod = "month";
+
+	/**
+	 * Configuration: set the span of each SAKAI_EVENT partition, "month" or "week".
+	 * 
+	 * @param value
+	 *        The partition period.
+	 */
+	public void setPartitionPeriod(String value)
+	{
+		if ("month".equals(value) || "week".equals(value))
+		{
+			m_partitionPeriod = value;
+		}
+	}
+
+	/** How many partitions to keep ready beyond the current one. */
+	protected int m_partitionsAhead = 2;
+
+	/**
+	 * Configuration: set how many SAKAI_EVENT partitions to keep ready beyond the current one.
+	 * 
+	 * @param value
+	 *        The number of partitions.
+	 */
+	public void setPartitionsAhead(String value)
+	{
+		try
+		{
+			m_partitionsAhead = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** If true, events are stored with a function id from the SAKAI_EVENT_FUNCTION dictionary in place of the function name. */
+	protected boolean m_normalizedSchema = false;
+
+	/**
+	 * Configuration: set to store the event functions as ids from the SAKAI_EVENT_FUNCTION dictionary (needs the EVENT_FUNCTION_ID columns added by
+	 * the sakai_event_normalize conversion script).
+	 * 
+	 * @param value
+	 *        The normalized schema setting.
+	 */
+	public void setNormalizedSchema(String value)
+	{
+		m_normalizedSchema = new Boolean(value).booleanValue();
+	}
+
+	/**
+	 * Amount of time in ms to keep events in the database for. 
+	 * @param keepEventsDuration
+	 */
+	public void setKeepEventsDuration(long keepEventsDuration) {
+		this.keepEventsDuration = keepEventsDuration;
+	}
+
+	/** contains a map of the database dependent handler. */
+	protected Map<String, ClusterEventTrackingServiceSql> databaseBeans;
+
+	/** contains database dependent code. */
+	protected ClusterEventTrackingServiceSql clusterEventTrackingServiceSql;
+
+	public void setDatabaseBeans(Map databaseBeans)
+	{
+		this.databaseBeans = databaseBeans;
+	}
+
+	public ClusterEventTrackingServiceSql getClusterEventTrackingServiceSql()
+	{
+		return clusterEventTrackingServiceSql;
+	}
+
+	/**
+	 * sets which bean containing database dependent code should be used depending on the database vendor.
+	 */
+	public void setClusterEventTrackingServiceSql(String vendor)
+	{
+		this.clusterEventTrackingServiceSql = (databaseBeans.containsKey(vendor) ? databaseBeans.get(vendor) : databaseBeans.get("default"));
+	}
+
+	/*************************************************************************************************************************************************
+	 * Init and Destroy
+	 ************************************************************************************************************************************************/
+
+	/**
+	 * Final initialization, once all dependencies are set.
+	 */
+	public void init()
+	{
+		setClusterEventTrackingServiceSql(sqlService().getVendor());
+		clusterEventTrackingServiceSql.setNormalizedSchema(m_normalizedSchema);
+		try
+		{
+			// if we are auto-creating our schema, check and create
+			if (m_autoDdl)
+			{
+				sqlService().ddl(this.getClass().getClassLoader(), m_partitionRetention ? "sakai_event_partitioned" : "sakai_event");
+			}
+
+			super.init();
+
+			m_timelineServers.put(serverConfigurationService().getServerId(), Boolean.TRUE);
+
+			if (m_normalizedSchema)
+			{
+				loadEventFunctions();
+				M_log.info("init: normalized schema, event functions: " + m_functionIds.size());
+			}
+
+			if (m_archiveDirectory != null)
+			{
+				m_eventArchive = new EventArchive(new File(m_archiveDirectory));
+				if (m_archiveServer != null)
+				{
+					M_log.info("init: archiving old events to: " + m_archiveDirectory + " on server: " + m_archiveServer);
+				}
+				else
+				{
+					M_log.info("init: archiving old events to: " + m_archiveDirectory
+							+ " - any server may run the cleanup, so this must be a directory shared by all servers (or set archiveServer)");
+				}
+			}
+
+			if (m_exportDirectory != null)
+			{
+				m_eventExport = new EventExport(new File(m_exportDirectory), serverConfigurationService().getServerId(), m_exportMaxSize,
+						m_exportMaxAge);
+				M_log.info("init: exporting events to: " + m_exportDirectory);
+			}
+
+			if (m_batchWrite)
+			{
+				m_eventQueue = new Vector();
+
+				if (m_priorityWrite)
+				{
+					m_priorityEventQueue = new ArrayList();
+				}
+			}
+
+			// startup the event checking
+			if (m_checkDb)
+			{
+				if (m_dispatchThreads > 1)
+				{
+					m_dispatchExecutor = Executors.newFixedThreadPool(m_dispatchThreads, new ThreadFactory()
+					{
+						protected int m_count = 0;
+
+						public synchronized Thread newThread(Runnable r)
+						{
+							Thread t = new Thread(r, ClusterEventTracking.this.getClass().getName() + ".dispatch-" + (++m_count));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+				}
+
+				start();
+			}
+
+			if (m_scheduleCleanup)
+			{
+				m_cleanupThread = new Thread(new CleanupScheduler(), getClass().getName() + ".cleanup");
+				m_cleanupThread.setDaemon(true);
+				m_cleanupThread.start();
+			}
+
+			M_log.info(this + ".init() - period: " + m_period / 1000 + " batch: " + m_batchWrite + " priorityWrite: " + m_priorityWrite
+					+ " priorityWriteDelay: " + m_priorityWriteDelay + " checkDb: " + m_checkDb + " dispatchThreads: " + m_dispatchThreads);
+		}
+		catch (Throwable t)
+		{
+			M_log.warn(this + ".init(): ", t);
+		}
+	}
+
+	/**
+	 * Final cleanup.
+	 */
+	public void destroy()
+	{
+		// stop our thread
+		stop();
+
+		if (m_cleanupThread != null)
+		{
+			m_cleanupThread.interrupt();
+			m_cleanupThread = null;
+		}
+
+		if (m_dispatchExecutor != null)
+		{
+			m_dispatchExecutor.shutdownNow();
+			m_dispatchExecutor = null;
+		}
+
+		if (m_eventExport != null)
+		{
+			m_eventExport.close();
+		}
+
+		super.destroy();
+	}
+
+	/*************************************************************************************************************************************************
+	 * Event post / flow
 	 ************************************************************************************************************************************************/
 
 	/**
-	 * Start the clean and report thread.
+	 * Cause this new event to get to wherever it has to go for persistence, etc.
+	 * 
+	 * @param event
+	 *        The new event to post.
+	 */
+	protected void postEvent(Event event)
+	{
+		// mark the event time
+		((BaseEvent) event).m_time = System.currentTimeMillis();
+
+		// notify locally generated events immediately -
+		// they will not be process again when read back from the database
+		try
+		{
+			notifyObservers(event, true);
+		}
+		catch (Throwable t)
+		{
+			M_log.warn("postEvent, notifyObservers(), event: " + event.toString(), t);
+		}
+
+		// batch the event if we are batching, on the priority lane if it's a priority event
+		if (m_batchWrite)
+		{
+			if ((m_priorityEventQueue != null) && isPriorityEvent(event))
+			{
+				synchronized (m_priorityEventQueue)
+				{
+					m_priorityEventQueue.add(event);
+					m_priorityEventQueue.notify();
+				}
+			}
+			else
+			{
+				synchronized (m_eventQueue)
+				{
+					m_eventQueue.add(event);
+				}
+			}
+		}
+
+		// if not batching, write out the individual event
+		else
+		{
+			writeEvent(event, null);
+		}
+
+		if (M_log.isDebugEnabled()) M_log.debug(m_logId + event);
+	}
+
+	/**
+	 * Cause this batch of new events to get to wherever they have to go for persistence, etc.
+	 * 
+	 * @param events
+	 *        The List (Event) of new events to post.
+	 */
+	protected void postEvents(List<Event> events)
+	{
+		// mark the event times
+		long now = System.currentTimeMillis();
+		for (Iterator<Event> i = events.iterator(); i.hasNext();)
+		{
+			((BaseEvent) i.next()).m_time = now;
+		}
+
+		// notify locally generated events immediately -
+		// they will not be process again when read back from the database
+		try
+		{
+			notifyObservers(events, true);
+		}
+		catch (Throwable t)
+		{
+			M_log.warn("postEvents, notifyObservers(), events: " + events.size(), t);
+		}
+
+		// batch the events if we are batching, priority events on the priority lane
+		if (m_batchWrite)
+		{
+			List<Event> bulk = events;
+			if (m_priorityEventQueue != null)
+			{
+				List<Event> priority = new ArrayList<Event>();
+				bulk = new ArrayList<Event>();
+				for (Iterator<Event> i = events.iterator(); i.hasNext();)
+				{
+					Event event = i.next();
+					if (isPriorityEvent(event))
+					{
+						priority.add(event);
+					}
+					else
+					{
+						bulk.add(event);
+					}
+				}
+
+				if (!priority.isEmpty())
+				{
+					synchronized (m_priorityEventQueue)
+					{
+						m_priorityEventQueue.addAll(priority);
+						m_priorityEventQueue.notify();
+					}
+				}
+			}
+
+			if (!bulk.isEmpty())
+			{
+				synchronized (m_eventQueue)
+				{
+					m_eventQueue.addAll(bulk);
+				}
+			}
+		}
+
+		// if not batching, write out the events now
+		else
+		{
+			writeBatchEvents(events);
+		}
+
+		if (M_log.isDebugEnabled()) M_log.debug(m_logId + events.size() + " events");
+	}
+
+	/**
+	 * Is this an event to write on the priority lane?
+	 * 
+	 * @param event
+	 *        The event.
+	 * @return true if the event is a modify event, or its function matches one of the priority functions.
+	 */
+	protected boolean isPriorityEvent(Event event)
+	{
+		if (event.getModify()) return true;
+
+		String function = event.getEvent();
+		for (int i = 0; i < m_priorityFunctions.length; i++)
+		{
+			if (function.startsWith(m_priorityFunctions[i])) return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Write a single event to the db
+	 * 
+	 * @param event
+	 *        The event to write.
+	 */
+	protected void writeEvent(Event event, Connection conn)
+	{
+		// get the SQL statement
+		String statement = insertStatement();
+
+		// collect the fields
+		Object fields[] = new Object[insertFields()];
+		bindValues(event, fields);
+
+		// process the insert - the export wants the EVENT_ID, so it asks the driver for it
+		boolean ok = false;
+		if (m_eventExport != null)
+		{
+			Connection keyConn = conn;
+			PreparedStatement insert = null;
+			try
+			{
+				if (keyConn == null) keyConn = sqlService().borrowConnection();
+				insert = prepareKeyedInsert(keyConn, statement);
+				if (insert != null) ok = writeKeyed(insert, fields, event);
+			}
+			catch (SQLException e)
+			{
+				M_log.warn(this + ".writeEvent(): " + e);
+			}
+			finally
+			{
+				close(insert);
+				if ((conn == null) && (keyConn != null)) sqlService().returnConnection(keyConn);
+			}
+			if (insert == null) ok = sqlService().dbWrite(conn, statement, fields);
+		}
+		else
+		{
+			ok = sqlService().dbWrite(conn, statement, fields);
+		}
+		if (!ok)
+		{
+			M_log.warn(this + ".writeEvent(): dbWrite failed: session: " + fields[3] + " event: " + event.toString());
+			return;
+		}
+
+		if (m_eventExport != null)
+		{
+			List<Event> events = new ArrayList<Event>(1);
+			events.add(event);
+			m_eventExport.write(events);
+		}
+
+		if (m_rollup)
+		{
+			Connection rollupConn = conn;
+			try
+			{
+				if (rollupConn == null) rollupConn = sqlService().borrowConnection();
+				List<Event> events = new ArrayList<Event>(1);
+				events.add(event);
+				writeRollup(rollupConn, events);
+			}
+			catch (SQLException e)
+			{
+				M_log.warn(this + ".writeEvent(): rollup: " + e);
+			}
+			finally
+			{
+				if ((conn == null) && (rollupConn != null)) sqlService().returnConnection(rollupConn);
+			}
+		}
+	}
+
+	/**
+	 * Write a batch of events to the db
+	 * 
+	 * @param events
+	 *        The collection of event to write.
+	 */
+	protected void writeBatchEvents(Collection events)
+	{
+		long start = System.currentTimeMillis();
+
+		// get a connection
+		Connection conn = null;
+		PreparedStatement insert = null;
+		boolean wasCommit = true;
+		boolean committed = false;
+
+		// the events actually inserted - a failed insert is logged and skipped, and must be neither exported nor counted
+		List<Event> stored = new ArrayList<Event>(events.size());
+		try
+		{
+			conn = sqlService().borrowConnection();
+			wasCommit = conn.getAutoCommit();
+			if (wasCommit)
+			{
+				conn.setAutoCommit(false);
+			}
+
+			// Note: investigate batch writing via the jdbc driver: make sure we can still use prepared statements (check out host arrays, too)
+			// -ggolden
+
+			// common preparation for each insert - the export wants the EVENT_IDs, so it asks the driver for them
+			String statement = insertStatement();
+			Object fields[] = new Object[insertFields()];
+			if (m_eventExport != null) insert = prepareKeyedInsert(conn, statement);
+
+			// write all events
+			for (Iterator i = events.iterator(); i.hasNext();)
+			{
+				Event event = (Event) i.next();
+				bindValues(event, fields);
+
+				// process the insert
+				boolean ok = (insert != null) ? writeKeyed(insert, fields, event) : sqlService().dbWrite(conn, statement, fields);
+				if (!ok)
+				{
+					M_log.warn(this + ".writeBatchEvents(): dbWrite failed: session: " + fields[3] + " event: " + event.toString());
+				}
+				else
+				{
+					stored.add(event);
+				}
+			}
+
+			// the rollup counts go in with the events, counting only those stored
+			if (m_rollup && !stored.isEmpty())
+			{
+				writeRollup(conn, stored);
+			}
+
+			// commit
+			conn.commit();
+			committed = true;
+		}
+		catch (Throwable e)
+		{
+			if (conn != null)
+			{
+				try
+				{
+					conn.rollback();
+				}
+				catch (Exception ee)
+				{
+					M_log.warn(this + ".writeBatchEvents, while rolling back: " + ee);
+				}
+			}
+			M_log.warn(this + ".writeBatchEvents: " + e);
+		}
+		finally
+		{
+			close(insert);
+			if (conn != null)
+			{
+				try
+				{
+					if (conn.getAutoCommit() != wasCommit)
+					{
+						conn.setAutoCommit(wasCommit);
+					}
+				}
+				catch (Exception e)
+				{
+					M_log.warn(this + ".writeBatchEvents, while setting auto commit: " + e);
+				}
+				sqlService().returnConnection(conn);
+			}
+
+			recordDbLatency(System.currentTimeMillis() - start);
+		}
+
+		// export what we stored
+		if (committed && (m_eventExport != null) && !stored.isEmpty())
+		{
+			m_eventExport.write(stored);
+		}
+	}
+
+	/**
+	 * Fold the time of a live event write or poll into the moving average the cleanup throttles on.
+	 * 
+	 * @param ms
+	 *        The time taken, in ms.
+	 */
+	protected void recordDbLatency(long ms)
+	{
+		// an exponentially weighted moving average - an update lost to a race does no harm
+		m_dbLatency = m_dbLatency * 0.8 + ms * 0.2;
+	}
+
+	/**
+	 * Add some events to the SAKAI_EVENT_ROLLUP counts, with one upsert (or update, then insert if needed) per hour, function, context and modify
+	 * flag. A failure is logged, but does not stop the events being written: in a transaction, the rollup statements are undone to a savepoint, as
+	 * some dbs (postgres) refuse all further statements of a transaction once one has failed.
+	 * 
+	 * @param conn
+	 *        The connection to write with, in the events' transaction.
+	 * @param events
+	 *        The Collection (Event) of events.
+	 */
+	protected void writeRollup(Connection conn, Collection events)
+	{
+		// count the events by group, in key order so that servers updating the same rows lock them in the same order
+		Map<String, Object[]> groups = new TreeMap<String, Object[]>();
+		for (Iterator i = events.iterator(); i.hasNext();)
+		{
+			Event event = (Event) i.next();
+			long time = ((BaseEvent) event).m_time;
+			Long hour = new Long(time - (time % (60L * 60L * 1000L)));
+			String context = EventCounters.context(event.getResource());
+			if (context == null)
+			{
+				context = ROLLUP_NO_CONTEXT;
+			}
+			else if (context.length() > 99)
+			{
+				context = context.substring(0, 99);
+			}
+			String code = event.getModify() ? "m" : "a";
+
+			String key = hour + "\t" + event.getEvent() + "\t" + context + "\t" + code;
+			Object[] group = groups.get(key);
+			if (group == null)
+			{
+				group = new Object[] {hour, event.getEvent(), context, code, new long[1]};
+				groups.put(key, group);
+			}
+			((long[]) group[4])[0]++;
+		}
+
+		PreparedStatement stmt = null;
+		PreparedStatement insert = null;
+		Savepoint rollup = savepoint(conn);
+		try
+		{
+			String upsert = clusterEventTrackingServiceSql.getUpsertRollupSql();
+			if (upsert != null)
+			{
+				stmt = conn.prepareStatement(upsert);
+				for (Iterator<Object[]> i = groups.values().iterator(); i.hasNext();)
+				{
+					Object[] group = i.next();
+					bindRollup(stmt, group, 1);
+					stmt.setLong(5, ((long[]) group[4])[0]);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+			}
+			else
+			{
+				stmt = conn.prepareStatement(clusterEventTrackingServiceSql.getUpdateRollupSql());
+				for (Iterator<Object[]> i = groups.values().iterator(); i.hasNext();)
+				{
+					Object[] group = i.next();
+					stmt.setLong(1, ((long[]) group[4])[0]);
+					bindRollup(stmt, group, 2);
+					if (stmt.executeUpdate() > 0) continue;
+
+					if (insert == null) insert = conn.prepareStatement(clusterEventTrackingServiceSql.getInsertRollupSql());
+					bindRollup(insert, group, 1);
+					insert.setLong(5, ((long[]) group[4])[0]);
+					Savepoint inserting = savepoint(conn);
+					try
+					{
+						insert.executeUpdate();
+						release(conn, inserting);
+					}
+					catch (SQLException e)
+					{
+						// another server inserted the row since our update
+						rollback(conn, inserting);
+						stmt.executeUpdate();
+					}
+				}
+			}
+			release(conn, rollup);
+		}
+		catch (SQLException e)
+		{
+			M_log.warn(this + ".writeRollup: " + e);
+			try
+			{
+				rollback(conn, rollup);
+			}
+			catch (SQLException ee)
+			{
+				M_log.warn(this + ".writeRollup, while rolling back: " + ee);
+			}
+		}
+		finally
+		{
+			try
+			{
+				if (stmt != null) stmt.close();
+				if (insert != null) insert.close();
+			}
+			catch (Exception e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Mark a savepoint, if the connection is in a transaction.
+	 * 
+	 * @return The savepoint, or null if not in a transaction (or the db does not do savepoints).
+	 */
+	protected Savepoint savepoint(Connection conn)
+	{
+		try
+		{
+			if (conn.getAutoCommit()) return null;
+			return conn.setSavepoint();
+		}
+		catch (SQLException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Undo the statements since a savepoint, if there is one.
+	 */
+	protected void rollback(Connection conn, Savepoint savepoint) throws SQLException
+	{
+		if (savepoint != null) conn.rollback(savepoint);
+	}
+
+	/**
+	 * Release a savepoint no longer needed, if there is one.
+	 */
+	protected void release(Connection conn, Savepoint savepoint)
+	{
+		if (savepoint == null) return;
+
+		try
+		{
+			conn.releaseSavepoint(savepoint);
+		}
+		catch (SQLException e)
+		{
+			// some drivers do not release: the savepoint goes with the transaction
+		}
+	}
+
+	/** The context recorded in the rollup for events whose resource has none. */
+	protected static final String ROLLUP_NO_CONTEXT = "-";
+
+	/**
+	 * Bind the hour, function, context and code of a rollup group.
+	 * 
+	 * @param stmt
+	 *        The statement.
+	 * @param group
+	 *        The rollup group.
+	 * @param first
+	 *        The index of the first bind variable.
+	 */
+	protected void bindRollup(PreparedStatement stmt, Object[] group, int first) throws SQLException
+	{
+		stmt.setTimestamp(first, new Timestamp(((Long) group[0]).longValue()), sqlService().getCal());
+		stmt.setString(first + 1, (String) group[1]);
+		stmt.setString(first + 2, (String) group[2]);
+		stmt.setString(first + 3, (String) group[3]);
+	}
+
+	/**
+	 * Form the proper event insert statement for the database technology.
+	 * 
+	 * @return The SQL insert statement for writing an event.
+	 */
+	protected String insertStatement()
+	{
+		return clusterEventTrackingServiceSql.getInsertEventSql();
+	}
+
+	/**
+	 * Prepare the event insert to report the EVENT_ID it generates.
+	 * 
+	 * @param conn
+	 *        The connection.
+	 * @param statement
+	 *        The insert sql.
+	 * @return The prepared statement, or null if the driver cannot report generated keys.
+	 */
+	protected PreparedStatement prepareKeyedInsert(Connection conn, String statement)
+	{
+		if (m_keysUnsupported) return null;
+
+		try
+		{
+			return conn.prepareStatement(statement, new String[] {"EVENT_ID"});
+		}
+		catch (SQLException e)
+		{
+			if (!m_keysUnsupported)
+			{
+				M_log.info(this + ".prepareKeyedInsert: exporting events without EVENT_ID: " + e);
+				m_keysUnsupported = true;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Insert one event with the keyed insert, setting the event's seq to the EVENT_ID generated.
+	 * 
+	 * @param insert
+	 *        The keyed insert.
+	 * @param fields
+	 *        The bound values, from bindValues().
+	 * @param event
+	 *        The event.
+	 * @return true if inserted, false if not.
+	 */
+	protected boolean writeKeyed(PreparedStatement insert, Object[] fields, Event event)
+	{
+		ResultSet keys = null;
+		try
+		{
+			for (int i = 0; i < fields.length; i++)
+			{
+				if (fields[i] instanceof Time)
+				{
+					insert.setTimestamp(i + 1, new Timestamp(((Time) fields[i]).getTime()), sqlService().getCal());
+				}
+				else if (fields[i] instanceof Integer)
+				{
+					insert.setInt(i + 1, ((Integer) fields[i]).intValue());
+				}
+				else if (fields[i] == null)
+				{
+					insert.setNull(i + 1, Types.VARCHAR);
+				}
+				else
+				{
+					insert.setString(i + 1, (String) fields[i]);
+				}
+			}
+			insert.executeUpdate();
+
+			keys = insert.getGeneratedKeys();
+			if ((keys != null) && keys.next())
+			{
+				((BaseEvent) event).m_seq = keys.getLong(1);
+			}
+			return true;
+		}
+		catch (SQLException e)
+		{
+			M_log.warn(this + ".writeKeyed: " + e);
+			return false;
+		}
+		finally
+		{
+			if (keys != null)
+			{
+				try
+				{
+					keys.close();
+				}
+				catch (SQLException e)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close a statement, if any, ignoring errors.
+	 */
+	protected void close(PreparedStatement stmt)
+	{
+		if (stmt == null) return;
+		try
+		{
+			stmt.close();
+		}
+		catch (SQLException e)
+		{
+		}
+	}
+
+	/**
+	 * @return The number of bind values of the insert statement.
+	 */
+	protected int insertFields()
+	{
+		// the normalized insert takes the function name too, for an event the dictionary could not take
+		return m_normalizedSchema ? 6 : 5;
+	}
+
+	/**
+	 * Bind the event values into an array of fields for inserting.
+	 * 
+	 * @param event
+	 *        The event to write.
+	 * @param fields
+	 *        The object[] to hold bind variables, insertFields() long.
+	 */
+	protected void bindValues(Event event, Object[] fields)
+	{
+		// session or user?
+		String reportId = null;
+		if (event.getSessionId() != null)
+		{
+			reportId = event.getSessionId();
+		}
+		else
+		{
+			// form an id based on the cluster server's id and the event user id
+			reportId = "~" + serverConfigurationService().getServerId() + "~" + event.getUserId();
+		}
+
+		fields[0] = timeService().newTime(((BaseEvent) event).m_time);
+		if (m_normalizedSchema)
+		{
+			// if the dictionary can't take the function, keep its name in EVENT rather than lose it
+			Integer id = encodeFunction(event.getEvent());
+			fields[1] = id;
+			fields[5] = (id == null) ? event.getEvent() : null;
+		}
+		else
+		{
+			fields[1] = event.getEvent();
+		}
+		fields[2] = event.getResource() != null && event.getResource().length() > 255 ? 
+				event.getResource().substring(0, 255) : event.getResource();
+		fields[3] = reportId;
+		fields[4] = (event.getModify() ? "m" : "a");
+	}
+
+	/**
+	 * Read the function dictionary into memory.
+	 */
+	protected void loadEventFunctions()
+	{
+		sqlService().dbRead(clusterEventTrackingServiceSql.getEventFunctionsSql(), null, new SqlReader()
+		{
+			public Object readSqlResultRecord(ResultSet result)
+			{
+				try
+				{
+					Integer id = new Integer(result.getInt(1));
+					String name = result.getString(2);
+					m_functionNames.put(id, name);
+					m_functionIds.put(name, id);
+				}
+				catch (SQLException e)
+				{
+					M_log.warn(this + ".loadEventFunctions: " + e);
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Find the dictionary id of an event function, adding the function to the dictionary if it is new.
+	 * 
+	 * @param function
+	 *        The function name.
+	 * @return The function id, or null if it could not be added.
+	 */
+	protected Integer encodeFunction(String function)
+	{
+		if (function == null) return null;
+
+		Integer id = m_functionIds.get(function);
+		if (id != null) return id;
+
+		synchronized (m_functionIds)
+		{
+			id = m_functionIds.get(function);
+			if (id != null) return id;
+
+			// try the next id; if another server adds a function at the same time, one of us will fail the unique keys, and pick up the other's
+			for (int attempt = 0; attempt < 3; attempt++)
+			{
+				List ids = sqlService().dbRead(clusterEventTrackingServiceSql.getMaxEventFunctionIdSql());
+				int next = 1;
+				if ((ids != null) && (ids.size() > 0) && (ids.get(0) != null))
+				{
+					try
+					{
+						next = Integer.parseInt((String) ids.get(0)) + 1;
+					}
+					catch (NumberFormatException ignore)
+					{
+					}
+				}
+
+				if (sqlService().dbWrite(clusterEventTrackingServiceSql.getInsertEventFunctionSql(), new Object[] {new Integer(next), function}))
+				{
+					id = new Integer(next);
+					m_functionNames.put(id, function);
+					m_functionIds.put(function, id);
+					return id;
+				}
+
+				loadEventFunctions();
+				id = m_functionIds.get(function);
+				if (id != null) return id;
+			}
+		}
+
+		M_log.warn(this + ".encodeFunction: could not add function, storing the name: " + function);
+		return null;
+	}
+
+	/**
+	 * Find the event function of a dictionary id.
+	 * 
+	 * @param id
+	 *        The function id.
+	 * @return The function name, or null if it is not in the dictionary.
+	 */
+	protected String decodeFunction(int id)
+	{
+		Integer key = new Integer(id);
+		String name = m_functionNames.get(key);
+		if (name != null) return name;
+
+		// added by another server since we last looked
+		synchronized (m_functionIds)
+		{
+			name = m_functionNames.get(key);
+			if (name == null)
+			{
+				loadEventFunctions();
+				name = m_functionNames.get(key);
+			}
+		}
+
+		return name;
+	}
+
+	/**
+	 * Read the function of a stored event: the function name, or, in the normalized schema, the name of the function id if it is set (events
+	 * written before the conversion keep their name).
+	 * 
+	 * @param result
+	 *        The result set, at the event's row.
+	 * @param nameColumn
+	 *        The column of EVENT.
+	 * @param idColumn
+	 *        The column of EVENT_FUNCTION_ID, read only in the normalized schema.
+	 * @return The event function.
+	 * @throws SQLException
+	 */
+	protected String readFunction(ResultSet result, int nameColumn, int idColumn) throws SQLException
+	{
+		if (m_normalizedSchema)
+		{
+			int id = result.getInt(idColumn);
+			if (!result.wasNull()) return decodeFunction(id);
+		}
+
+		return result.getString(nameColumn);
+	}
+
+	/*************************************************************************************************************************************************
+	 * Runnable
+	 ************************************************************************************************************************************************/
+
+	/**
+	 * Start the clean and report thread.
+	 */
+	protected void start()
+	{
+		m_threadStop = false;
+
+		m_thread = new Thread(this, getClass().getName());
+		m_thread.start();
+
+		if (m_priorityEventQueue != null)
+		{
+			m_priorityThread = new Thread(new PriorityWriter(), getClass().getName() + ".priority");
+			m_priorityThread.start();
+		}
+	}
+
+	/**
+	 * Stop the clean and report thread.
+	 */
+	protected void stop()
+	{
+		if (m_thread == null) return;
+
+		// signal the thread to stop
+		m_threadStop = true;
+
+		// wake up the thread
+		m_thread.interrupt();
+
+		m_thread = null;
+
+		if (m_priorityThread != null)
+		{
+			m_priorityThread.interrupt();
+			m_priorityThread = null;
+		}
+	}
+
+	/**
+	 * PriorityWriter writes the priority events as soon as they are posted, waiting only a moment to gather up any that come along together.
+	 */
+	protected class PriorityWriter implements Runnable
+	{
+		public void run()
+		{
+			while (!m_threadStop)
+			{
+				try
+				{
+					// wait for a priority event
+					synchronized (m_priorityEventQueue)
+					{
+						while (m_priorityEventQueue.isEmpty() && !m_threadStop)
+						{
+							m_priorityEventQueue.wait();
+						}
+					}
+
+					// let any others posted along with it join the write
+					if (m_priorityWriteDelay > 0) Thread.sleep(m_priorityWriteDelay);
+				}
+				catch (InterruptedException e)
+				{
+					// we are being stopped - write what we have
+				}
+
+				Collection myEvents = new ArrayList();
+				synchronized (m_priorityEventQueue)
+				{
+					myEvents.addAll(m_priorityEventQueue);
+					m_priorityEventQueue.clear();
+				}
+
+				if (myEvents.size() > 0)
+				{
+					try
+					{
+						if (M_log.isDebugEnabled()) M_log.debug("writing " + myEvents.size() + " priority events");
+						writeBatchEvents(myEvents);
+					}
+					catch (Throwable t)
+					{
+						M_log.warn("PriorityWriter: will continue: ", t);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the event checking thread.
+	 */
+	public void run()
+	{
+		// since we might be running while the component manager is still being created and populated, such as at server startup, wait here for a
+		// complete component manager
+		ComponentManager.waitTillConfigured();
+
+		// find the latest event in the db
+		initLastEvent();
+
+		// loop till told to stop
+		while ((!m_threadStop) && (!Thread.currentThread().isInterrupted()))
+		{
+			final String serverInstance = serverConfigurationService().getServerIdInstance();
+			final String serverId = serverConfigurationService().getServerId();
+
+			try
+			{
+				// write any batched events
+				Collection myEvents = new Vector();
+				if (m_batchWrite)
+				{
+					synchronized (m_eventQueue)
+					{
+						if (m_eventQueue.size() > 0)
+						{
+							myEvents.addAll(m_eventQueue);
+							m_eventQueue.clear();
+						}
+					}
+
+					if (myEvents.size() > 0)
+					{
+						if (M_log.isDebugEnabled()) M_log.debug("writing " + myEvents.size() + " batched events");
+						writeBatchEvents(myEvents);
+					}
+				}
+
+				// publish the export file if it has been open long enough
+				if (m_eventExport != null)
+				{
+					m_eventExport.check();
+				}
+
+				if (M_log.isDebugEnabled()) M_log.debug("checking for events > " + m_lastEventSeq);
+				// check the db for new events
+				// Note: the events may not all have sessions, so to get them we need an outer join.
+				// TODO: switch to a "view" read once that's established, for now, a join -ggolden
+				String statement = clusterEventTrackingServiceSql.getEventSql();
+
+				// we might want a left join, which would get us records from non-sessions, which the above mysql code does NOT give -ggolden
+				// select e.EVENT_ID,e.EVENT_DATE,e.EVENT,e.REF,e.SESSION_ID,e.EVENT_CODE,s.SESSION_SERVER
+				// from SAKAI_EVENT e
+				// left join SAKAI_SESSION s on (e.SESSION_ID = s.SESSION_ID)
+				// where EVENT_ID > 0
+
+				// send in the last seq number parameter
+				Object[] fields = new Object[1];
+				fields[0] = new Long(m_lastEventSeq);
+
+				// if our observers are interested in only some events, read just those, up to the latest event now in the db
+				long pollStart = System.currentTimeMillis();
+				List<EventFilter> interest = pollInterest();
+				long upTo = -1;
+				if (interest != null)
+				{
+					upTo = maxEventId();
+					if (interest.isEmpty() || (upTo <= m_lastEventSeq))
+					{
+						statement = null;
+					}
+					else
+					{
+						statement = m_pollInterestSql;
+						List<Object> interestFields = new ArrayList<Object>();
+						interestFields.add(new Long(m_lastEventSeq));
+						interestFields.add(new Long(upTo));
+						interestFields.addAll(m_pollInterestFields);
+						fields = interestFields.toArray();
+					}
+				}
+
+				// the highest event seq number seen in this batch - we only move on past it once the batch is dispatched
+				final long[] batchSeq = new long[] {Math.max(m_lastEventSeq, upTo)};
+
+				// session and user id strings, shared between the events of this batch
+				final Map<String, String> shared = new HashMap<String, String>();
+
+				List events = (statement == null) ? new ArrayList() : sqlService().dbRead(statement, fields, new SqlReader()
+				{
+					public Object readSqlResultRecord(ResultSet result)
+					{
+						try
+						{
+							// read the Event
+							long id = result.getLong(1);
+							long date = result.getTimestamp(2, sqlService().getCal()).getTime();
+							String function = readFunction(result, 3, 8);
+							String ref = result.getString(4);
+							String session = result.getString(5);
+							String code = result.getString(6);
+							String eventSessionServerId = result.getString(7);
+
+							// for each one (really, for the last one), update the last event seen seq number
+							if (id > batchSeq[0])
+							{
+								batchSeq[0] = id;
+							}
+
+							boolean nonSessionEvent = session.startsWith("~");
+							String userId = null;
+							boolean skipIt = false;
+
+							if (nonSessionEvent)
+							{
+								String[] parts = StringUtil.split(session, "~");
+								userId = parts[2];
+
+								// the user timeline looks for this server's sessionless events, from now on
+								if (!m_timelineServers.containsKey(parts[1])) m_timelineServers.put(parts[1], Boolean.TRUE);
+
+								// we skip this event if it came from our server
+								skipIt = serverId.equals(parts[1]);
+							}
+
+							// for session events, if the event is from this server instance,
+							// we have already processed it and can skip it here.
+							else
+							{
+								skipIt = serverInstance.equals(eventSessionServerId);
+							}
+
+							if (skipIt)
+							{
+								return null;
+							}
+
+							// Note: events from outside the server don't need notification info, since notification is processed only on internal
+							// events -ggolden
+							BaseEvent event = new BaseEvent(id, function, ref, code.equals("m"), NotificationService.NOTI_NONE);
+							event.m_time = date;
+							if (nonSessionEvent)
+							{
+								event.setUserId(share(shared, userId));
+							}
+							else
+							{
+								event.setSessionId(share(shared, session));
+							}
+
+							return event;
+						}
+						catch (SQLException ignore)
+						{
+							return null;
+						}
+					}
+				});
+
+				recordDbLatency(System.currentTimeMillis() - pollStart);
+
+				// for each new event found, notify observers
+				dispatchRemoteEvents(events);
+
+				m_lastEventSeq = batchSeq[0];
+			}
+			catch (Throwable e)
+			{
+				M_log.warn("run: will continue: ", e);
+			}
+
+			// take a small nap
+			try
+			{
+				Thread.sleep(m_period);
+			}
+			catch (Exception ignore)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Work out the events from other servers to poll for, if our observers have changed since we last did.
+	 * 
+	 * @return The filters of the events some observer is interested in (empty if none are), or null to poll for all events.
+	 */
+	protected List<EventFilter> pollInterest()
+	{
+		int changes = m_observerChanges.get();
+		if (changes == m_pollInterestChanges) return m_pollInterest;
+		m_pollInterestChanges = changes;
+
+		List<EventFilter> interest = remoteInterest();
+		StringBuilder criteria = new StringBuilder();
+		List<Object> fields = new ArrayList<Object>();
+		if (interest != null)
+		{
+			for (Iterator<EventFilter> i = interest.iterator(); i.hasNext();)
+			{
+				EventFilter filter = i.next();
+
+				// the normalized schema has no function names to match
+				String[] functions = m_normalizedSchema ? null : filter.getFunctionPrefixes();
+				String sql = clusterEventTrackingServiceSql.getEventInterestSql((functions == null) ? 0 : functions.length,
+						filter.getResourcePrefix() != null, filter.getModifyOnly());
+
+				// one observer wants (nearly) all the events, so we all get them
+				if (sql == null)
+				{
+					interest = null;
+					break;
+				}
+
+				if (criteria.length() > 0) criteria.append(" or ");
+				criteria.append("(").append(sql).append(")");
+				if (functions != null)
+				{
+					for (int f = 0; f < functions.length; f++)
+					{
+						fields.add(functions[f] + "%");
+					}
+				}
+				if (filter.getResourcePrefix() != null) fields.add(filter.getResourcePrefix() + "%");
+			}
+		}
+
+		m_pollInterest = interest;
+		m_pollInterestSql = (interest == null) ? null : clusterEventTrackingServiceSql.getFilteredEventSql(criteria.toString());
+		m_pollInterestFields = fields;
+
+		if (M_log.isDebugEnabled()) M_log.debug(this + ".pollInterest: " + ((interest == null) ? "all events" : interest.toString()));
+
+		return m_pollInterest;
+	}
+
+	/**
+	 * Find the largest event id in the db.
+	 * 
+	 * @return The largest event id, or -1 if there are no events.
+	 */
+	protected long maxEventId()
+	{
+		final long[] rv = new long[] {-1};
+		sqlService().dbRead(clusterEventTrackingServiceSql.getMaxEventIdSql(), null, new SqlReader()
+		{
+			public Object readSqlResultRecord(ResultSet result)
+			{
+				try
+				{
+					long id = result.getLong(1);
+					if (!result.wasNull()) rv[0] = id;
+				}
+				catch (SQLException ignore)
+				{
+				}
+				return null;
+			}
+		});
+
+		return rv[0];
+	}
+
+	/**
+	 * Find the copy of a string already in use in a set of strings being shared, or start sharing this one.
+	 * 
+	 * @param shared
+	 *        The shared strings, keyed by themselves.
+	 * @param value
+	 *        The string value.
+	 * @return The shared copy of the value.
+	 */
+	protected String share(Map<String, String> shared, String value)
+	{
+		if (value == null) return null;
+
+		String rv = shared.get(value);
+		if (rv == null)
+		{
+			shared.put(value, value);
+			rv = value;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Notify observers of a batch of events read from the db that were posted by other cluster members. With more than one dispatch thread, the events are
+	 * partitioned by resource across the dispatch pool, and this waits until the whole batch has been dispatched.
+	 * 
+	 * @param events
+	 *        The List (Event) of events, in sequence order.
+	 */
+	protected void dispatchRemoteEvents(List events)
+	{
+		if ((m_dispatchExecutor == null) || (events.size() < 2))
+		{
+			dispatchRemoteEvents(events.iterator());
+			return;
+		}
+
+		// partition by resource, keeping the events for any one resource in sequence order
+		List[] partitions = new List[m_dispatchThreads];
+		for (Iterator i = events.iterator(); i.hasNext();)
+		{
+			Event event = (Event) i.next();
+			int partition = (event.getResource().hashCode() & 0x7fffffff) % partitions.length;
+			if (partitions[partition] == null)
+			{
+				partitions[partition] = new ArrayList();
+			}
+			partitions[partition].add(event);
+		}
+
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int p = 0; p < partitions.length; p++)
+		{
+			if (partitions[p] == null) continue;
+
+			final List partition = partitions[p];
+			tasks.add(new Callable<Object>()
+			{
+				public Object call()
+				{
+					dispatchRemoteEvents(partition.iterator());
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			m_dispatchExecutor.invokeAll(tasks);
+		}
+		catch (InterruptedException e)
+		{
+			// we are being stopped
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Notify observers, in order, of events that were posted by other cluster members.
+	 * 
+	 * @param events
+	 *        The Iterator (Event) of events to dispatch.
+	 */
+	protected void dispatchRemoteEvents(Iterator events)
+	{
+		while (events.hasNext())
+		{
+			Event event = (Event) events.next();
+			try
+			{
+				notifyObservers(event, false);
+			}
+			catch (Throwable t)
+			{
+				M_log.warn("dispatchRemoteEvents, notifyObservers(), event: " + event.toString(), t);
+			}
+		}
+	}
+
+	/**
+	 * Check the db for the largest event seq number, and set this as the one after which we will next get event.
+	 */
+	protected void initLastEvent()
+	{
+		String statement = clusterEventTrackingServiceSql.getMaxEventIdSql();
+
+		sqlService().dbRead(statement, null, new SqlReader()
+		{
+			public Object readSqlResultRecord(ResultSet result)
+			{
+				try
+				{
+					// read the one long value into our last event seq number
+					m_lastEventSeq = result.getLong(1);
+				}
+				catch (SQLException ignore)
+				{
+				}
+				return null;
+			}
+		});
+
+		if (M_log.isDebugEnabled()) M_log.debug(this + " Starting (after) Event #: " + m_lastEventSeq);
+	}
+	
+	/**
+	 * Removes old events from the database.<br />
+	 * The events are archived and deleted a range of event ids at a time, oldest first, committing each range, so the live event writes are not held
+	 * up for long. Each run starts from the oldest event left, so an interrupted cleanup just picks up where it left off next time.
+	 */
+	public void cleanupEvents()
+	{
+		if (keepEventsDuration < 1000*60*60*24) {
+			M_log.warn("You aren't keeping your events for more than a day, this is not recommended.");
+			if (keepEventsDuration < 1000*60) {
+				M_log.error("You aren't keeping your events for more than a minute, refusing to run.");
+				return;
+			}
+		}
+		final Time deleteBefore = timeService().newTime(System.currentTimeMillis()- keepEventsDuration);
+
+		if (m_partitionRetention && (clusterEventTrackingServiceSql.getEventPartitionsSql() != null))
+		{
+			List partitions = sqlService().dbRead(clusterEventTrackingServiceSql.getEventPartitionsSql());
+			if ((partitions != null) && partitions.contains(MAX_PARTITION))
+			{
+				cleanupEventPartitions(partitions, deleteBefore);
+				return;
+			}
+
+			M_log.warn("cleanupEvents: partition retention is configured but SAKAI_EVENT is not partitioned, removing events by event id");
+		}
+
+		long total = 0;
+		int chunks = 0;
+		long start = nextEventId(0);
+		while (start >= 0)
+		{
+			long end = start + m_cleanupChunkSize;
+			int count = cleanupEventChunk(start, end, deleteBefore);
+			if (count < 0)
+			{
+				M_log.error("Failed to cleanup old events, stopped at event id: " + start + " after removing: " + total);
+				return;
+			}
+
+			// the oldest events left are not old enough
+			if (count == 0) break;
+
+			total += count;
+			chunks++;
+			if ((chunks % 10) == 0)
+			{
+				M_log.info("cleanupEvents: removed " + total + " events so far, up to event id: " + end);
+			}
+
+			start = nextEventId(end);
+
+			if ((start >= 0) && !cleanupPause())
+			{
+				M_log.warn("cleanupEvents: stopped after removing " + total + " events, up to event id: " + end);
+				return;
+			}
+		}
+
+		M_log.info("cleanupEvents: removed " + total + " events from before " + deleteBefore.toStringGmtFull() + " in " + chunks + " chunks");
+	}
+
+	/** The name of the SAKAI_EVENT partition that takes all events beyond the last dated partition. */
+	protected static final String MAX_PARTITION = "PMAX";
+
+	/**
+	 * Removes old events by dropping the SAKAI_EVENT partitions that hold only events from before the cutoff, archiving them first if we are
+	 * archiving, and makes sure the partitions for the coming periods are ready.<br />
+	 * Each partition is named "P" followed by the (exclusive) upper bound of its EVENT_DATE, as yyyyMMdd GMT, so partitions are only dropped once
+	 * all of their events are old enough.
+	 * 
+	 * @param partitions
+	 *        The names of the current partitions, in order.
+	 * @param deleteBefore
+	 *        Only events from before this time are removed.
+	 */
+	protected void cleanupEventPartitions(List partitions, Time deleteBefore)
+	{
+		SimpleDateFormat nameFormat = new SimpleDateFormat("'P'yyyyMMdd");
+		nameFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		SimpleDateFormat boundFormat = new SimpleDateFormat("yyyy-MM-dd");
+		boundFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+		// split the partitions for this and the coming periods off PMAX, past the last dated partition
+		String last = null;
+		for (Iterator i = partitions.iterator(); i.hasNext();)
+		{
+			String name = (String) i.next();
+			if (!MAX_PARTITION.equals(name)) last = name;
+		}
+
+		Calendar bound = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+		bound.setTimeInMillis(System.currentTimeMillis());
+		for (int n = 0; n <= m_partitionsAhead; n++)
+		{
+			nextPartitionBound(bound);
+			String name = nameFormat.format(bound.getTime());
+			if ((last != null) && (name.compareTo(last) <= 0)) continue;
+
+			if (!sqlService().dbWrite(clusterEventTrackingServiceSql.getAddEventPartitionSql(name, boundFormat.format(bound.getTime()))))
+			{
+				M_log.warn("cleanupEvents: failed to add event partition: " + name);
+				break;
+			}
+			M_log.info("cleanupEvents: added event partition: " + name);
+		}
+
+		// drop the partitions that end on or before the cutoff
+		int dropped = 0;
+		for (Iterator i = partitions.iterator(); i.hasNext();)
+		{
+			String name = (String) i.next();
+			if (MAX_PARTITION.equals(name)) continue;
+
+			long end = 0;
+			try
+			{
+				end = nameFormat.parse(name).getTime();
+			}
+			catch (Exception e)
+			{
+				M_log.warn("cleanupEvents: skipping unrecognized event partition: " + name);
+				continue;
+			}
+
+			// partitions are in date order
+			if (end > deleteBefore.getTime()) break;
+
+			boolean archived = true;
+			if (archiveEvents)
+			{
+				// the older partitions are gone, so the events before the partition's end are just those in the partition
+				archived = (m_eventArchive != null) ? (archiveEventRange(null, 0, Long.MAX_VALUE, timeService().newTime(end)) >= 0)
+						: archiveEventPartition(name);
+			}
+			if (!archived)
+			{
+				M_log.error("Failed to archive old event partition: " + name + ", not dropping it");
+				break;
+			}
+
+			if (!sqlService().dbWrite(clusterEventTrackingServiceSql.getDropEventPartitionSql(name)))
+			{
+				M_log.error("Failed to drop old event partition: " + name);
+				break;
+			}
+			dropped++;
+
+			if (!cleanupPause())
+			{
+				M_log.warn("cleanupEvents: stopped after dropping " + dropped + " event partitions");
+				return;
+			}
+		}
+
+		M_log.info("cleanupEvents: dropped " + dropped + " event partitions from before " + deleteBefore.toStringGmtFull());
+	}
+
+	/**
+	 * Copy the events of a SAKAI_EVENT partition to SAKAI_EVENT_ARCHIVE, a range of cleanupChunkSize event ids at a time, committing each range and
+	 * pausing between them as the rest of the cleanup does. Events already archived are skipped, so a partition whose archive was interrupted, or
+	 * whose drop failed, can be archived again.
+	 * 
+	 * @param name
+	 *        The partition name.
+	 * @return true if the whole partition is archived, false if not (or partitions cannot be archived on this db).
+	 */
+	protected boolean archiveEventPartition(String name)
+	{
+		String rangeSql = clusterEventTrackingServiceSql.getEventPartitionRangeSql(name);
+		String archiveSql = clusterEventTrackingServiceSql.getArchiveEventPartitionSql(name);
+		if ((rangeSql == null) || (archiveSql == null))
+		{
+			M_log.warn("cleanupEvents: event partitions cannot be archived on this db");
+			return false;
+		}
+
+		final long[] range = new long[] {-1, -1};
+		sqlService().dbRead(rangeSql, null, new SqlReader()
+		{
+			public Object readSqlResultRecord(ResultSet result)
+			{
+				try
+				{
+					long min = result.getLong(1);
+					if (!result.wasNull())
+					{
+						range[0] = min;
+						range[1] = result.getLong(2);
+					}
+				}
+				catch (SQLException e)
+				{
+					M_log.warn(this + ".archiveEventPartition: " + e);
+				}
+				return null;
+			}
+		});
+
+		// an empty partition
+		if (range[0] < 0) return true;
+
+		for (long start = range[0]; start <= range[1]; start += m_cleanupChunkSize)
+		{
+			if (!sqlService().dbWrite(archiveSql, new Object[] {new Long(start), new Long(start + m_cleanupChunkSize)}))
+			{
+				return false;
+			}
+
+			if (!cleanupPause())
+			{
+				M_log.warn("cleanupEvents: stopped archiving event partition: " + name + " at event id: " + (start + m_cleanupChunkSize));
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Pause between cleanup transactions, to let the live event writes and polls through. The pause is cleanupChunkPause while the live queries are
+	 * within the latency target, and grows with the square of how far over the target they are.
+	 * 
+	 * @return true to carry on with the cleanup, false if it was interrupted or has run out of time.
+	 */
+	protected boolean cleanupPause()
+	{
+		long pause = m_cleanupChunkPause;
+		double latency = m_dbLatency;
+		if ((m_cleanupLatencyTarget > 0) && (latency > m_cleanupLatencyTarget))
+		{
+			double over = latency / m_cleanupLatencyTarget;
+			pause = Math.min(MAX_CLEANUP_PAUSE, (long) (Math.max(pause, 100L) * over * over));
+			if (M_log.isDebugEnabled()) M_log.debug("cleanupPause: live db latency: " + (long) latency + "ms, pausing: " + pause + "ms");
+		}
+
+		if (pause > 0)
+		{
+			try
+			{
+				Thread.sleep(pause);
+			}
+			catch (InterruptedException e)
+			{
+				return false;
+			}
+		}
+
+		return (m_cleanupDeadline == 0) || (System.currentTimeMillis() < m_cleanupDeadline);
+	}
+
+	/**
+	 * CleanupScheduler runs the event and session cleanup once a day, in the cleanup window, on one server of the cluster at a time.<br />
+	 * The servers compete for the day's run through the cleanup row in SAKAI_EVENT_MAINTENANCE: a server claims it with an update that only succeeds if
+	 * the cleanup has not run since the window opened and no other server holds it. The claim is held until the window closes, so the claim of a
+	 * server that fails part way lapses by the next day's window.
+	 */
+	protected class CleanupScheduler implements Runnable
+	{
+		public void run()
+		{
+			ComponentManager.waitTillConfigured();
+
+			// make sure our row is there
+			List rows = sqlService().dbRead(clusterEventTrackingServiceSql.getMaintenanceSql(), new Object[] {CLEANUP_TASK}, null);
+			if ((rows == null) || rows.isEmpty())
+			{
+				// if another server got there first, our claims just compete for its row
+				sqlService().dbWrite(clusterEventTrackingServiceSql.getInsertMaintenanceSql(), new Object[] {CLEANUP_TASK});
+			}
+
+			while (!m_threadStop && !Thread.currentThread().isInterrupted())
+			{
+				try
+				{
+					long[] window = cleanupWindow(System.currentTimeMillis());
+					if (window != null)
+					{
+						runScheduledCleanup(window[0], window[1]);
+					}
+
+					Thread.sleep(60L * 1000L);
+				}
+				catch (InterruptedException e)
+				{
+					break;
+				}
+				catch (Throwable t)
+				{
+					M_log.warn("CleanupScheduler: will continue: ", t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the cleanup window we are in.
+	 * 
+	 * @param now
+	 *        The time, in ms since the epoch.
+	 * @return The start and end (ms since the epoch) of the window now is in, or null if now is outside the window.
+	 */
+	protected long[] cleanupWindow(long now)
+	{
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(now);
+		int minute = cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+
+		int length = m_cleanupWindowEnd - m_cleanupWindowStart;
+		if (length <= 0) length += 24 * 60;
+
+		// how far into the window we are, if it opened today or (spanning midnight) yesterday
+		int into = minute - m_cleanupWindowStart;
+		if (into < 0) into += 24 * 60;
+		if (into >= length) return null;
+
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		cal.add(Calendar.MINUTE, -into);
+		long start = cal.getTimeInMillis();
+		cal.add(Calendar.MINUTE, length);
+
+		return new long[] {start, cal.getTimeInMillis()};
+	}
+
+	/**
+	 * Run the event and session cleanup, if this server can claim this window's run.
+	 * 
+	 * @param windowStart
+	 *        When the cleanup window opened, in ms since the epoch.
+	 * @param windowEnd
+	 *        When the cleanup window closes, in ms since the epoch.
+	 */
+	protected void runScheduledCleanup(long windowStart, long windowEnd)
+	{
+		String serverId = serverConfigurationService().getServerId();
+
+		// the segment file archive is kept all on one server, if so configured
+		if ((m_eventArchive != null) && (m_archiveServer != null) && !m_archiveServer.equals(serverId)) return;
+
+		Time now = timeService().newTime();
+		Object[] fields = new Object[] {serverId, timeService().newTime(windowEnd), now, CLEANUP_TASK, now, timeService().newTime(windowStart)};
+
+		// claim the run, only if no one has run it since the window opened and no one holds it
+		if (!claimMaintenance(fields)) return;
+
+		M_log.info("runScheduledCleanup: running the event and session cleanup until: " + timeService().newTime(windowEnd).toStringLocalFull());
+		m_cleanupDeadline = windowEnd;
+		try
+		{
+			cleanupEvents();
+
+			// the sessions are paced, and stopped at the window's end, as the events are
+			if ((m_cleanupDeadline == 0) || (System.currentTimeMillis() < m_cleanupDeadline))
+			{
+				usageSessionService().cleanupSessions(new Callable<Boolean>()
+				{
+					public Boolean call()
+					{
+						return Boolean.valueOf(cleanupPause());
+					}
+				});
+			}
+		}
+		finally
+		{
+			m_cleanupDeadline = 0;
+
+			// let go of the claim, keeping the record of the run
+			sqlService().dbWrite(clusterEventTrackingServiceSql.getReleaseMaintenanceSql(),
+					new Object[] {timeService().newTime(), CLEANUP_TASK, serverId});
+		}
+	}
+
+	/**
+	 * Try to claim a maintenance task with a compare-and-set update of its row.
+	 * 
+	 * @param fields
+	 *        The bind values for the claim sql.
+	 * @return true if we claimed it, false if not.
+	 */
+	protected boolean claimMaintenance(Object[] fields)
+	{
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try
+		{
+			conn = sqlService().borrowConnection();
+			stmt = conn.prepareStatement(clusterEventTrackingServiceSql.getClaimMaintenanceSql());
+			stmt.setString(1, (String) fields[0]);
+			for (int i = 1; i < fields.length; i++)
+			{
+				if (fields[i] instanceof Time)
+				{
+					stmt.setTimestamp(i + 1, new Timestamp(((Time) fields[i]).getTime()), sqlService().getCal());
+				}
+				else
+				{
+					stmt.setString(i + 1, (String) fields[i]);
+				}
+			}
+
+			// autocommit - the claim stands on its own
+			return stmt.executeUpdate() == 1;
+		}
+		catch (Throwable e)
+		{
+			M_log.warn(this + ".claimMaintenance: " + e);
+			return false;
+		}
+		finally
+		{
+			if (stmt != null)
+			{
+				try
+				{
+					stmt.close();
+				}
+				catch (Exception e)
+				{
+				}
+			}
+			if (conn != null)
+			{
+				sqlService().returnConnection(conn);
+			}
+		}
+	}
+
+	/**
+	 * Copy the old events in a range of event ids to the segment file archive. The events are streamed from the db to the archive, and are safe in the
+	 * archive once this returns.
+	 * 
+	 * @param conn
+	 *        The db connection to read with, or null to use any.
+	 * @param start
+	 *        The first event id of the range.
+	 * @param end
+	 *        The event id after the last of the range.
+	 * @param deleteBefore
+	 *        Only events from before this time are archived.
+	 * @return The number of events archived, or -1 if it failed.
+	 */
+	protected long archiveEventRange(Connection conn, long start, long end, Time deleteBefore)
+	{
+		final EventArchive.Writer writer = m_eventArchive.open();
+		final IOException[] failure = new IOException[1];
+		final long[] count = new long[1];
+
+		Object[] fields = new Object[] {new Long(start), new Long(end), deleteBefore};
+		SqlReader reader = new SqlReader()
+		{
+			public Object readSqlResultRecord(ResultSet result)
+			{
+				if (failure[0] != null) return null;
+				try
+				{
+					long id = result.getLong(1);
+					long date = result.getTimestamp(2, sqlService().getCal()).getTime();
+					String code = result.getString(6);
+
+					// the session id is kept as is, including the server and user of non-session events
+					BaseEvent event = new BaseEvent(id, readFunction(result, 3, 7), result.getString(4), "m".equals(code), NotificationService.NOTI_NONE);
+					event.setSessionId(result.getString(5));
+					writer.write(id, date, event);
+					count[0]++;
+				}
+				catch (SQLException e)
+				{
+					failure[0] = new IOException(e.toString());
+				}
+				catch (IOException e)
+				{
+					failure[0] = e;
+				}
+
+				// we keep nothing in memory
+				return null;
+			}
+		};
+
+		String statement = clusterEventTrackingServiceSql.getOldEventChunkSql();
+		if (conn != null)
+		{
+			sqlService().dbRead(conn, statement, fields, reader);
+		}
+		else
+		{
+			sqlService().dbRead(statement, fields, reader);
+		}
+
+		try
+		{
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			if (failure[0] == null) failure[0] = e;
+		}
+
+		if (failure[0] != null)
+		{
+			M_log.warn(this + ".archiveEventRange: " + failure[0]);
+			return -1;
+		}
+
+		return count[0];
+	}
+
+	/**
+	 * Read the events archived to segment files from a range of time, in the order they were archived. Each event is sent to the observer's
+	 * update(), with a null Observable. The archive directory is read as this server sees it: see setArchiveDirectory().<br />
+	 * Events from sessions carry the session id; events posted outside a session carry their user id.
+	 * 
+	 * @param from
+	 *        The earliest event time to read.
+	 * @param to
+	 *        The time after the last event to read.
+	 * @param observer
+	 *        The observer to send the events to.
+	 * @return The number of events read, or -1 if there is no segment file archive or it cannot be read.
+	 */
+	public long readArchivedEvents(Time from, Time to, Observer observer)
+	{
+		if (m_eventArchive == null) return -1;
+
+		try
+		{
+			return m_eventArchive.read(from.getTime(), to.getTime(), storedEventFactory(), observer);
+		}
+		catch (IOException e)
+		{
+			M_log.warn(this + ".readArchivedEvents: " + e);
+			return -1;
+		}
+	}
+
+	/**
+	 * @return A factory for the events read back from the segment file archive.
+	 */
+	protected EventCodec.Factory storedEventFactory()
+	{
+		return new EventCodec.Factory()
+		{
+			public Event newEvent(long seq, long time, String function, String resource, String sessionId, String userId, boolean modify,
+					int priority)
+			{
+				BaseEvent event = newStoredEvent(seq, time, function, resource, sessionId, modify);
+				if (event.getUserId() == null) event.setUserId(userId);
+				return event;
+			}
+		};
+	}
+
+	/**
+	 * Make an event read back from storage.
+	 * 
+	 * @param seq
+	 *        The event id.
+	 * @param time
+	 *        The event time, in ms since the epoch.
+	 * @param function
+	 *        The event function.
+	 * @param ref
+	 *        The event resource reference.
+	 * @param session
+	 *        The stored session id: the session id, or ~server~user for events posted outside a session.
+	 * @param modify
+	 *        The modify flag.
+	 * @return The event, with its session id, or its user id for events posted outside a session.
+	 */
+	protected BaseEvent newStoredEvent(long seq, long time, String function, String ref, String session, boolean modify)
+	{
+		BaseEvent event = new BaseEvent(seq, function, ref, modify, NotificationService.NOTI_NONE);
+		event.m_time = time;
+		if ((session != null) && session.startsWith("~"))
+		{
+			// ~server~user
+			String[] parts = StringUtil.split(session, "~");
+			event.setUserId(parts[2]);
+		}
+		else
+		{
+			event.setSessionId(session);
+		}
+
+		return event;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected void flushEvents()
+	{
+		if (!m_batchWrite) return;
+
+		Collection events = new Vector();
+		synchronized (m_eventQueue)
+		{
+			events.addAll(m_eventQueue);
+			m_eventQueue.clear();
+		}
+		if (m_priorityEventQueue != null)
+		{
+			synchronized (m_priorityEventQueue)
+			{
+				events.addAll(m_priorityEventQueue);
+				m_priorityEventQueue.clear();
+			}
+		}
+
+		if (events.size() > 0) writeBatchEvents(events);
+	}
+
+	/**
+	 * {@inheritDoc}<br />
+	 * Events older than those in SAKAI_EVENT are read from the segment file archive, if there is one, else from SAKAI_EVENT_ARCHIVE, if we are
+	 * archiving. Each table is read in pages of event ids, so no page holds more than REPLAY_PAGE events.
+	 */
+	protected long replayStored(long afterSeq, EventFilter filter, Observer observer)
+	{
+		long last = afterSeq;
+
+		// the archived events, if the replay starts before the events still in the db
+		long first = nextEventId(0);
+		if (first < 0) first = Long.MAX_VALUE;
+		if (last + 1 < first)
+		{
+			if (m_eventArchive != null)
+			{
+				try
+				{
+					last = m_eventArchive.readSeq(last, first, storedEventFactory(), new ReplayFilter(filter, observer));
+				}
+				catch (IOException e)
+				{
+					M_log.warn(this + ".replayStored: " + e);
+				}
+			}
+			else if (archiveEvents)
+			{
+				last = replayTable("SAKAI_EVENT_ARCHIVE", last, first, filter, observer);
+			}
+		}
+
+		// then those in the db
+		return replayTable("SAKAI_EVENT", last, Long.MAX_VALUE, filter, observer);
+	}
+
+	/**
+	 * Send a replay observer the events in a range of event ids in a table, in event id order, a page at a time.
+	 * 
+	 * @param table
+	 *        The table.
+	 * @param afterSeq
+	 *        Send the events after this event id.
+	 * @param beforeSeq
+	 *        Send the events before this event id.
+	 * @param filter
+	 *        If not null, send only events it accepts.
+	 * @param observer
+	 *        The observer.
+	 * @return The id of the last event read, or afterSeq if there were none.
 	 */
-	protected void start()
+	protected long replayTable(String table, long afterSeq, long beforeSeq, final EventFilter filter, final Observer observer)
 	{
-		m_threadStop = false;
+		String statement = clusterEventTrackingServiceSql.getReplayEventsSql(table, REPLAY_PAGE);
+		final long[] last = new long[] {afterSeq};
 
-		m_thread = new Thread(this, getClass().getName());
-		m_thread.start();
+		while (true)
+		{
+			final int[] count = new int[1];
+			Object[] fields = new Object[] {new Long(last[0]), new Long(beforeSeq)};
+			sqlService().dbRead(statement, fields, new SqlReader()
+			{
+				public Object readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						long id = result.getLong(1);
+						long date = result.getTimestamp(2, sqlService().getCal()).getTime();
+						BaseEvent event = newStoredEvent(id, date, readFunction(result, 3, 7), result.getString(4), result.getString(5), "m".equals(result
+								.getString(6)));
+
+						last[0] = id;
+						count[0]++;
+						if ((filter == null) || filter.accept(event)) observer.update(null, event);
+					}
+					catch (SQLException e)
+					{
+						M_log.warn(this + ".replayTable: " + e);
+					}
+
+					// we keep nothing in memory
+					return null;
+				}
+			});
+
+			if (count[0] < REPLAY_PAGE) break;
+		}
+
+		return last[0];
 	}
 
 	/**
-	 * Stop the clean and report thread.
+	 * {@inheritDoc}
 	 */
-	protected void stop()
+	public long getSessionEvents(String sessionId, long afterSeq, int max, EventFilter filter, Observer observer)
 	{
-		if (m_thread == null) return;
+		String statement = clusterEventTrackingServiceSql.getSessionEventsSql(timelineFunctions(filter), timelineResource(filter),
+				(filter != null) && filter.getModifyOnly(), max);
+		return readTimeline(new String[] {statement}, new Object[][] {new Object[] {sessionId}}, afterSeq, max, filter, null, observer);
+	}
 
-		// signal the thread to stop
-		m_threadStop = true;
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getUserEvents(String userId, long afterSeq, int max, EventFilter filter, Observer observer)
+	{
+		int functions = timelineFunctions(filter);
+		boolean resource = timelineResource(filter);
+		boolean modify = (filter != null) && filter.getModifyOnly();
+
+		// the user's events without a session are stored under ~server~user: these are read by exact id, in a query of their own, so that
+		// both reads use the SESSION_ID index
+		List<String> sessionless = new ArrayList<String>();
+		for (String server : m_timelineServers.keySet())
+		{
+			sessionless.add("~" + server + "~" + userId);
+		}
 
-		// wake up the thread
-		m_thread.interrupt();
+		String[] statements = new String[] {clusterEventTrackingServiceSql.getUserEventsSql(functions, resource, modify, max),
+				clusterEventTrackingServiceSql.getSessionlessEventsSql(sessionless.size(), functions, resource, modify, max)};
+		Object[][] ids = new Object[][] {new Object[] {userId}, sessionless.toArray()};
 
-		m_thread = null;
+		return readTimeline(statements, ids, afterSeq, max, filter, userId, observer);
 	}
 
 	/**
-	 * Run the event checking thread.
+	 * @return The number of function prefixes of a timeline filter.
 	 */
-	public void run()
+	protected int timelineFunctions(EventFilter filter)
 	{
-		// since we might be running while the component manager is still being created and populated, such as at server startup, wait here for a
-		// complete component manager
-		ComponentManager.waitTillConfigured();
+		// the normalized schema has no function names to match: the filter does it
+		if (m_normalizedSchema || (filter == null) || (filter.getFunctionPrefixes() == null)) return 0;
+		return filter.getFunctionPrefixes().length;
+	}
 
-		// find the latest event in the db
-		initLastEvent();
+	/**
+	 * @return true if a timeline filter has a resource prefix.
+	 */
+	protected boolean timelineResource(EventFilter filter)
+	{
+		return (filter != null) && (filter.getResourcePrefix() != null);
+	}
 
-		// loop till told to stop
-		while ((!m_threadStop) && (!Thread.currentThread().isInterrupted()))
+	/**
+	 * Read a page of a session or user timeline, sending the events to an observer. The page may be read with more than one query, each for its own
+	 * events: the pages they read are merged in event id order.
+	 * 
+	 * @param statements
+	 *        The timeline queries.
+	 * @param ids
+	 *        For each query, the bind values that pick its events.
+	 * @param afterSeq
+	 *        Read the events after this event id.
+	 * @param max
+	 *        The page size the queries are limited to.
+	 * @param filter
+	 *        The filter, or null; its prefixes are matched by the queries with like, so each event is checked again here.
+	 * @param userId
+	 *        The user id to give the events, or null.
+	 * @param observer
+	 *        The observer.
+	 * @return The event id to read the next page after, or -1 if there are no more events.
+	 */
+	protected long readTimeline(String[] statements, Object[][] ids, long afterSeq, int max, EventFilter filter, final String userId,
+			Observer observer)
+	{
+		final TreeMap<Long, BaseEvent> page = new TreeMap<Long, BaseEvent>();
+		boolean more = false;
+		for (int q = 0; q < statements.length; q++)
 		{
-			final String serverInstance = serverConfigurationService().getServerIdInstance();
-			final String serverId = serverConfigurationService().getServerId();
-
-			try
+			List<Object> fields = new ArrayList<Object>();
+			for (int i = 0; i < ids[q].length; i++)
 			{
-				// write any batched events
-				Collection myEvents = new Vector();
-				if (m_batchWrite)
+				fields.add(ids[q][i]);
+			}
+			fields.add(new Long(afterSeq));
+			if (filter != null)
+			{
+				String[] functions = filter.getFunctionPrefixes();
+				if ((functions != null) && !m_normalizedSchema)
 				{
-					synchronized (m_eventQueue)
-					{
-						if (m_eventQueue.size() > 0)
-						{
-							myEvents.addAll(m_eventQueue);
-							m_eventQueue.clear();
-						}
-					}
-
-					if (myEvents.size() > 0)
+					for (int i = 0; i < functions.length; i++)
 					{
-						if (M_log.isDebugEnabled()) M_log.debug("writing " + myEvents.size() + " batched events");
-						writeBatchEvents(myEvents);
+						fields.add(functions[i] + "%");
 					}
 				}
+				if (filter.getResourcePrefix() != null) fields.add(filter.getResourcePrefix() + "%");
+			}
 
-				if (M_log.isDebugEnabled()) M_log.debug("checking for events > " + m_lastEventSeq);
-				// check the db for new events
-				// Note: the events may not all have sessions, so to get them we need an outer join.
-				// TODO: switch to a "view" read once that's established, for now, a join -ggolden
-				String statement = clusterEventTrackingServiceSql.getEventSql();
-
-				// we might want a left join, which would get us records from non-sessions, which the above mysql code does NOT give -ggolden
-				// select e.EVENT_ID,e.EVENT_DATE,e.EVENT,e.REF,e.SESSION_ID,e.EVENT_CODE,s.SESSION_SERVER
-				// from SAKAI_EVENT e
-				// left join SAKAI_SESSION s on (e.SESSION_ID = s.SESSION_ID)
-				// where EVENT_ID > 0
-
-				// send in the last seq number parameter
-				Object[] fields = new Object[1];
-				fields[0] = new Long(m_lastEventSeq);
-
-				List events = sqlService().dbRead(statement, fields, new SqlReader()
+			final int[] count = new int[1];
+			sqlService().dbRead(statements[q], fields.toArray(), new SqlReader()
+			{
+				public Object readSqlResultRecord(ResultSet result)
 				{
-					public Object readSqlResultRecord(ResultSet result)
+					try
 					{
-						try
-						{
-							// read the Event
-							long id = result.getLong(1);
-							Time date = timeService().newTime(result.getTimestamp(2, sqlService().getCal()).getTime());
-							String function = result.getString(3);
-							String ref = result.getString(4);
-							String session = result.getString(5);
-							String code = result.getString(6);
-							String eventSessionServerId = result.getString(7);
+						long seq = result.getLong(1);
+						long date = result.getTimestamp(2, sqlService().getCal()).getTime();
+						BaseEvent event = newStoredEvent(seq, date, readFunction(result, 3, 7), result.getString(4), result.getString(5), "m"
+								.equals(result.getString(6)));
+						if (userId != null) event.setUserId(userId);
+
+						count[0]++;
+						page.put(new Long(seq), event);
+					}
+					catch (SQLException e)
+					{
+						M_log.warn(this + ".readTimeline: " + e);
+					}
 
-							// for each one (really, for the last one), update the last event seen seq number
-							if (id > m_lastEventSeq)
-							{
-								m_lastEventSeq = id;
-							}
+					// the events are kept in the page, not the reader's list
+					return null;
+				}
+			});
 
-							boolean nonSessionEvent = session.startsWith("~");
-							String userId = null;
-							boolean skipIt = false;
+			// a full page from any query may leave more of its events for the next page
+			if (count[0] >= max) more = true;
+		}
 
-							if (nonSessionEvent)
-							{
-								String[] parts = StringUtil.split(session, "~");
-								userId = parts[2];
+		// send the first page of the merged events: none of those left in a query's results come before the last of these
+		long last = afterSeq;
+		int sent = 0;
+		for (BaseEvent event : page.values())
+		{
+			if (sent == max)
+			{
+				more = true;
+				break;
+			}
+			last = event.m_seq;
+			sent++;
+			if ((filter == null) || filter.accept(event)) observer.update(null, event);
+		}
 
-								// we skip this event if it came from our server
-								skipIt = serverId.equals(parts[1]);
-							}
+		return more ? last : -1;
+	}
 
-							// for session events, if the event is from this server instance,
-							// we have already processed it and can skip it here.
-							else
-							{
-								skipIt = serverInstance.equals(eventSessionServerId);
-							}
+	/**
+	 * ReplayFilter passes on to a replay observer the events its filter accepts.
+	 */
+	protected class ReplayFilter implements Observer
+	{
+		protected EventFilter m_filter = null;
 
-							if (skipIt)
-							{
-								return null;
-							}
+		protected Observer m_observer = null;
 
-							// Note: events from outside the server don't need notification info, since notification is processed only on internal
-							// events -ggolden
-							BaseEvent event = new BaseEvent(id, function, ref, code.equals("m"), NotificationService.NOTI_NONE);
-							if (nonSessionEvent)
-							{
-								event.setUserId(userId);
-							}
-							else
-							{
-								event.setSessionId(session);
-							}
+		public ReplayFilter(EventFilter filter, Observer observer)
+		{
+			m_filter = filter;
+			m_observer = observer;
+		}
 
-							return event;
-						}
-						catch (SQLException ignore)
-						{
-							return null;
-						}
-					}
-				});
+		public void update(Observable o, Object arg)
+		{
+			if ((m_filter == null) || m_filter.accept((Event) arg)) m_observer.update(o, arg);
+		}
+	}
 
-				// for each new event found, notify observers
-				for (int i = 0; i < events.size(); i++)
-				{
-					Event event = (Event) events.get(i);
-					notifyObservers(event, false);
-				}
-			}
-			catch (Throwable e)
-			{
-				M_log.warn("run: will continue: ", e);
-			}
+	/**
+	 * Move a calendar on to the start of the next partition period.
+	 * 
+	 * @param bound
+	 *        The calendar (GMT), moved in place.
+	 */
+	protected void nextPartitionBound(Calendar bound)
+	{
+		bound.set(Calendar.HOUR_OF_DAY, 0);
+		bound.set(Calendar.MINUTE, 0);
+		bound.set(Calendar.SECOND, 0);
+		bound.set(Calendar.MILLISECOND, 0);
 
-			// take a small nap
-			try
-			{
-				Thread.sleep(m_period);
-			}
-			catch (Exception ignore)
+		if ("week".equals(m_partitionPeriod))
+		{
+			// on to the next monday
+			do
 			{
+				bound.add(Calendar.DAY_OF_MONTH, 1);
 			}
+			while (bound.get(Calendar.DAY_OF_WEEK) != Calendar.MONDAY);
+		}
+		else
+		{
+			bound.set(Calendar.DAY_OF_MONTH, 1);
+			bound.add(Calendar.MONTH, 1);
 		}
 	}
 
 	/**
-	 * Check the db for the largest event seq number, and set this as the one after which we will next get event.
+	 * Find the smallest event id in the db at or after this one.
+	 * 
+	 * @param from
+	 *        The event id to start from.
+	 * @return The smallest event id at or after from, or -1 if there is none.
 	 */
-	protected void initLastEvent()
+	protected long nextEventId(long from)
 	{
-		String statement = clusterEventTrackingServiceSql.getMaxEventIdSql();
-
-		sqlService().dbRead(statement, null, new SqlReader()
+		final long[] rv = new long[] {-1};
+		sqlService().dbRead(clusterEventTrackingServiceSql.getMinEventIdSql(), new Object[] {new Long(from)}, new SqlReader()
 		{
 			public Object readSqlResultRecord(ResultSet result)
 			{
 				try
 				{
-					// read the one long value into our last event seq number
-					m_lastEventSeq = result.getLong(1);
+					long id = result.getLong(1);
+					if (!result.wasNull()) rv[0] = id;
 				}
 				catch (SQLException ignore)
 				{
@@ -633,39 +3022,110 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 			}
 		});
 
-		if (M_log.isDebugEnabled()) M_log.debug(this + " Starting (after) Event #: " + m_lastEventSeq);
+		return rv[0];
 	}
-	
+
 	/**
-	 * Removes old events from the database.
+	 * Archive (if we are archiving) and delete the old events in a range of event ids, in one transaction.
+	 * 
+	 * @param start
+	 *        The first event id of the range.
+	 * @param end
+	 *        The event id after the last of the range.
+	 * @param deleteBefore
+	 *        Only events from before this time are removed.
+	 * @return The number of events removed, or -1 if it failed.
 	 */
-	public void cleanupEvents()
+	protected int cleanupEventChunk(long start, long end, Time deleteBefore)
 	{
-		if (keepEventsDuration < 1000*60*60*24) {
-			M_log.warn("You aren't keeping your events for more than a day, this is not recommended.");
-			if (keepEventsDuration < 1000*60) {
-				M_log.error("You aren't keeping your events for more than a minute, refusing to run.");
-				return;
+		Connection conn = null;
+		boolean wasCommit = true;
+		PreparedStatement stmt = null;
+		try
+		{
+			conn = sqlService().borrowConnection();
+			wasCommit = conn.getAutoCommit();
+			if (wasCommit)
+			{
+				conn.setAutoCommit(false);
+			}
+
+			Timestamp before = new Timestamp(deleteBefore.getTime());
+
+			if (archiveEvents && (m_eventArchive != null))
+			{
+				if (archiveEventRange(conn, start, end, deleteBefore) < 0)
+				{
+					throw new IOException("failed to archive events " + start + " - " + end);
+				}
+			}
+			else if (archiveEvents)
+			{
+				stmt = conn.prepareStatement(clusterEventTrackingServiceSql.getInsertOldEventChunkSql());
+				stmt.setLong(1, start);
+				stmt.setLong(2, end);
+				stmt.setTimestamp(3, before, sqlService().getCal());
+				stmt.executeUpdate();
+				stmt.close();
+				stmt = null;
 			}
+
+			stmt = conn.prepareStatement(clusterEventTrackingServiceSql.getDeleteOldEventChunkSql());
+			stmt.setLong(1, start);
+			stmt.setLong(2, end);
+			stmt.setTimestamp(3, before, sqlService().getCal());
+			int rv = stmt.executeUpdate();
+			stmt.close();
+			stmt = null;
+
+			conn.commit();
+
+			if (M_log.isDebugEnabled()) M_log.debug("cleanupEventChunk: " + start + " - " + end + " removed: " + rv);
+			return rv;
 		}
-		final Time deleteBefore = timeService().newTime(System.currentTimeMillis()- keepEventsDuration);
-		try {
-			sqlService().transact(new Runnable() {
-				public void run() {
-					if (archiveEvents) {
-						if (!sqlService().dbWrite(clusterEventTrackingServiceSql.getInsertOldEventSql(), new Object[]{deleteBefore})) {
-							throw new RuntimeException("Failed to copy old events to archive table.");
-						}
-					}
-					if (!sqlService().dbWrite(clusterEventTrackingServiceSql.getDeleteOldEventSql(),
-							new Object[]{deleteBefore})) {
-						throw new RuntimeException("Failed to delete old events.");
+		catch (Throwable e)
+		{
+			if (conn != null)
+			{
+				try
+				{
+					conn.rollback();
+				}
+				catch (Exception ee)
+				{
+					M_log.warn(this + ".cleanupEventChunk, while rolling back: " + ee);
+				}
+			}
+			M_log.warn(this + ".cleanupEventChunk: " + e);
+			return -1;
+		}
+		finally
+		{
+			if (stmt != null)
+			{
+				try
+				{
+					stmt.close();
+				}
+				catch (Exception e)
+				{
+				}
+			}
+			if (conn != null)
+			{
+				try
+				{
+					if (conn.getAutoCommit() != wasCommit)
+					{
+						conn.setAutoCommit(wasCommit);
 					}
-
 				}
-			}, "ArchiveEvents");
-		} catch (RuntimeException re) {
-			M_log.error("Failed to cleanup old events.", re);
+				catch (Exception e)
+				{
+					M_log.warn(this + ".cleanupEventChunk, while setting auto commit: " + e);
+				}
+				sqlService().returnConnection(conn);
+			}
 		}
 	}
 }
@@ -27,7 +27,18 @@ package org.sakaiproject.event.impl;
 public interface ClusterEventTrackingServiceSql
 {
 	/**
-	 * returns the sql statement which inserts an event into the sakai_event table.
+	 * Set whether the events are stored with a function id from the SAKAI_EVENT_FUNCTION dictionary, in place of the function name. When set, the
+	 * insert takes the function id in place of the name, and the reads return EVENT_FUNCTION_ID after their usual columns.
+	 * 
+	 * @param value
+	 *        true for the normalized schema.
+	 */
+	void setNormalizedSchema(boolean value);
+
+	/**
+	 * returns the sql statement which inserts an event into the sakai_event table. With the normalized schema, the function id is followed by the
+	 * function name, after the event code, to hold the function of an event the dictionary could not take (the id is then null, and the name
+	 * otherwise).
 	 */
 	String getInsertEventSql();
 
@@ -40,6 +51,28 @@ public interface ClusterEventTrackingServiceSql
 	 * returns the sql statement which retrieves the largest event id from the sakai_event table.
 	 */
 	String getMaxEventIdSql();
+
+	/**
+	 * returns the criteria matching the events of one event filter, for getFilteredEventSql(), given any function prefix patterns and the resource
+	 * prefix pattern; or null if the filter matches all events.
+	 * 
+	 * @param functions
+	 *        The number of function prefixes to match, 0 for any function.
+	 * @param resource
+	 *        If true, match a resource prefix.
+	 * @param modify
+	 *        If true, match only modify events.
+	 */
+	String getEventInterestSql(int functions, boolean resource, boolean modify);
+
+	/**
+	 * returns the sql statement which retrieves the events as getEventSql() does, but only those matching some criteria, given the event id they come
+	 * after, the event id they go up to, then the parameters of the criteria.
+	 * 
+	 * @param interest
+	 *        The criteria.
+	 */
+	String getFilteredEventSql(String interest);
 	
 	/**
 	 * returns the sql statement which deletes old events past a point in time.
@@ -50,4 +83,172 @@ public interface ClusterEventTrackingServiceSql
 	 * returns the sql statement which inserts olds events into another table.
 	 */
 	String getInsertOldEventSql();
+
+	/**
+	 * returns the sql statement which retrieves the smallest event id at or after a given event id from the sakai_event table.
+	 */
+	String getMinEventIdSql();
+
+	/**
+	 * returns the sql statement which inserts the old events in a range of event ids into another table.
+	 */
+	String getInsertOldEventChunkSql();
+
+	/**
+	 * returns the sql statement which retrieves the old events in a range of event ids.
+	 */
+	String getOldEventChunkSql();
+
+	/**
+	 * returns the sql statement which deletes the old events in a range of event ids.
+	 */
+	String getDeleteOldEventChunkSql();
+
+	/**
+	 * returns the sql statement which adds to the count of a rollup row, if it exists, given the count, hour, function, context and code.
+	 */
+	String getUpdateRollupSql();
+
+	/**
+	 * returns the sql statement which inserts a rollup row, given the hour, function, context, code and count.
+	 */
+	String getInsertRollupSql();
+
+	/**
+	 * returns the sql statement which inserts a rollup row, or adds to its count if it exists, given the hour, function, context, code and count; or
+	 * null if the database has no such statement.
+	 */
+	String getUpsertRollupSql();
+
+	/**
+	 * returns the sql statement which retrieves the name of a maintenance task from the sakai_event_maintenance table.
+	 */
+	String getMaintenanceSql();
+
+	/**
+	 * returns the sql statement which adds the row for a maintenance task to the sakai_event_maintenance table.
+	 */
+	String getInsertMaintenanceSql();
+
+	/**
+	 * returns the sql statement which claims a maintenance task, only if it has not run since a time and no other server holds it.
+	 */
+	String getClaimMaintenanceSql();
+
+	/**
+	 * returns the sql statement which lets go of a maintenance task held by a server.
+	 */
+	String getReleaseMaintenanceSql();
+
+	/**
+	 * returns the sql statement which retrieves the names of the partitions of the sakai_event table, or null if partition retention is not supported.
+	 */
+	String getEventPartitionsSql();
+
+	/**
+	 * returns the sql statement which adds a partition to the sakai_event table, split off from the PMAX partition.
+	 * 
+	 * @param name
+	 *        The partition name.
+	 * @param before
+	 *        The (exclusive) upper bound of the partition's EVENT_DATE, as yyyy-MM-dd.
+	 */
+	String getAddEventPartitionSql(String name, String before);
+
+	/**
+	 * returns the sql statement which retrieves the smallest and largest EVENT_ID of one partition of the sakai_event table, or null if partitions
+	 * cannot be archived.
+	 * 
+	 * @param name
+	 *        The partition name.
+	 */
+	String getEventPartitionRangeSql(String name);
+
+	/**
+	 * returns the sql statement which copies the events of one partition of the sakai_event table in a range of event ids into the
+	 * sakai_event_archive table, given the first event id of the range and the one after the last, skipping any already there (so an archive
+	 * interrupted before the partition was dropped can be run again), or null if partitions cannot be archived.
+	 * 
+	 * @param name
+	 *        The partition name.
+	 */
+	String getArchiveEventPartitionSql(String name);
+
+	/**
+	 * returns the sql statement which drops a partition of the sakai_event table.
+	 */
+	String getDropEventPartitionSql(String name);
+
+	/**
+	 * returns the sql statement which retrieves a page of events from a table (SAKAI_EVENT or SAKAI_EVENT_ARCHIVE), in event id order, given the event
+	 * id they come after and the event id they come before.
+	 * 
+	 * @param table
+	 *        The table.
+	 * @param limit
+	 *        The most events to retrieve.
+	 */
+	String getReplayEventsSql(String table, int limit);
+
+	/**
+	 * returns the sql statement which retrieves a page of the events of a session, in event id order, given the session id, the event id they come
+	 * after, then any function prefix patterns and the resource prefix pattern.
+	 * 
+	 * @param functions
+	 *        The number of function prefixes to match, 0 for any function.
+	 * @param resource
+	 *        If true, match a resource prefix.
+	 * @param modify
+	 *        If true, retrieve only modify events.
+	 * @param limit
+	 *        The most events to retrieve.
+	 */
+	String getSessionEventsSql(int functions, boolean resource, boolean modify, int limit);
+
+	/**
+	 * returns the sql statement which retrieves a page of the events of the sessions of a user, in event id order, given the user id, the event id
+	 * they come after, then any function prefix patterns and the resource prefix pattern.
+	 * 
+	 * @param functions
+	 *        The number of function prefixes to match, 0 for any function.
+	 * @param resource
+	 *        If true, match a resource prefix.
+	 * @param modify
+	 *        If true, retrieve only modify events.
+	 * @param limit
+	 *        The most events to retrieve.
+	 */
+	String getUserEventsSql(int functions, boolean resource, boolean modify, int limit);
+
+	/**
+	 * returns the sql statement which retrieves a page of the events stored under any of some session ids, in event id order, given the session ids
+	 * (a user's sessionless ids ~server~user), the event id they come after, then any function prefix patterns and the resource prefix pattern.
+	 * 
+	 * @param sessions
+	 *        The number of session ids.
+	 * @param functions
+	 *        The number of function prefixes to match, 0 for any function.
+	 * @param resource
+	 *        If true, match a resource prefix.
+	 * @param modify
+	 *        If true, retrieve only modify events.
+	 * @param limit
+	 *        The most events to retrieve.
+	 */
+	String getSessionlessEventsSql(int sessions, int functions, boolean resource, boolean modify, int limit);
+
+	/**
+	 * returns the sql statement which retrieves the function dictionary: FUNCTION_ID, FUNCTION_NAME.
+	 */
+	String getEventFunctionsSql();
+
+	/**
+	 * returns the sql statement which retrieves the largest function id in the dictionary.
+	 */
+	String getMaxEventFunctionIdSql();
+
+	/**
+	 * returns the sql statement which adds a function to the dictionary, given its id and name.
+	 */
+	String getInsertEventFunctionSql();
 }
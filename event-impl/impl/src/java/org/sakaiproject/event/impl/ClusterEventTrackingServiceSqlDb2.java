@@ -26,4 +26,11 @@ package org.sakaiproject.event.impl;
  */
 public class ClusterEventTrackingServiceSqlDb2 extends ClusterEventTrackingServiceSqlDefault
 {
+	/**
+	 * {@inheritDoc}
+	 */
+	protected String limitRows(String columns, String rest, int limit)
+	{
+		return "select " + columns + rest + " fetch first " + limit + " rows only";
+	}
 }
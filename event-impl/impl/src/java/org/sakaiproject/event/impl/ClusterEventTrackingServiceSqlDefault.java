@@ -28,18 +28,73 @@ import org.apache.commons.logging.LogFactory;
  */
 public class ClusterEventTrackingServiceSqlDefault implements ClusterEventTrackingServiceSql
 {
+	/** The columns of the events read back for archiving, replays and timelines. */
+	protected static final String STORED_EVENT_COLUMNS = "EVENT_ID,EVENT_DATE,EVENT,REF,SESSION_ID,EVENT_CODE";
+
+	/** If true, events are stored with a function id in place of the function name. */
+	protected boolean m_normalized = false;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setNormalizedSchema(boolean value)
+	{
+		m_normalized = value;
+	}
+
+	/**
+	 * @return The column the event function is inserted into.
+	 */
+	protected String eventColumn()
+	{
+		return m_normalized ? "EVENT_FUNCTION_ID" : "EVENT";
+	}
+
+	/**
+	 * @return The extra column inserted, after EVENT_CODE, to hold the function name of an event the dictionary could not take, or an empty string.
+	 */
+	protected String eventNameColumn()
+	{
+		return m_normalized ? ",EVENT" : "";
+	}
+
+	/**
+	 * @return The bind of the eventNameColumn(), or an empty string.
+	 */
+	protected String eventNameBind()
+	{
+		return m_normalized ? ", ?" : "";
+	}
+
+	/**
+	 * @return The extra column read with the stored events, or an empty string.
+	 */
+	protected String functionIdColumn()
+	{
+		return m_normalized ? ",EVENT_FUNCTION_ID" : "";
+	}
+
+	/**
+	 * @return The columns of the stored events read back.
+	 */
+	protected String storedEventColumns()
+	{
+		return STORED_EVENT_COLUMNS + functionIdColumn();
+	}
+
    /**
     * returns the sql statement which inserts an event into the sakai_event table.
     */
    public String getInsertEventSql()
    {
-      return "insert into SAKAI_EVENT (EVENT_ID,EVENT_DATE,EVENT,REF,SESSION_ID,EVENT_CODE) " +
+      return "insert into SAKAI_EVENT (EVENT_ID,EVENT_DATE," + eventColumn() + ",REF,SESSION_ID,EVENT_CODE" + eventNameColumn() + ") " +
              "values      (NEXT VALUE FOR SAKAI_EVENT_SEQ, "  + // form the id based on the sequence
                           "?, "                               + // date
                           "?, "                               + // event
                           "?, "                               + // reference
                           "?, "                               + // session id
-                          "? )";                                // code
+                          "?"                                 + // code
+                          eventNameBind() + ")";                // event name, if normalized
    }
 
    /**
@@ -47,7 +102,7 @@ public class ClusterEventTrackingServiceSqlDefault implements ClusterEventTracki
 	 */
 	public String getEventSql()
 	{
-		return "select EVENT_ID,EVENT_DATE,EVENT,REF,SAKAI_EVENT.SESSION_ID,EVENT_CODE,SESSION_SERVER " + "from   SAKAI_EVENT,SAKAI_SESSION "
+		return "select EVENT_ID,EVENT_DATE,EVENT,REF,SAKAI_EVENT.SESSION_ID,EVENT_CODE,SESSION_SERVER" + functionIdColumn() + " from   SAKAI_EVENT,SAKAI_SESSION "
 				+ "where (SAKAI_EVENT.SESSION_ID = SAKAI_SESSION.SESSION_ID) and (EVENT_ID > ?)";
 	}
 
@@ -72,4 +127,268 @@ public class ClusterEventTrackingServiceSqlDefault implements ClusterEventTracki
 	public String getInsertOldEventSql() {
 		return "insert into SAKAI_EVENT_ARCHIVE select * from SAKAI_EVENT where EVENT_DATE < ?";
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getMinEventIdSql()
+	{
+		return "select MIN(EVENT_ID) from SAKAI_EVENT where EVENT_ID >= ?";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getInsertOldEventChunkSql()
+	{
+		return "insert into SAKAI_EVENT_ARCHIVE select * from SAKAI_EVENT where EVENT_ID >= ? and EVENT_ID < ? and EVENT_DATE < ?";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOldEventChunkSql()
+	{
+		return "select " + storedEventColumns() + " from SAKAI_EVENT where EVENT_ID >= ? and EVENT_ID < ? and EVENT_DATE < ?";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getDeleteOldEventChunkSql()
+	{
+		return "delete from SAKAI_EVENT where EVENT_ID >= ? and EVENT_ID < ? and EVENT_DATE < ?";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getUpdateRollupSql()
+	{
+		return "update SAKAI_EVENT_ROLLUP set EVENT_COUNT = EVENT_COUNT + ? where ROLLUP_HOUR = ? and EVENT = ? and CONTEXT = ? and EVENT_CODE = ?";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getInsertRollupSql()
+	{
+		return "insert into SAKAI_EVENT_ROLLUP (ROLLUP_HOUR, EVENT, CONTEXT, EVENT_CODE, EVENT_COUNT) values (?, ?, ?, ?, ?)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getUpsertRollupSql()
+	{
+		// update, then insert if needed
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getMaintenanceSql()
+	{
+		return "select TASK_NAME from SAKAI_EVENT_MAINTENANCE where TASK_NAME = ?";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getInsertMaintenanceSql()
+	{
+		return "insert into SAKAI_EVENT_MAINTENANCE (TASK_NAME) values (?)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getClaimMaintenanceSql()
+	{
+		return "update SAKAI_EVENT_MAINTENANCE set SERVER_ID = ?, LOCK_UNTIL = ?, LAST_RUN = ? where TASK_NAME = ? "
+				+ "and (LOCK_UNTIL is null or LOCK_UNTIL < ?) and (LAST_RUN is null or LAST_RUN < ?)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getReleaseMaintenanceSql()
+	{
+		return "update SAKAI_EVENT_MAINTENANCE set LOCK_UNTIL = ? where TASK_NAME = ? and SERVER_ID = ?";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getEventPartitionsSql()
+	{
+		// partition retention is not supported
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getAddEventPartitionSql(String name, String before)
+	{
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getEventPartitionRangeSql(String name)
+	{
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getArchiveEventPartitionSql(String name)
+	{
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getDropEventPartitionSql(String name)
+	{
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getReplayEventsSql(String table, int limit)
+	{
+		return limitRows(storedEventColumns(), " from " + table + " where EVENT_ID > ? and EVENT_ID < ? order by EVENT_ID", limit);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getSessionEventsSql(int functions, boolean resource, boolean modify, int limit)
+	{
+		return limitRows(storedEventColumns(), " from SAKAI_EVENT where SESSION_ID = ? and EVENT_ID > ?" + eventCriteria(functions, resource, modify)
+				+ " order by EVENT_ID", limit);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getUserEventsSql(int functions, boolean resource, boolean modify, int limit)
+	{
+		return limitRows(storedEventColumns(), " from SAKAI_EVENT where SESSION_ID in (select SESSION_ID from SAKAI_SESSION where SESSION_USER = ?) "
+				+ "and EVENT_ID > ?" + eventCriteria(functions, resource, modify) + " order by EVENT_ID", limit);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getSessionlessEventsSql(int sessions, int functions, boolean resource, boolean modify, int limit)
+	{
+		StringBuilder sql = new StringBuilder(" from SAKAI_EVENT where SESSION_ID in (");
+		for (int i = 0; i < sessions; i++)
+		{
+			if (i > 0) sql.append(",");
+			sql.append("?");
+		}
+		sql.append(") and EVENT_ID > ?");
+		sql.append(eventCriteria(functions, resource, modify));
+		sql.append(" order by EVENT_ID");
+
+		return limitRows(storedEventColumns(), sql.toString(), limit);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getEventFunctionsSql()
+	{
+		return "select FUNCTION_ID, FUNCTION_NAME from SAKAI_EVENT_FUNCTION";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getMaxEventFunctionIdSql()
+	{
+		return "select MAX(FUNCTION_ID) from SAKAI_EVENT_FUNCTION";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getInsertEventFunctionSql()
+	{
+		return "insert into SAKAI_EVENT_FUNCTION (FUNCTION_ID, FUNCTION_NAME) values (?, ?)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getEventInterestSql(int functions, boolean resource, boolean modify)
+	{
+		String criteria = eventCriteria(functions, resource, modify);
+		if (criteria.length() == 0) return null;
+
+		return criteria.substring(" and ".length());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getFilteredEventSql(String interest)
+	{
+		return getEventSql() + " and (EVENT_ID <= ?) and (" + interest + ")";
+	}
+
+	/**
+	 * Form the optional criteria of a timeline or event interest query.
+	 * 
+	 * @param functions
+	 *        The number of function prefixes to match (with like), 0 for any function.
+	 * @param resource
+	 *        If true, match a resource prefix (with like).
+	 * @param modify
+	 *        If true, match only modify events.
+	 * @return The criteria, each starting " and ", or an empty string.
+	 */
+	protected String eventCriteria(int functions, boolean resource, boolean modify)
+	{
+		StringBuilder buf = new StringBuilder();
+		if (functions > 0)
+		{
+			buf.append(" and (");
+			for (int i = 0; i < functions; i++)
+			{
+				if (i > 0) buf.append(" or ");
+				buf.append("EVENT like ?");
+			}
+			buf.append(")");
+		}
+		if (resource) buf.append(" and REF like ?");
+		if (modify) buf.append(" and EVENT_CODE = 'm'");
+
+		return buf.toString();
+	}
+
+	/**
+	 * Form a query that returns at most some number of rows.
+	 * 
+	 * @param columns
+	 *        The selected columns.
+	 * @param rest
+	 *        The rest of the query, from the " from" on, including any order by.
+	 * @param limit
+	 *        The most rows to return.
+	 * @return The query.
+	 */
+	protected String limitRows(String columns, String rest, int limit)
+	{
+		return "select TOP " + limit + " " + columns + rest;
+	}
 }
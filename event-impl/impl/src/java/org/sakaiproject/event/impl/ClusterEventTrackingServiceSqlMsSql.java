@@ -32,6 +32,7 @@ public class ClusterEventTrackingServiceSqlMsSql extends ClusterEventTrackingSer
    public String getInsertEventSql()
    {
       // leave out the EVENT_ID as it will be automatically generated on the server
-      return "insert into SAKAI_EVENT (EVENT_DATE,EVENT,REF,SESSION_ID,EVENT_CODE) values (?, ?, ?, ?, ? )";
+      return "insert into SAKAI_EVENT (EVENT_DATE," + eventColumn() + ",REF,SESSION_ID,EVENT_CODE" + eventNameColumn() + ") values (?, ?, ?, ?, ?"
+            + eventNameBind() + " )";
    }
 }
@@ -32,11 +32,72 @@ public class ClusterEventTrackingServiceSqlMySql extends ClusterEventTrackingSer
    public String getInsertEventSql()
    {
       // leave out the EVENT_ID as it will be automatically generated on the server
-      return "insert into SAKAI_EVENT (EVENT_DATE, EVENT, REF, SESSION_ID, EVENT_CODE) " +
+      return "insert into SAKAI_EVENT (EVENT_DATE, " + eventColumn() + ", REF, SESSION_ID, EVENT_CODE" + eventNameColumn() + ") " +
               "values     (?, " + // date
                           "?, " + // event
                           "?, " + // reference
                           "?, " + // session id
-                          "?)";   // code
+                          "?"   + // code
+                          eventNameBind() + ")"; // event name, if normalized
    }
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getUpsertRollupSql()
+	{
+		return "insert into SAKAI_EVENT_ROLLUP (ROLLUP_HOUR, EVENT, CONTEXT, EVENT_CODE, EVENT_COUNT) values (?, ?, ?, ?, ?) "
+				+ "on duplicate key update EVENT_COUNT = EVENT_COUNT + values(EVENT_COUNT)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getEventPartitionsSql()
+	{
+		return "select PARTITION_NAME from INFORMATION_SCHEMA.PARTITIONS "
+				+ "where TABLE_SCHEMA = DATABASE() and TABLE_NAME = 'SAKAI_EVENT' and PARTITION_NAME is not null order by PARTITION_ORDINAL_POSITION";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getAddEventPartitionSql(String name, String before)
+	{
+		return "alter table SAKAI_EVENT reorganize partition PMAX into (partition " + name + " values less than (TO_DAYS('" + before + "')), "
+				+ "partition PMAX values less than MAXVALUE)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getEventPartitionRangeSql(String name)
+	{
+		return "select MIN(EVENT_ID), MAX(EVENT_ID) from SAKAI_EVENT partition (" + name + ")";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getArchiveEventPartitionSql(String name)
+	{
+		// the archive is keyed on EVENT_ID, so a partition archived before a failed drop can be archived again
+		return "insert ignore into SAKAI_EVENT_ARCHIVE select * from SAKAI_EVENT partition (" + name + ") where EVENT_ID >= ? and EVENT_ID < ?";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getDropEventPartitionSql(String name)
+	{
+		return "alter table SAKAI_EVENT drop partition " + name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected String limitRows(String columns, String rest, int limit)
+	{
+		return "select " + columns + rest + " limit " + limit;
+	}
 }
@@ -30,13 +30,14 @@ public class ClusterEventTrackingServiceSqlOracle extends ClusterEventTrackingSe
     * returns the sql statement which inserts an event into the sakai_event table.
     */
    public String getInsertEventSql() {
-      return "insert into SAKAI_EVENT (EVENT_ID,EVENT_DATE,EVENT,REF,SESSION_ID,EVENT_CODE) " +
+      return "insert into SAKAI_EVENT (EVENT_ID,EVENT_DATE," + eventColumn() + ",REF,SESSION_ID,EVENT_CODE" + eventNameColumn() + ") " +
              "values      (SAKAI_EVENT_SEQ.NEXTVAL," + // form the id based on the sequence
                           "?, "                      + // date
                           "?, "                      + // event
                           "?, "                      + // reference
                           "?, "                      + // session id
-                          "?) ";                       // code
+                          "?"                        + // code
+                          eventNameBind() + ") ";      // event name, if normalized
    }
 
    /**
@@ -45,7 +46,71 @@ public class ClusterEventTrackingServiceSqlOracle extends ClusterEventTrackingSe
 	public String getEventSql()
 	{
 		// this now has Oracle specific hint to improve performance with large tables -ggolden
-		return "select /*+ FIRST_ROWS */ EVENT_ID,EVENT_DATE,EVENT,REF,SAKAI_EVENT.SESSION_ID,EVENT_CODE,SESSION_SERVER "
-				+ "from   SAKAI_EVENT,SAKAI_SESSION " + "where  (SAKAI_EVENT.SESSION_ID = SAKAI_SESSION.SESSION_ID(+)) and (EVENT_ID > ?)";
+		return "select /*+ FIRST_ROWS */ EVENT_ID,EVENT_DATE,EVENT,REF,SAKAI_EVENT.SESSION_ID,EVENT_CODE,SESSION_SERVER" + functionIdColumn()
+				+ " from   SAKAI_EVENT,SAKAI_SESSION " + "where  (SAKAI_EVENT.SESSION_ID = SAKAI_SESSION.SESSION_ID(+)) and (EVENT_ID > ?)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getUpsertRollupSql()
+	{
+		return "merge into SAKAI_EVENT_ROLLUP R using (select ? ROLLUP_HOUR, ? EVENT, ? CONTEXT, ? EVENT_CODE, ? EVENT_COUNT from DUAL) N "
+				+ "on (R.ROLLUP_HOUR = N.ROLLUP_HOUR and R.EVENT = N.EVENT and R.CONTEXT = N.CONTEXT and R.EVENT_CODE = N.EVENT_CODE) "
+				+ "when matched then update set R.EVENT_COUNT = R.EVENT_COUNT + N.EVENT_COUNT "
+				+ "when not matched then insert (ROLLUP_HOUR, EVENT, CONTEXT, EVENT_CODE, EVENT_COUNT) "
+				+ "values (N.ROLLUP_HOUR, N.EVENT, N.CONTEXT, N.EVENT_CODE, N.EVENT_COUNT)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getEventPartitionsSql()
+	{
+		return "select PARTITION_NAME from USER_TAB_PARTITIONS where TABLE_NAME = 'SAKAI_EVENT' order by PARTITION_POSITION";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getAddEventPartitionSql(String name, String before)
+	{
+		// the unique index on EVENT_ID is global, so keep it usable
+		return "alter table SAKAI_EVENT split partition PMAX at (TO_DATE('" + before + "', 'YYYY-MM-DD')) into (partition " + name
+				+ ", partition PMAX) update global indexes";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getEventPartitionRangeSql(String name)
+	{
+		return "select MIN(EVENT_ID), MAX(EVENT_ID) from SAKAI_EVENT partition (" + name + ")";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getArchiveEventPartitionSql(String name)
+	{
+		// skip the events already archived (by SAKAI_EVENT_ARCHIVE_INDEX), so a partition archived before a failed drop can be archived again
+		return "insert into SAKAI_EVENT_ARCHIVE select * from SAKAI_EVENT partition (" + name + ") E where E.EVENT_ID >= ? and E.EVENT_ID < ? "
+				+ "and not exists (select 1 from SAKAI_EVENT_ARCHIVE A where A.EVENT_ID = E.EVENT_ID)";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getDropEventPartitionSql(String name)
+	{
+		return "alter table SAKAI_EVENT drop partition " + name + " update global indexes";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	protected String limitRows(String columns, String rest, int limit)
+	{
+		return "select * from (select " + columns + rest + ") where ROWNUM <= " + limit;
 	}
 }
@@ -0,0 +1,516 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Observer;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.event.api.Event;
+
+/**
+ * <p>
+ * EventArchive keeps old events in compressed segment files on the local filesystem, in place of the SAKAI_EVENT_ARCHIVE table.
+ * </p>
+ * <p>
+ * Events are bucketed by their (GMT) day, into one file per day: yyyy-MM/events-yyyyMMdd.seg under the archive directory. Each file is a series of
+ * segments, each a gzip'ed EventCodec stream, so the function names are dictionary encoded within a segment. Each segment, once written and synced,
+ * gets a line in the index file (events.idx), giving its day, position and length in the day file, count of events, and range of event seq numbers and
+ * times. Readers only trust what is in the index, so a segment torn by a crash is never read.
+ * </p>
+ * <p>
+ * Archiving is at-least-once: segments are written before the events are deleted from the db, so if the delete fails, the events will be archived
+ * again by the next cleanup.
+ * </p>
+ */
+public class EventArchive
+{
+	/** Our logger. */
+	private static Log M_log = LogFactory.getLog(EventArchive.class);
+
+	/** The name of the index file. */
+	protected static final String INDEX = "events.idx";
+
+	/** The size of the encoded events we gather for a day before writing them out as a segment. */
+	protected static final int SEGMENT_SIZE = 1024 * 1024;
+
+	/** The archive directory. */
+	protected File m_dir = null;
+
+	/**
+	 * Construct.
+	 *
+	 * @param dir
+	 *        The archive directory, created if needed.
+	 */
+	public EventArchive(File dir)
+	{
+		m_dir = dir;
+		if (!m_dir.isDirectory() && !m_dir.mkdirs())
+		{
+			M_log.warn("cannot create event archive directory: " + m_dir);
+		}
+	}
+
+	/**
+	 * Start writing events to the archive. The events are not safe in the archive until the Writer is closed.
+	 *
+	 * @return A Writer for the events.
+	 */
+	public Writer open()
+	{
+		return new Writer();
+	}
+
+	/**
+	 * Read the archived events from a range of time, in the order they were archived. Each event is sent to the observer's update(), with a null
+	 * Observable.
+	 *
+	 * @param from
+	 *        The earliest event time to read, in ms since the epoch.
+	 * @param to
+	 *        The time after the last event to read, in ms since the epoch.
+	 * @param factory
+	 *        Makes the events that are read.
+	 * @param observer
+	 *        The observer to send the events to.
+	 * @return The number of events read.
+	 * @throws IOException
+	 *         if the archive cannot be read.
+	 */
+	public long read(final long from, final long to, final EventCodec.Factory factory, Observer observer) throws IOException
+	{
+		File index = new File(m_dir, INDEX);
+		if (!index.exists()) return 0;
+
+		// skip the events outside the range as they are decoded
+		EventCodec.Factory inRange = new EventCodec.Factory()
+		{
+			public Event newEvent(long seq, long time, String function, String resource, String sessionId, String userId, boolean modify,
+					int priority)
+			{
+				if ((time < from) || (time >= to)) return null;
+				return factory.newEvent(seq, time, function, resource, sessionId, userId, modify, priority);
+			}
+		};
+
+		long count = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+		try
+		{
+			String line = null;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] parts = line.split(" ");
+				if (parts.length < 8) continue;
+
+				// the segment's event times
+				if ((Long.parseLong(parts[7]) < from) || (Long.parseLong(parts[6]) >= to)) continue;
+
+				ByteBuffer buf = ByteBuffer.wrap(readSegment(parts[0], Long.parseLong(parts[1]), Integer.parseInt(parts[2])));
+				EventCodec codec = new EventCodec();
+				codec.readHeader(buf);
+				while (buf.hasRemaining())
+				{
+					Event event = codec.decode(buf, inRange);
+					if (event != null)
+					{
+						observer.update(null, event);
+						count++;
+					}
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Read the archived events from a range of event seq numbers, in seq order, each once. Each event is sent to the observer's update(), with a null
+	 * Observable.<br />
+	 * Segments whose seq ranges overlap (as they do across day files, and where a range was archived again) are read together, so only those are held
+	 * in memory at once.
+	 *
+	 * @param after
+	 *        Read the events after this seq number.
+	 * @param before
+	 *        Read the events before this seq number.
+	 * @param factory
+	 *        Makes the events that are read.
+	 * @param observer
+	 *        The observer to send the events to.
+	 * @return The seq number of the last event read, or after if there were none.
+	 * @throws IOException
+	 *         if the archive cannot be read.
+	 */
+	public long readSeq(final long after, final long before, final EventCodec.Factory factory, Observer observer) throws IOException
+	{
+		File index = new File(m_dir, INDEX);
+		if (!index.exists()) return after;
+
+		// the segments with events in range
+		List<String[]> segments = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+		try
+		{
+			String line = null;
+			while ((line = reader.readLine()) != null)
+			{
+				String[] parts = line.split(" ");
+				if (parts.length < 8) continue;
+				if ((Long.parseLong(parts[5]) <= after) || (Long.parseLong(parts[4]) >= before)) continue;
+
+				segments.add(parts);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		// by their first seq
+		Collections.sort(segments, new Comparator<String[]>()
+		{
+			public int compare(String[] a, String[] b)
+			{
+				long diff = Long.parseLong(a[4]) - Long.parseLong(b[4]);
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+
+		// skip the events outside the range as they are decoded, noting the seq of each made
+		final long[] decoded = new long[1];
+		EventCodec.Factory inRange = new EventCodec.Factory()
+		{
+			public Event newEvent(long seq, long time, String function, String resource, String sessionId, String userId, boolean modify,
+					int priority)
+			{
+				if ((seq <= after) || (seq >= before)) return null;
+				decoded[0] = seq;
+				return factory.newEvent(seq, time, function, resource, sessionId, userId, modify, priority);
+			}
+		};
+
+		long last = after;
+		int next = 0;
+		while (next < segments.size())
+		{
+			// gather the run of segments with overlapping seq ranges
+			TreeMap<Long, Event> events = new TreeMap<Long, Event>();
+			long runMax = Long.parseLong(segments.get(next)[5]);
+			while ((next < segments.size()) && (Long.parseLong(segments.get(next)[4]) <= runMax))
+			{
+				String[] parts = segments.get(next++);
+				runMax = Math.max(runMax, Long.parseLong(parts[5]));
+
+				ByteBuffer buf = ByteBuffer.wrap(readSegment(parts[0], Long.parseLong(parts[1]), Integer.parseInt(parts[2])));
+				EventCodec codec = new EventCodec();
+				codec.readHeader(buf);
+				while (buf.hasRemaining())
+				{
+					Event event = codec.decode(buf, inRange);
+					if (event != null) events.put(new Long(decoded[0]), event);
+				}
+			}
+
+			for (Iterator<Map.Entry<Long, Event>> i = events.entrySet().iterator(); i.hasNext();)
+			{
+				Map.Entry<Long, Event> entry = i.next();
+				observer.update(null, entry.getValue());
+				last = entry.getKey().longValue();
+			}
+		}
+
+		return last;
+	}
+
+	/**
+	 * Read and uncompress one segment.
+	 *
+	 * @param day
+	 *        The day of the segment file, as yyyyMMdd.
+	 * @param position
+	 *        The position of the segment in the file.
+	 * @param length
+	 *        The length of the segment in the file.
+	 * @return The segment's EventCodec stream.
+	 * @throws IOException
+	 *         if the segment cannot be read.
+	 */
+	protected byte[] readSegment(String day, long position, int length) throws IOException
+	{
+		byte[] compressed = new byte[length];
+		RandomAccessFile file = new RandomAccessFile(dayFile(day), "r");
+		try
+		{
+			file.seek(position);
+			file.readFully(compressed);
+		}
+		finally
+		{
+			file.close();
+		}
+
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+		byte[] bytes = new byte[8192];
+		int n = 0;
+		while ((n = in.read(bytes)) > 0)
+		{
+			out.write(bytes, 0, n);
+		}
+		in.close();
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Access the segment file for a day.
+	 *
+	 * @param day
+	 *        The day, as yyyyMMdd.
+	 * @return The day's segment file.
+	 */
+	protected File dayFile(String day)
+	{
+		return new File(new File(m_dir, day.substring(0, 4) + "-" + day.substring(4, 6)), "events-" + day + ".seg");
+	}
+
+	/**
+	 * Write a segment to the end of its day file, then add it to the index.
+	 *
+	 * @param day
+	 *        The day the segment is for.
+	 * @throws IOException
+	 *         if the segment cannot be written.
+	 */
+	protected synchronized void writeSegment(Day day) throws IOException
+	{
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(day.m_buf.position() / 2);
+		GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+		gzip.write(day.m_buf.array(), 0, day.m_buf.position());
+		gzip.close();
+
+		File file = dayFile(day.m_day);
+		file.getParentFile().mkdirs();
+
+		long position = 0;
+		FileOutputStream out = new FileOutputStream(file, true);
+		try
+		{
+			position = out.getChannel().size();
+			compressed.writeTo(out);
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+
+		StringBuilder line = new StringBuilder();
+		line.append(day.m_day).append(' ').append(position).append(' ').append(compressed.size()).append(' ').append(day.m_count).append(' ')
+				.append(day.m_minSeq).append(' ').append(day.m_maxSeq).append(' ').append(day.m_minTime).append(' ').append(day.m_maxTime).append('\n');
+		out = new FileOutputStream(new File(m_dir, INDEX), true);
+		try
+		{
+			out.write(line.toString().getBytes("UTF-8"));
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Day gathers the events of one day for the next segment of the day's file.
+	 */
+	protected class Day
+	{
+		/** The day, as yyyyMMdd. */
+		protected String m_day = null;
+
+		/** The encoded events. */
+		protected ByteBuffer m_buf = null;
+
+		/** The codec, with the function dictionary of the segment. */
+		protected EventCodec m_codec = new EventCodec();
+
+		/** The count of events in the segment. */
+		protected long m_count = 0;
+
+		/** The range of event seq numbers in the segment. */
+		protected long m_minSeq = Long.MAX_VALUE;
+
+		protected long m_maxSeq = Long.MIN_VALUE;
+
+		/** The range of event times in the segment. */
+		protected long m_minTime = Long.MAX_VALUE;
+
+		protected long m_maxTime = Long.MIN_VALUE;
+
+		public Day(String day)
+		{
+			m_day = day;
+			start(SEGMENT_SIZE);
+		}
+
+		/**
+		 * Start a new segment.
+		 */
+		protected void start(int size)
+		{
+			if ((m_buf == null) || (m_buf.capacity() < size))
+			{
+				m_buf = ByteBuffer.allocate(size);
+			}
+			m_buf.clear();
+			m_codec.reset();
+			m_codec.writeHeader(m_buf);
+			m_count = 0;
+			m_minSeq = Long.MAX_VALUE;
+			m_maxSeq = Long.MIN_VALUE;
+			m_minTime = Long.MAX_VALUE;
+			m_maxTime = Long.MIN_VALUE;
+		}
+
+		protected void add(long seq, long time, Event event) throws IOException
+		{
+			try
+			{
+				m_codec.encode(seq, time, event, m_buf);
+			}
+			catch (BufferOverflowException e)
+			{
+				// the segment is full: write it out and start another, big enough for this event
+				flush();
+				start(Math.max(SEGMENT_SIZE, EventCodec.maxEncodedSize(event) + 1));
+				m_codec.encode(seq, time, event, m_buf);
+			}
+
+			m_count++;
+			if (seq < m_minSeq) m_minSeq = seq;
+			if (seq > m_maxSeq) m_maxSeq = seq;
+			if (time < m_minTime) m_minTime = time;
+			if (time > m_maxTime) m_maxTime = time;
+		}
+
+		protected void flush() throws IOException
+		{
+			if (m_count > 0)
+			{
+				writeSegment(this);
+			}
+		}
+	}
+
+	/**
+	 * Writer adds events to the archive, gathering them by day into segments.<br />
+	 * A Writer is for use from one thread at a time.
+	 */
+	public class Writer
+	{
+		/** The segments being gathered, by day. */
+		protected Map<String, Day> m_days = new HashMap<String, Day>();
+
+		/** Formats event times as days. */
+		protected SimpleDateFormat m_dayFormat = new SimpleDateFormat("yyyyMMdd");
+
+		protected Writer()
+		{
+			m_dayFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		}
+
+		/**
+		 * Add an event to the archive.
+		 *
+		 * @param seq
+		 *        The event seq number.
+		 * @param time
+		 *        The event time, in ms since the epoch.
+		 * @param event
+		 *        The event.
+		 * @throws IOException
+		 *         if a full segment cannot be written out.
+		 */
+		public void write(long seq, long time, Event event) throws IOException
+		{
+			String dayName = m_dayFormat.format(new Date(time));
+			Day day = m_days.get(dayName);
+			if (day == null)
+			{
+				day = new Day(dayName);
+				m_days.put(dayName, day);
+			}
+
+			day.add(seq, time, event);
+			if (day.m_buf.position() >= SEGMENT_SIZE)
+			{
+				day.flush();
+				day.start(SEGMENT_SIZE);
+			}
+		}
+
+		/**
+		 * Write out the rest of the events. Once this returns, all the events written are safe in the archive.
+		 *
+		 * @throws IOException
+		 *         if the segments cannot be written.
+		 */
+		public void close() throws IOException
+		{
+			for (Iterator<Day> i = m_days.values().iterator(); i.hasNext();)
+			{
+				i.next().flush();
+			}
+			m_days.clear();
+		}
+	}
+}
@@ -0,0 +1,450 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.sakaiproject.event.api.Event;
+
+/**
+ * <p>
+ * EventCodec reads and writes events in a compact binary form, for use wherever events are kept or moved outside the database: spill files, archive
+ * segments, transport between cluster members and exports.
+ * </p>
+ * <p>
+ * A stream starts with a one byte format version, followed by the events. Each event is written as:
+ * <ul>
+ * <li>the event seq number and the event time (ms since the epoch), as unsigned varints</li>
+ * <li>the function, as a varint code: 0 for a function not seen before in this stream, followed by the function string (which then takes the next
+ * code, starting at 1), or the code of a function already seen</li>
+ * <li>the resource, session id and user id, each as a varint of the UTF-8 length + 1 (0 for null) followed by the UTF-8 bytes</li>
+ * <li>a flags byte (bit 0 set for a modify event)</li>
+ * <li>the notification priority, as a zig-zag varint</li>
+ * </ul>
+ * </p>
+ * <p>
+ * The function dictionary lives in the codec, so a codec must be used for one stream at a time, from one thread at a time, and the reader of a stream
+ * must decode every event of the stream in order. Strings are encoded and decoded directly to and from the buffer, without intermediate copies.
+ * </p>
+ */
+public class EventCodec
+{
+	/** The format version written at the start of each stream. */
+	public static final byte VERSION = 1;
+
+	/** Flags bit for a modify event. */
+	protected static final int FLAG_MODIFY = 1;
+
+	/**
+	 * Factory makes the events that are decoded.
+	 */
+	public interface Factory
+	{
+		/**
+		 * Make an event.
+		 *
+		 * @param seq
+		 *        The event seq number.
+		 * @param time
+		 *        The event time, in ms since the epoch.
+		 * @param function
+		 *        The event function.
+		 * @param resource
+		 *        The resource reference.
+		 * @param sessionId
+		 *        The usage session id, or null.
+		 * @param userId
+		 *        The user id, or null.
+		 * @param modify
+		 *        True if the event caused a resource modification, false if it was just an access.
+		 * @param priority
+		 *        The event's notification priority.
+		 * @return The new event.
+		 */
+		Event newEvent(long seq, long time, String function, String resource, String sessionId, String userId, boolean modify, int priority);
+	}
+
+	/** The code of each function seen in this stream. */
+	protected Map<String, Integer> m_codes = new HashMap<String, Integer>();
+
+	/** The functions seen in this stream, by code - 1. */
+	protected List<String> m_functions = new ArrayList<String>();
+
+	/** Buffer the chars of a string are decoded into. */
+	protected char[] m_chars = new char[256];
+
+	/**
+	 * Forget the functions seen so far, ready for a new stream.
+	 */
+	public void reset()
+	{
+		m_codes.clear();
+		m_functions.clear();
+	}
+
+	/**
+	 * Write the stream header.
+	 *
+	 * @param buf
+	 *        The buffer to write to.
+	 * @throws BufferOverflowException
+	 *         if the buffer has no room for the header - nothing is written.
+	 */
+	public void writeHeader(ByteBuffer buf)
+	{
+		if (!buf.hasRemaining()) throw new BufferOverflowException();
+
+		buf.put(VERSION);
+	}
+
+	/**
+	 * Read and check the stream header.
+	 *
+	 * @param buf
+	 *        The buffer to read from.
+	 * @throws IllegalArgumentException
+	 *         if the stream was written in a format version we do not read.
+	 */
+	public void readHeader(ByteBuffer buf)
+	{
+		byte version = buf.get();
+		if (version != VERSION)
+		{
+			throw new IllegalArgumentException("unsupported event stream version: " + version);
+		}
+	}
+
+	/**
+	 * Compute the most bytes that encoding this event could take.
+	 *
+	 * @param event
+	 *        The event.
+	 * @return The most bytes the encoded event could take.
+	 */
+	public static int maxEncodedSize(Event event)
+	{
+		return 10 + 10 + 5 + maxEncodedSize(event.getEvent()) + maxEncodedSize(event.getResource()) + maxEncodedSize(event.getSessionId())
+				+ maxEncodedSize(event.getUserId()) + 1 + 5;
+	}
+
+	/**
+	 * Encode an event. The event's seq number and time are taken from the event if it is a BaseEvent, and are otherwise written as 0.
+	 *
+	 * @param event
+	 *        The event.
+	 * @param buf
+	 *        The buffer to write to.
+	 * @throws BufferOverflowException
+	 *         if the buffer may not have room for the event - nothing is written.
+	 */
+	public void encode(Event event, ByteBuffer buf)
+	{
+		long seq = 0;
+		long time = 0;
+		if (event instanceof BaseEventTrackingService.BaseEvent)
+		{
+			seq = ((BaseEventTrackingService.BaseEvent) event).m_seq;
+			time = ((BaseEventTrackingService.BaseEvent) event).m_time;
+		}
+
+		encode(seq, time, event, buf);
+	}
+
+	/**
+	 * Encode an event.
+	 *
+	 * @param seq
+	 *        The event seq number.
+	 * @param time
+	 *        The event time, in ms since the epoch.
+	 * @param event
+	 *        The event.
+	 * @param buf
+	 *        The buffer to write to.
+	 * @throws BufferOverflowException
+	 *         if the buffer may not have room for the event - nothing is written.
+	 */
+	public void encode(long seq, long time, Event event, ByteBuffer buf)
+	{
+		// check first, so we never leave a partial event or a function the reader will not see in the dictionary
+		if (buf.remaining() < maxEncodedSize(event)) throw new BufferOverflowException();
+
+		writeVarLong(buf, seq);
+		writeVarLong(buf, time);
+
+		String function = event.getEvent();
+		Integer code = m_codes.get(function);
+		if (code != null)
+		{
+			writeVarLong(buf, code.intValue());
+		}
+		else
+		{
+			writeVarLong(buf, 0);
+			writeString(buf, function);
+			m_functions.add(function);
+			m_codes.put(function, new Integer(m_functions.size()));
+		}
+
+		writeString(buf, event.getResource());
+		writeString(buf, event.getSessionId());
+		writeString(buf, event.getUserId());
+		buf.put((byte) (event.getModify() ? FLAG_MODIFY : 0));
+
+		int priority = event.getPriority();
+		writeVarLong(buf, ((priority << 1) ^ (priority >> 31)) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Decode the next event.
+	 *
+	 * @param buf
+	 *        The buffer to read from.
+	 * @param factory
+	 *        The factory that makes the event.
+	 * @return The event.
+	 * @throws BufferUnderflowException
+	 *         if the buffer does not hold the whole event - the buffer position is left at the start of the event.
+	 * @throws IllegalArgumentException
+	 *         if the stream is malformed - the buffer position is left at the start of the event.
+	 */
+	public Event decode(ByteBuffer buf, Factory factory)
+	{
+		int start = buf.position();
+		int functions = m_functions.size();
+		try
+		{
+			long seq = readVarLong(buf);
+			long time = readVarLong(buf);
+
+			String function = null;
+			long code = readVarLong(buf);
+			if (code == 0)
+			{
+				function = readString(buf);
+				m_functions.add(function);
+				m_codes.put(function, new Integer(m_functions.size()));
+			}
+			else if ((code > 0) && (code <= m_functions.size()))
+			{
+				function = m_functions.get((int) code - 1);
+			}
+			else
+			{
+				throw new IllegalArgumentException("undefined event function code: " + code);
+			}
+
+			String resource = readString(buf);
+			String sessionId = readString(buf);
+			String userId = readString(buf);
+			int flags = buf.get();
+			int zigzag = (int) readVarLong(buf);
+			int priority = (zigzag >>> 1) ^ -(zigzag & 1);
+
+			return factory.newEvent(seq, time, function, resource, sessionId, userId, (flags & FLAG_MODIFY) != 0, priority);
+		}
+		catch (BufferUnderflowException e)
+		{
+			// undo, so the event can be read again once the rest of it is in the buffer
+			undo(buf, start, functions);
+			throw e;
+		}
+		catch (IllegalArgumentException e)
+		{
+			// undo, so a bad event does not leave its function in the dictionary
+			undo(buf, start, functions);
+			throw e;
+		}
+	}
+
+	/**
+	 * Undo a partly decoded event: drop the functions it added to the dictionary, and go back to its start.
+	 */
+	protected void undo(ByteBuffer buf, int start, int functions)
+	{
+		while (m_functions.size() > functions)
+		{
+			m_codes.remove(m_functions.remove(m_functions.size() - 1));
+		}
+		buf.position(start);
+	}
+
+	/**
+	 * Compute the most bytes that encoding this string could take.
+	 */
+	protected static int maxEncodedSize(String value)
+	{
+		return (value == null) ? 1 : 5 + 3 * value.length();
+	}
+
+	/**
+	 * Write an unsigned varint: 7 bits per byte, low bits first, high bit set on all but the last byte.
+	 */
+	protected static void writeVarLong(ByteBuffer buf, long value)
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			buf.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buf.put((byte) value);
+	}
+
+	/**
+	 * Read an unsigned varint.
+	 */
+	protected static long readVarLong(ByteBuffer buf)
+	{
+		long rv = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			byte b = buf.get();
+			rv |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return rv;
+		}
+
+		throw new IllegalArgumentException("malformed varint");
+	}
+
+	/**
+	 * Write a string as a varint of its UTF-8 length + 1 (0 for null), then its UTF-8 bytes.
+	 */
+	protected static void writeString(ByteBuffer buf, String value)
+	{
+		if (value == null)
+		{
+			buf.put((byte) 0);
+			return;
+		}
+
+		int len = value.length();
+		int utf8 = 0;
+		for (int i = 0; i < len; i++)
+		{
+			char c = value.charAt(i);
+			if (c < 0x80)
+			{
+				utf8 += 1;
+			}
+			else if (c < 0x800)
+			{
+				utf8 += 2;
+			}
+			else if (Character.isHighSurrogate(c) && (i + 1 < len) && Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				utf8 += 4;
+				i++;
+			}
+			else
+			{
+				utf8 += 3;
+			}
+		}
+		writeVarLong(buf, utf8 + 1);
+
+		for (int i = 0; i < len; i++)
+		{
+			char c = value.charAt(i);
+			if (c < 0x80)
+			{
+				buf.put((byte) c);
+			}
+			else if (c < 0x800)
+			{
+				buf.put((byte) (0xC0 | (c >> 6)));
+				buf.put((byte) (0x80 | (c & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) && (i + 1 < len) && Character.isLowSurrogate(value.charAt(i + 1)))
+			{
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buf.put((byte) (0xF0 | (cp >> 18)));
+				buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (cp & 0x3F)));
+			}
+			else
+			{
+				buf.put((byte) (0xE0 | (c >> 12)));
+				buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				buf.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Read a string written by writeString().
+	 */
+	protected String readString(ByteBuffer buf)
+	{
+		long length = readVarLong(buf);
+		if (length == 0) return null;
+		if ((length < 0) || (length - 1 > Integer.MAX_VALUE)) throw new IllegalArgumentException("malformed string length: " + length);
+
+		int utf8 = (int) (length - 1);
+		if (utf8 > buf.remaining()) throw new BufferUnderflowException();
+
+		// a string has no more chars than its UTF-8 bytes
+		if (m_chars.length < utf8)
+		{
+			m_chars = new char[Math.max(utf8, 2 * m_chars.length)];
+		}
+		char[] chars = m_chars;
+		int count = 0;
+
+		int end = buf.position() + utf8;
+		while (buf.position() < end)
+		{
+			int b = buf.get() & 0xFF;
+			if (b < 0x80)
+			{
+				chars[count++] = (char) b;
+				continue;
+			}
+
+			// a multi-byte char must end within the string
+			int more = (b < 0xE0) ? 1 : ((b < 0xF0) ? 2 : 3);
+			if (buf.position() + more > end) throw new IllegalArgumentException("malformed UTF-8 string");
+
+			if (more == 1)
+			{
+				chars[count++] = (char) (((b & 0x1F) << 6) | (buf.get() & 0x3F));
+			}
+			else if (more == 2)
+			{
+				chars[count++] = (char) (((b & 0x0F) << 12) | ((buf.get() & 0x3F) << 6) | (buf.get() & 0x3F));
+			}
+			else
+			{
+				int cp = ((b & 0x07) << 18) | ((buf.get() & 0x3F) << 12) | ((buf.get() & 0x3F) << 6) | (buf.get() & 0x3F);
+				count += Character.toChars(cp, chars, count);
+			}
+		}
+
+		return new String(chars, 0, count);
+	}
+}
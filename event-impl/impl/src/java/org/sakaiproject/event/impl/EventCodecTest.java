@@ -0,0 +1,602 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sakaiproject.event.api.Event;
+
+/**
+ * <p>
+ * EventCodecTest checks that events written by the EventCodec read back as they were written, and times the codec against Java serialization of
+ * the same events. It needs no other services; run it with:
+ * </p>
+ * <p>
+ * java org.sakaiproject.event.impl.EventCodecTest [events]
+ * </p>
+ * <p>
+ * It throws on the first check that fails, then prints the encode and decode rates and the bytes per event of each, for the given number of events
+ * (default 1000000).
+ * </p>
+ */
+public class EventCodecTest
+{
+	public static void main(String[] args)
+	{
+		EventCodecTest test = new EventCodecTest();
+		test.testRoundTrip();
+		test.testNullFields();
+		test.testLongStrings();
+		test.testDictionaryGrowth();
+		test.testVersionMismatch();
+		test.testPartialEvent();
+		test.testMalformedEvent();
+		test.testNoRoom();
+		System.out.println("EventCodecTest: all checks passed");
+
+		test.benchmark((args.length > 0) ? Integer.parseInt(args[0]) : 1000000);
+	}
+
+	/**
+	 * Events of every kind read back as written.
+	 */
+	public void testRoundTrip()
+	{
+		List<Event> events = new ArrayList<Event>();
+		events.add(new TestEvent(1, 1199145600000L, "content.read", "/content/group/site1/a.txt", "s1", "u1", false, 0));
+		events.add(new TestEvent(Long.MAX_VALUE, Long.MAX_VALUE, "content.revise", "/content/group/site1/a.txt", "s1", "u1", true, 1));
+		events.add(new TestEvent(0, 0, "content.read", "", "", "", false, -1));
+		events.add(new TestEvent(3, 5, "site.upd", "/site/\u00e9t\u00e9/\u65e5\u672c", "~server~u2", "u2", true, Integer.MIN_VALUE));
+		events.add(new TestEvent(4, 6, "content.read", "/emoji/\ud83d\ude00", "s2", "u3", false, Integer.MAX_VALUE));
+
+		check(events, roundTrip(events, 4096), "round trip");
+	}
+
+	/**
+	 * Null function, resource, session and user read back as null, not as empty strings.
+	 */
+	public void testNullFields()
+	{
+		List<Event> events = new ArrayList<Event>();
+		events.add(new TestEvent(1, 2, null, null, null, null, false, 0));
+		events.add(new TestEvent(2, 3, "content.read", null, "s1", null, true, 0));
+		events.add(new TestEvent(3, 4, null, "/r", null, "u1", false, 0));
+
+		check(events, roundTrip(events, 1024), "null fields");
+	}
+
+	/**
+	 * Strings longer than the codec's char buffer, with chars of each UTF-8 length, read back whole.
+	 */
+	public void testLongStrings()
+	{
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < 40000; i++)
+		{
+			switch (i % 4)
+			{
+				case 0:
+					buf.append('a');
+					break;
+				case 1:
+					buf.append('\u00e9');
+					break;
+				case 2:
+					buf.append('\u65e5');
+					break;
+				default:
+					buf.append("\ud83d\ude00");
+			}
+		}
+		String big = buf.toString();
+
+		List<Event> events = new ArrayList<Event>();
+		events.add(new TestEvent(1, 2, "content.new", big, "s1", "u1", true, 0));
+		events.add(new TestEvent(2, 3, big, "/r", big, big, false, 0));
+		events.add(new TestEvent(3, 4, "content.new", "/short", "s1", "u1", true, 0));
+
+		check(events, roundTrip(events, 4 * 1024 * 1024), "long strings");
+	}
+
+	/**
+	 * Many functions each take a code; a function seen before is written as its code, and the codes survive a reset only on both sides.
+	 */
+	public void testDictionaryGrowth()
+	{
+		List<Event> events = new ArrayList<Event>();
+		for (int i = 0; i < 5000; i++)
+		{
+			events.add(new TestEvent(i, i, "function." + i, "/r", "s", "u", false, 0));
+		}
+		for (int i = 0; i < 5000; i++)
+		{
+			events.add(new TestEvent(5000 + i, i, "function." + (4999 - i), "/r", "s", "u", false, 0));
+		}
+
+		EventCodec codec = new EventCodec();
+		ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+		codec.writeHeader(buf);
+		int first = 0;
+		for (int i = 0; i < events.size(); i++)
+		{
+			int before = buf.position();
+			encode(codec, events.get(i), buf);
+			if (i == 0) first = buf.position() - before;
+			if ((i >= 5000) && (buf.position() - before >= first))
+			{
+				fail("dictionary growth: a repeated function was not written as a code");
+			}
+		}
+		buf.flip();
+		check(events, decodeAll(new EventCodec(), buf), "dictionary growth");
+
+		// a new stream starts a new dictionary
+		codec.reset();
+		buf.clear();
+		codec.writeHeader(buf);
+		encode(codec, events.get(5000), buf);
+		buf.flip();
+		List<Event> again = new ArrayList<Event>();
+		again.add(events.get(5000));
+		check(again, decodeAll(new EventCodec(), buf), "dictionary reset");
+	}
+
+	/**
+	 * A stream of another format version is refused.
+	 */
+	public void testVersionMismatch()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		buf.put((byte) (EventCodec.VERSION + 1));
+		buf.flip();
+		try
+		{
+			new EventCodec().readHeader(buf);
+			fail("version mismatch: not refused");
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+	}
+
+	/**
+	 * A partly read event leaves the buffer and the dictionary as they were, and reads once the rest arrives.
+	 */
+	public void testPartialEvent()
+	{
+		EventCodec writer = new EventCodec();
+		ByteBuffer whole = ByteBuffer.allocate(1024);
+		writer.writeHeader(whole);
+		Event event = new TestEvent(7, 8, "content.read", "/content/a", "s1", "u1", false, 0);
+		writer.encode(7, 8, event, whole);
+		whole.flip();
+
+		EventCodec reader = new EventCodec();
+		for (int len = 2; len < whole.limit(); len++)
+		{
+			ByteBuffer part = whole.duplicate();
+			part.limit(len);
+			reader.reset();
+			reader.readHeader(part);
+			try
+			{
+				reader.decode(part, FACTORY);
+				fail("partial event: read from " + len + " of " + whole.limit() + " bytes");
+			}
+			catch (BufferUnderflowException expected)
+			{
+			}
+			if (part.position() != 1) fail("partial event: position not restored");
+			if (!reader.m_functions.isEmpty()) fail("partial event: dictionary not restored");
+		}
+
+		reader.reset();
+		reader.readHeader(whole);
+		check(event, reader.decode(whole, FACTORY), "partial event");
+	}
+
+	/**
+	 * A malformed event is refused, leaving the buffer and the dictionary as they were.
+	 */
+	public void testMalformedEvent()
+	{
+		EventCodec writer = new EventCodec();
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		writer.writeHeader(buf);
+		writer.encode(1, 2, new TestEvent(1, 2, "content.read", "ab", "s1", "u1", false, 0), buf);
+		buf.flip();
+
+		// the resource "ab" follows the function: make its last byte the lead of a 4 byte char
+		byte[] bytes = new byte[buf.limit()];
+		buf.get(bytes);
+		int at = indexOf(bytes, new byte[] {3, 'a', 'b'});
+		bytes[at + 2] = (byte) 0xF0;
+
+		EventCodec reader = new EventCodec();
+		ByteBuffer bad = ByteBuffer.wrap(bytes);
+		reader.readHeader(bad);
+		try
+		{
+			reader.decode(bad, FACTORY);
+			fail("malformed event: not refused");
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+		if (bad.position() != 1) fail("malformed event: position not restored");
+		if (!reader.m_functions.isEmpty()) fail("malformed event: dictionary not restored");
+
+		// an undefined function code
+		bad = ByteBuffer.wrap(new byte[] {EventCodec.VERSION, 1, 2, 9, 0, 0, 0, 0, 0});
+		reader.reset();
+		reader.readHeader(bad);
+		try
+		{
+			reader.decode(bad, FACTORY);
+			fail("malformed event: undefined function code not refused");
+		}
+		catch (IllegalArgumentException expected)
+		{
+		}
+
+		// function codes and string lengths too big for an int, which must not wrap around to a valid (or negative) value
+		long[][] huge = { {0xFFFFFFFFL}, {-1L}, {0, (1L << 32) + 1}, {0, -1L}};
+		for (int i = 0; i < huge.length; i++)
+		{
+			buf = ByteBuffer.allocate(64);
+			buf.put(EventCodec.VERSION);
+			EventCodec.writeVarLong(buf, 1);
+			EventCodec.writeVarLong(buf, 2);
+			for (int v = 0; v < huge[i].length; v++)
+			{
+				EventCodec.writeVarLong(buf, huge[i][v]);
+			}
+			buf.put(new byte[] {0, 0, 0, 0, 0});
+			buf.flip();
+
+			reader.reset();
+			reader.readHeader(buf);
+			try
+			{
+				reader.decode(buf, FACTORY);
+				fail("malformed event: oversized value not refused: " + huge[i][huge[i].length - 1]);
+			}
+			catch (IllegalArgumentException expected)
+			{
+			}
+			if (buf.position() != 1) fail("malformed event: position not restored after an oversized value");
+		}
+	}
+
+	/**
+	 * Writing to a buffer without room fails without writing anything.
+	 */
+	public void testNoRoom()
+	{
+		EventCodec codec = new EventCodec();
+		ByteBuffer buf = ByteBuffer.allocate(0);
+		try
+		{
+			codec.writeHeader(buf);
+			fail("no room: header written");
+		}
+		catch (BufferOverflowException expected)
+		{
+		}
+
+		buf = ByteBuffer.allocate(20);
+		buf.put(EventCodec.VERSION);
+		try
+		{
+			codec.encode(1, 2, new TestEvent(1, 2, "content.read", "/content/group/site1/a.txt", "s1", "u1", false, 0), buf);
+			fail("no room: event written");
+		}
+		catch (BufferOverflowException expected)
+		{
+		}
+		if (buf.position() != 1) fail("no room: partial event written");
+		if (!codec.m_functions.isEmpty()) fail("no room: function added to the dictionary");
+	}
+
+	/**
+	 * Time encoding and decoding a stream of typical events, with the codec and with Java serialization.
+	 */
+	public void benchmark(int count)
+	{
+		String[] functions = {"content.read", "content.revise", "site.visit", "pres.begin", "pres.end", "user.login", "user.logout"};
+		List<Event> events = new ArrayList<Event>(1000);
+		for (int i = 0; i < 1000; i++)
+		{
+			events.add(new TestEvent(i, 1199145600000L + i, functions[i % functions.length], "/content/group/site" + (i % 50) + "/folder/file"
+					+ i + ".doc", "0a1b2c3d-4e5f-6789-abcd-" + (100000000000L + i % 200), "user" + (i % 200), (i % 7) == 1, 0));
+		}
+
+		EventCodec codec = new EventCodec();
+		ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+
+		// warm up, then time
+		for (int round = 0; round < 2; round++)
+		{
+			int n = (round == 0) ? Math.min(count, 100000) : count;
+			long encodeNs = 0;
+			long decodeNs = 0;
+			long bytes = 0;
+			for (int done = 0; done < n; done += events.size())
+			{
+				buf.clear();
+				codec.reset();
+				long start = System.nanoTime();
+				codec.writeHeader(buf);
+				for (int i = 0; i < events.size(); i++)
+				{
+					Event event = events.get(i);
+					codec.encode(done + i, 1199145600000L + done + i, event, buf);
+				}
+				encodeNs += System.nanoTime() - start;
+				bytes += buf.position();
+
+				buf.flip();
+				codec.reset();
+				start = System.nanoTime();
+				codec.readHeader(buf);
+				while (buf.hasRemaining())
+				{
+					codec.decode(buf, FACTORY);
+				}
+				decodeNs += System.nanoTime() - start;
+			}
+
+			if (round == 1)
+			{
+				int done = ((n + events.size() - 1) / events.size()) * events.size();
+				System.out.println("EventCodecTest: " + done + " events, " + (bytes / done) + " bytes/event, encode " + (encodeNs / done)
+						+ " ns/event, decode " + (decodeNs / done) + " ns/event");
+			}
+		}
+
+		// the same events, a stream of each 1000, by Java serialization
+		try
+		{
+			for (int round = 0; round < 2; round++)
+			{
+				int n = (round == 0) ? Math.min(count, 100000) : count;
+				long encodeNs = 0;
+				long decodeNs = 0;
+				long bytes = 0;
+				for (int done = 0; done < n; done += events.size())
+				{
+					ByteArrayOutputStream bout = new ByteArrayOutputStream(256 * 1024);
+					long start = System.nanoTime();
+					ObjectOutputStream out = new ObjectOutputStream(bout);
+					for (int i = 0; i < events.size(); i++)
+					{
+						out.writeObject(events.get(i));
+					}
+					out.close();
+					encodeNs += System.nanoTime() - start;
+					bytes += bout.size();
+
+					start = System.nanoTime();
+					ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+					for (int i = 0; i < events.size(); i++)
+					{
+						in.readObject();
+					}
+					in.close();
+					decodeNs += System.nanoTime() - start;
+				}
+
+				if (round == 1)
+				{
+					int done = ((n + events.size() - 1) / events.size()) * events.size();
+					System.out.println("EventCodecTest: serialization: " + done + " events, " + (bytes / done) + " bytes/event, write "
+							+ (encodeNs / done) + " ns/event, read " + (decodeNs / done) + " ns/event");
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		catch (ClassNotFoundException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write some events to a stream and read them back.
+	 */
+	protected List<Event> roundTrip(List<Event> events, int size)
+	{
+		EventCodec codec = new EventCodec();
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		codec.writeHeader(buf);
+		for (Event event : events)
+		{
+			encode(codec, event, buf);
+		}
+		buf.flip();
+
+		return decodeAll(new EventCodec(), buf);
+	}
+
+	/**
+	 * Write a TestEvent with its seq and time.
+	 */
+	protected void encode(EventCodec codec, Event event, ByteBuffer buf)
+	{
+		codec.encode(((TestEvent) event).m_seq, ((TestEvent) event).m_time, event, buf);
+	}
+
+	/**
+	 * Read all the events of a stream.
+	 */
+	protected List<Event> decodeAll(EventCodec codec, ByteBuffer buf)
+	{
+		List<Event> rv = new ArrayList<Event>();
+		codec.readHeader(buf);
+		while (buf.hasRemaining())
+		{
+			rv.add(codec.decode(buf, FACTORY));
+		}
+
+		return rv;
+	}
+
+	protected void check(List<Event> expected, List<Event> actual, String what)
+	{
+		if (expected.size() != actual.size()) fail(what + ": " + actual.size() + " events read, " + expected.size() + " written");
+		for (int i = 0; i < expected.size(); i++)
+		{
+			check(expected.get(i), actual.get(i), what + " event " + i);
+		}
+	}
+
+	protected void check(Event expected, Event actual, String what)
+	{
+		TestEvent e = (TestEvent) expected;
+		TestEvent a = (TestEvent) actual;
+		if ((e.m_seq != a.m_seq) || (e.m_time != a.m_time) || !same(e.m_function, a.m_function) || !same(e.m_resource, a.m_resource)
+				|| !same(e.m_sessionId, a.m_sessionId) || !same(e.m_userId, a.m_userId) || (e.m_modify != a.m_modify)
+				|| (e.m_priority != a.m_priority))
+		{
+			fail(what + ": read " + a + " wrote " + e);
+		}
+	}
+
+	protected static boolean same(String a, String b)
+	{
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	protected static int indexOf(byte[] bytes, byte[] find)
+	{
+		for (int i = 0; i + find.length <= bytes.length; i++)
+		{
+			boolean found = true;
+			for (int j = 0; found && (j < find.length); j++)
+			{
+				found = (bytes[i + j] == find[j]);
+			}
+			if (found) return i;
+		}
+
+		throw new IllegalStateException("not found");
+	}
+
+	protected static void fail(String message)
+	{
+		throw new IllegalStateException("EventCodecTest failed: " + message);
+	}
+
+	/** Makes TestEvents. */
+	protected static final EventCodec.Factory FACTORY = new EventCodec.Factory()
+	{
+		public Event newEvent(long seq, long time, String function, String resource, String sessionId, String userId, boolean modify, int priority)
+		{
+			return new TestEvent(seq, time, function, resource, sessionId, userId, modify, priority);
+		}
+	};
+
+	/**
+	 * TestEvent is a plain event with its seq and time, serializable for the comparison with Java serialization.
+	 */
+	protected static class TestEvent implements Event, Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		protected long m_seq;
+
+		protected long m_time;
+
+		protected String m_function;
+
+		protected String m_resource;
+
+		protected String m_sessionId;
+
+		protected String m_userId;
+
+		protected boolean m_modify;
+
+		protected int m_priority;
+
+		public TestEvent(long seq, long time, String function, String resource, String sessionId, String userId, boolean modify, int priority)
+		{
+			m_seq = seq;
+			m_time = time;
+			m_function = function;
+			m_resource = resource;
+			m_sessionId = sessionId;
+			m_userId = userId;
+			m_modify = modify;
+			m_priority = priority;
+		}
+
+		public String getEvent()
+		{
+			return m_function;
+		}
+
+		public String getResource()
+		{
+			return m_resource;
+		}
+
+		public String getSessionId()
+		{
+			return m_sessionId;
+		}
+
+		public String getUserId()
+		{
+			return m_userId;
+		}
+
+		public boolean getModify()
+		{
+			return m_modify;
+		}
+
+		public int getPriority()
+		{
+			return m_priority;
+		}
+
+		public String toString()
+		{
+			String resource = ((m_resource != null) && (m_resource.length() > 40)) ? m_resource.substring(0, 40) + "..." : m_resource;
+			return m_seq + "," + m_time + "," + m_function + "," + resource + "," + m_sessionId + "," + m_userId + "," + m_modify + "," + m_priority;
+		}
+	}
+}
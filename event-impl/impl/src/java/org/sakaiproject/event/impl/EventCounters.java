@@ -0,0 +1,358 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventBatchObserver;
+
+/**
+ * <p>
+ * EventCounters observes the events posted on this server (and those read from the other servers, if configured to track them), and keeps a rolling
+ * window of per minute counts of them, by function and by context (the site a resource belongs to).
+ * </p>
+ * <p>
+ * Each count is a striped counter: uncontended, it is a single atomic long; once two threads collide on it, it spreads over cells chosen by thread,
+ * so busy counters do not become a point of contention between the posting threads. Counting an event is a couple of map lookups and atomic adds.
+ * The number of keys counted in a minute is bounded; the rest are counted under OTHER.
+ * </p>
+ */
+public class EventCounters implements EventBatchObserver, EventCountersMBean
+{
+	/** The key the counts of any keys past the most we keep in a minute go under. */
+	public static final String OTHER = "~other";
+
+	/** The most functions, or contexts, counted separately in one minute. */
+	protected static final int MAX_KEYS = 10000;
+
+	/** The number of cells a contended counter spreads over. */
+	protected static final int STRIPES = Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2));
+
+	/** The spacing between cells, in longs, to keep them on separate cache lines. */
+	protected static final int PAD = 8;
+
+	/** The ring of minutes; the minute m is in slot m % size. */
+	protected AtomicReferenceArray<Minute> m_minutes = null;
+
+	/**
+	 * Construct.
+	 *
+	 * @param minutes
+	 *        The number of minutes to keep counts for.
+	 */
+	public EventCounters(int minutes)
+	{
+		m_minutes = new AtomicReferenceArray<Minute>(minutes);
+	}
+
+	/**
+	 * Work out the context (site id) of a resource reference: the site id of a site (/site/X) or site realm (/realm//site/X) reference, else the third
+	 * part of the reference (the context of the usual /application/type/context/... entity references).
+	 *
+	 * @param ref
+	 *        The resource reference.
+	 * @return The context, or null if the reference does not have one.
+	 */
+	public static String context(String ref)
+	{
+		if ((ref == null) || (ref.length() < 2) || (ref.charAt(0) != '/')) return null;
+
+		if (ref.startsWith("/realm//site/"))
+		{
+			return part(ref, "/realm//site/".length());
+		}
+
+		// skip the application and the type
+		int start = ref.indexOf('/', 1);
+		if (start == -1) return null;
+		if (ref.startsWith("/site/")) return part(ref, start + 1);
+
+		start = ref.indexOf('/', start + 1);
+		if (start == -1) return null;
+
+		return part(ref, start + 1);
+	}
+
+	/**
+	 * @return The part of the reference from start up to the next '/', or null if it is empty.
+	 */
+	protected static String part(String ref, int start)
+	{
+		int end = ref.indexOf('/', start);
+		if (end == -1) end = ref.length();
+		if (end <= start) return null;
+
+		return ref.substring(start, end);
+	}
+
+	/**
+	 * Count an event.
+	 *
+	 * @param event
+	 *        The event.
+	 */
+	public void count(Event event)
+	{
+		Minute minute = minute(System.currentTimeMillis() / 60000L);
+		minute.m_total.increment();
+		minute.count(minute.m_functions, event.getEvent());
+
+		String context = context(event.getResource());
+		if (context != null) minute.count(minute.m_contexts, context);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void update(Observable o, Object arg)
+	{
+		if (arg instanceof Event) count((Event) arg);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void updateBatch(Observable o, List<Event> events)
+	{
+		for (Iterator<Event> i = events.iterator(); i.hasNext();)
+		{
+			count(i.next());
+		}
+	}
+
+	/**
+	 * Access the Minute for this minute, starting it if needed.
+	 */
+	protected Minute minute(long number)
+	{
+		int slot = (int) (number % m_minutes.length());
+		Minute minute = m_minutes.get(slot);
+		while ((minute == null) || (minute.m_number < number))
+		{
+			// the slot holds an older minute (or none): the first to get here starts the new one
+			Minute newMinute = new Minute(number);
+			if (m_minutes.compareAndSet(slot, minute, newMinute)) return newMinute;
+			minute = m_minutes.get(slot);
+		}
+
+		return minute;
+	}
+
+	/**
+	 * Access the event counts for each minute.
+	 *
+	 * @param byContext
+	 *        true for counts by context, false for counts by function.
+	 * @param minutes
+	 *        The number of minutes, including the current one (at most the number kept).
+	 * @return A Map of function, or context, to its counts in each minute, oldest first, ending with the current minute.
+	 */
+	public Map<String, long[]> getCounts(boolean byContext, int minutes)
+	{
+		minutes = Math.max(0, Math.min(minutes, m_minutes.length()));
+		long now = System.currentTimeMillis() / 60000L;
+
+		Map<String, long[]> rv = new HashMap<String, long[]>();
+		for (int i = 0; i < minutes; i++)
+		{
+			Minute minute = m_minutes.get((int) ((now - i) % m_minutes.length()));
+			if ((minute == null) || (minute.m_number != now - i)) continue;
+
+			Map<String, Counter> counters = byContext ? minute.m_contexts : minute.m_functions;
+			for (Iterator<Map.Entry<String, Counter>> e = counters.entrySet().iterator(); e.hasNext();)
+			{
+				Map.Entry<String, Counter> entry = e.next();
+				long[] counts = rv.get(entry.getKey());
+				if (counts == null)
+				{
+					counts = new long[minutes];
+					rv.put(entry.getKey(), counts);
+				}
+				counts[minutes - 1 - i] = entry.getValue().sum();
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long[] getEventsPerMinute()
+	{
+		int minutes = m_minutes.length();
+		long now = System.currentTimeMillis() / 60000L;
+
+		long[] rv = new long[minutes];
+		for (int i = 0; i < minutes; i++)
+		{
+			Minute minute = m_minutes.get((int) ((now - i) % minutes));
+			if ((minute != null) && (minute.m_number == now - i)) rv[minutes - 1 - i] = minute.m_total.sum();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String[] getFunctionCounts(int minutes)
+	{
+		return totals(getCounts(false, minutes));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String[] getContextCounts(int minutes)
+	{
+		return totals(getCounts(true, minutes));
+	}
+
+	/**
+	 * Format the total counts of each key, busiest first.
+	 */
+	protected String[] totals(Map<String, long[]> counts)
+	{
+		List<Object[]> totals = new ArrayList<Object[]>();
+		for (Iterator<Map.Entry<String, long[]>> i = counts.entrySet().iterator(); i.hasNext();)
+		{
+			Map.Entry<String, long[]> entry = i.next();
+			long total = 0;
+			for (int m = 0; m < entry.getValue().length; m++)
+			{
+				total += entry.getValue()[m];
+			}
+			totals.add(new Object[] {entry.getKey(), new Long(total)});
+		}
+
+		Collections.sort(totals, new Comparator<Object[]>()
+		{
+			public int compare(Object[] a, Object[] b)
+			{
+				return ((Long) b[1]).compareTo((Long) a[1]);
+			}
+		});
+
+		String[] rv = new String[totals.size()];
+		for (int i = 0; i < rv.length; i++)
+		{
+			rv[i] = totals.get(i)[0] + ": " + totals.get(i)[1];
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Minute holds the counts for one minute.
+	 */
+	protected static class Minute
+	{
+		/** The minute, in minutes since the epoch. */
+		protected final long m_number;
+
+		/** The count of all events. */
+		protected final Counter m_total = new Counter();
+
+		/** The counts by function. */
+		protected final ConcurrentHashMap<String, Counter> m_functions = new ConcurrentHashMap<String, Counter>();
+
+		/** The counts by context. */
+		protected final ConcurrentHashMap<String, Counter> m_contexts = new ConcurrentHashMap<String, Counter>();
+
+		public Minute(long number)
+		{
+			m_number = number;
+		}
+
+		protected void count(ConcurrentHashMap<String, Counter> counters, String key)
+		{
+			Counter counter = counters.get(key);
+			if (counter == null)
+			{
+				if (counters.size() >= MAX_KEYS) key = OTHER;
+
+				Counter newCounter = new Counter();
+				counter = counters.putIfAbsent(key, newCounter);
+				if (counter == null) counter = newCounter;
+			}
+
+			counter.increment();
+		}
+	}
+
+	/**
+	 * Counter is a count that many threads can add to at once with little contention, in the manner of the LongAdder of later JDKs.
+	 */
+	protected static class Counter
+	{
+		/** The count, while uncontended. */
+		protected final AtomicLong m_base = new AtomicLong();
+
+		/** The cells, once contended, or null. */
+		protected final AtomicReference<AtomicLongArray> m_cells = new AtomicReference<AtomicLongArray>();
+
+		protected void increment()
+		{
+			AtomicLongArray cells = m_cells.get();
+			if (cells == null)
+			{
+				long count = m_base.get();
+				if (m_base.compareAndSet(count, count + 1)) return;
+
+				// another thread got there first: spread out
+				m_cells.compareAndSet(null, new AtomicLongArray(STRIPES * PAD));
+				cells = m_cells.get();
+			}
+
+			cells.incrementAndGet((int) (Thread.currentThread().getId() % STRIPES) * PAD);
+		}
+
+		protected long sum()
+		{
+			long rv = m_base.get();
+			AtomicLongArray cells = m_cells.get();
+			if (cells != null)
+			{
+				for (int i = 0; i < STRIPES; i++)
+				{
+					rv += cells.get(i * PAD);
+				}
+			}
+
+			return rv;
+		}
+	}
+}
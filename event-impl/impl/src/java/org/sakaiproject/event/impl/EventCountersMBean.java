@@ -0,0 +1,55 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+/**
+ * <p>
+ * EventCountersMBean is the JMX management interface for the per minute event counts.
+ * </p>
+ */
+public interface EventCountersMBean
+{
+	/**
+	 * Access the count of all events in each minute.
+	 *
+	 * @return The counts, oldest minute first, ending with the current (partial) minute.
+	 */
+	long[] getEventsPerMinute();
+
+	/**
+	 * Access the event counts by function over the last few minutes.
+	 *
+	 * @param minutes
+	 *        The number of minutes, including the current one.
+	 * @return One line per function: the function and its count, busiest first.
+	 */
+	String[] getFunctionCounts(int minutes);
+
+	/**
+	 * Access the event counts by context (site) over the last few minutes.
+	 *
+	 * @param minutes
+	 *        The number of minutes, including the current one.
+	 * @return One line per context: the context and its count, busiest first.
+	 */
+	String[] getContextCounts(int minutes);
+}
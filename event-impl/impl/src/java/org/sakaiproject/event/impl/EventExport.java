@@ -0,0 +1,391 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.TimeZone;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sakaiproject.event.api.Event;
+
+/**
+ * <p>
+ * EventExport writes the events, as they are written to the db, to local files of newline delimited JSON, one event object a line, for analytics
+ * tools to read in place of querying SAKAI_EVENT.
+ * </p>
+ * <p>
+ * The current file is named events-yyyyMMdd-HHmmss-server.ndjson.part (GMT, the time it was started); it is rolled over once it reaches the size limit
+ * or the age limit, when it is closed and renamed without the .part, so readers can take any file not ending in .part as complete. Each batch is
+ * written and flushed whole, so a crash loses at most the batch being written.
+ * </p>
+ * <p>
+ * Each event carries its EVENT_ID as "seq" (null if the driver could not report it), which readers can use to skip events they have already seen.
+ * If a batch cannot be written, the file is cut back to the end of the last complete batch and published, and the batch is tried once more in a new
+ * file; if that fails too the events are dropped from the export (they are still in the db) and the dropped range is logged. A file that cannot be
+ * cut back is renamed .failed rather than published.
+ * </p>
+ */
+public class EventExport
+{
+	/** Our logger. */
+	private static Log M_log = LogFactory.getLog(EventExport.class);
+
+	/** The suffix of the file being written. */
+	protected static final String PART = ".part";
+
+	/** The suffix of a file that could not be cleaned up after a failed write. */
+	protected static final String FAILED = ".failed";
+
+	/** The export directory. */
+	protected File m_dir = null;
+
+	/** The server id, in the file names and the events. */
+	protected String m_serverId = null;
+
+	/** The size (bytes) at which a file is rolled over. */
+	protected long m_maxSize = 0;
+
+	/** The age (ms) at which a file is rolled over. */
+	protected long m_maxAge = 0;
+
+	/** The file being written, or null if none is open. */
+	protected File m_file = null;
+
+	/** The stream of the current file. */
+	protected FileOutputStream m_out = null;
+
+	/** When the current file was started. */
+	protected long m_started = 0;
+
+	/** The bytes written to the current file, all in complete batches. */
+	protected long m_size = 0;
+
+	/** The file name date format. */
+	protected SimpleDateFormat m_nameFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+
+	/**
+	 * Construct.
+	 *
+	 * @param dir
+	 *        The export directory.
+	 * @param serverId
+	 *        The server id.
+	 * @param maxSize
+	 *        The size (bytes) at which a file is rolled over.
+	 * @param maxAge
+	 *        The age (ms) at which a file is rolled over.
+	 */
+	public EventExport(File dir, String serverId, long maxSize, long maxAge)
+	{
+		m_dir = dir;
+		m_serverId = serverId;
+		m_maxSize = maxSize;
+		m_maxAge = maxAge;
+		m_nameFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
+
+	/**
+	 * Write a batch of events, rolling over to a new file first if the current one is full or old enough.
+	 *
+	 * @param events
+	 *        The events (BaseEvents) just written to the db.
+	 */
+	public synchronized void write(Collection events)
+	{
+		if (events.isEmpty()) return;
+
+		byte[] batch = null;
+		try
+		{
+			batch = format(events).getBytes("UTF-8");
+		}
+		catch (IOException e)
+		{
+			M_log.warn("write: " + e);
+			return;
+		}
+
+		// a failed batch leaves the file it was going into published without it, so one more try goes to a new file
+		if (append(batch)) return;
+		if (append(batch)) return;
+
+		BaseEventTrackingService.BaseEvent first = (BaseEventTrackingService.BaseEvent) events.iterator().next();
+		BaseEventTrackingService.BaseEvent last = first;
+		for (Iterator i = events.iterator(); i.hasNext();)
+		{
+			last = (BaseEventTrackingService.BaseEvent) i.next();
+		}
+		M_log.warn("write: dropped " + events.size() + " events from the export: seq " + first.m_seq + " to " + last.m_seq + ", time "
+				+ first.m_time + " to " + last.m_time);
+	}
+
+	/**
+	 * Roll over the current file if it is old enough, so a quiet server still publishes its events on time.
+	 */
+	public synchronized void check()
+	{
+		if ((m_out == null) || (System.currentTimeMillis() - m_started < m_maxAge)) return;
+
+		close();
+	}
+
+	/**
+	 * Close and publish the current file, if any.
+	 */
+	public synchronized void close()
+	{
+		if (m_out == null) return;
+
+		try
+		{
+			rollover();
+		}
+		catch (IOException e)
+		{
+			M_log.warn("close: " + m_file + " : " + e);
+			m_out = null;
+			m_file = null;
+		}
+	}
+
+	/**
+	 * Append a batch to the current file, starting a new one as needed.
+	 *
+	 * @param batch
+	 *        The encoded batch.
+	 * @return true if written, false if not, in which case the file has been cut back to its last complete batch and closed.
+	 */
+	protected boolean append(byte[] batch)
+	{
+		try
+		{
+			long now = System.currentTimeMillis();
+			if ((m_out != null) && ((m_size >= m_maxSize) || (now - m_started >= m_maxAge)))
+			{
+				rollover();
+			}
+
+			if (m_out == null) open(now);
+		}
+		catch (IOException e)
+		{
+			M_log.warn("write: " + m_file + " : " + e);
+			abandon();
+			return false;
+		}
+
+		try
+		{
+			m_out.write(batch);
+			m_out.flush();
+			m_size += batch.length;
+			return true;
+		}
+		catch (IOException e)
+		{
+			M_log.warn("write: " + m_file + " : " + e);
+		}
+
+		// cut off whatever part of the batch made it, and publish the complete batches before it
+		try
+		{
+			m_out.getChannel().truncate(m_size);
+			rollover();
+		}
+		catch (IOException e)
+		{
+			M_log.warn("write: could not cut back, setting the file aside: " + m_file + " : " + e);
+			abandon();
+		}
+
+		return false;
+	}
+
+	/**
+	 * Give up on the current file, if any, renaming it .failed so readers do not take it.
+	 */
+	protected void abandon()
+	{
+		File file = m_file;
+		FileOutputStream out = m_out;
+		m_out = null;
+		m_file = null;
+		if (file == null) return;
+
+		try
+		{
+			out.close();
+		}
+		catch (IOException e)
+		{
+		}
+
+		String name = file.getName();
+		File failed = new File(m_dir, name.substring(0, name.length() - PART.length()) + FAILED);
+		if (!file.renameTo(failed))
+		{
+			M_log.warn("abandon: could not rename: " + file);
+		}
+	}
+
+	/**
+	 * Format a batch of events, one JSON object a line.
+	 */
+	protected String format(Collection events)
+	{
+		StringBuilder buf = new StringBuilder();
+		for (Iterator i = events.iterator(); i.hasNext();)
+		{
+			BaseEventTrackingService.BaseEvent event = (BaseEventTrackingService.BaseEvent) i.next();
+			buf.append("{\"seq\":");
+			if (event.m_seq > 0)
+			{
+				buf.append(event.m_seq);
+			}
+			else
+			{
+				buf.append("null");
+			}
+			buf.append(",\"time\":").append(event.m_time);
+			buf.append(",\"event\":");
+			quote(buf, event.getEvent());
+			buf.append(",\"ref\":");
+			quote(buf, event.getResource());
+			buf.append(",\"session\":");
+			quote(buf, event.getSessionId());
+			buf.append(",\"user\":");
+			quote(buf, event.getUserId());
+			buf.append(",\"modify\":").append(event.getModify());
+			buf.append(",\"server\":");
+			quote(buf, m_serverId);
+			buf.append("}\n");
+		}
+
+		return buf.toString();
+	}
+
+	/**
+	 * Start a new file.
+	 */
+	protected void open(long now) throws IOException
+	{
+		m_dir.mkdirs();
+
+		String base = "events-" + m_nameFormat.format(new Date(now)) + "-" + m_serverId;
+		String name = base + ".ndjson";
+		for (int n = 1; new File(m_dir, name + PART).exists() || new File(m_dir, name).exists() || new File(m_dir, name + FAILED).exists(); n++)
+		{
+			name = base + "-" + n + ".ndjson";
+		}
+		File file = new File(m_dir, name + PART);
+
+		m_out = new FileOutputStream(file);
+		m_file = file;
+		m_started = now;
+		m_size = 0;
+	}
+
+	/**
+	 * Close the current file and rename it to drop the .part, or remove it if it has nothing in it.
+	 */
+	protected void rollover() throws IOException
+	{
+		File file = m_file;
+		FileOutputStream out = m_out;
+		m_out = null;
+		m_file = null;
+
+		out.close();
+
+		if (m_size == 0)
+		{
+			if (!file.delete()) M_log.warn("rollover: could not remove: " + file);
+			return;
+		}
+
+		String name = file.getName();
+		File done = new File(m_dir, name.substring(0, name.length() - PART.length()));
+		if (!file.renameTo(done))
+		{
+			M_log.warn("rollover: could not rename: " + file);
+		}
+	}
+
+	/**
+	 * Append a string as a JSON string value, or null.
+	 */
+	protected static void quote(StringBuilder buf, String value)
+	{
+		if (value == null)
+		{
+			buf.append("null");
+			return;
+		}
+
+		buf.append('"');
+		for (int i = 0; i < value.length(); i++)
+		{
+			char c = value.charAt(i);
+			switch (c)
+			{
+				case '"':
+					buf.append("\\\"");
+					break;
+				case '\\':
+					buf.append("\\\\");
+					break;
+				case '\n':
+					buf.append("\\n");
+					break;
+				case '\r':
+					buf.append("\\r");
+					break;
+				case '\t':
+					buf.append("\\t");
+					break;
+				default:
+					if (c < 0x20)
+					{
+						buf.append("\\u");
+						String hex = Integer.toHexString(c);
+						for (int p = hex.length(); p < 4; p++)
+						{
+							buf.append('0');
+						}
+						buf.append(hex);
+					}
+					else
+					{
+						buf.append(c);
+					}
+			}
+		}
+		buf.append('"');
+	}
+}
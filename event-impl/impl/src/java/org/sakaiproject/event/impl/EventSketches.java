@@ -0,0 +1,258 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.sakaiproject.event.api.Event;
+
+/**
+ * <p>
+ * EventSketches keeps streaming summaries of the events, in fixed length time windows: the most accessed resources (a TopKSketch of the event
+ * references), and the distinct users of each context (a HyperLogLog per site).
+ * </p>
+ * <p>
+ * When a window ends, its sketches are kept as a snapshot, and a fixed number of the latest snapshots are kept. Queries merge the snapshots (and the
+ * current window) that overlap the time asked about. Memory is bounded: the Top-K capacity, and a 1KB HyperLogLog for each of at most MAX_CONTEXTS
+ * contexts a window, for each window kept - at most about 1.1MB a window with a Top-K capacity of 1000, so about 27MB for the current window and 24
+ * kept. The snapshots are Serializable and mergeable, so the sketches of the servers of a cluster can be combined.
+ * </p>
+ */
+public class EventSketches
+{
+	/** The most contexts whose distinct users are counted in one window. */
+	protected static final int MAX_CONTEXTS = 1000;
+
+	/** The length of each window, in ms. */
+	protected long m_windowLength = 0;
+
+	/** The number of resources each window's Top-K sketch counts. */
+	protected int m_topCapacity = 0;
+
+	/** The current window. */
+	protected volatile Window m_current = null;
+
+	/** The snapshots of the past windows, newest first. */
+	protected List<Window> m_snapshots = new ArrayList<Window>();
+
+	/** The number of past windows to keep. */
+	protected int m_keep = 0;
+
+	/**
+	 * Construct.
+	 *
+	 * @param windowLength
+	 *        The length of each window, in ms.
+	 * @param keep
+	 *        The number of past windows to keep.
+	 * @param topCapacity
+	 *        The number of resources each window's Top-K sketch counts.
+	 */
+	public EventSketches(long windowLength, int keep, int topCapacity)
+	{
+		m_windowLength = windowLength;
+		m_keep = keep;
+		m_topCapacity = topCapacity;
+	}
+
+	/**
+	 * Add an event.
+	 *
+	 * @param event
+	 *        The event.
+	 * @param userId
+	 *        The id of the user responsible for the event, or null if not known (in which case the event counts towards the top resources, but not
+	 *        the distinct users: counting its session in place of its user would count a user again for each session).
+	 */
+	public void add(Event event, String userId)
+	{
+		Window window = window(System.currentTimeMillis());
+		window.m_resources.add(event.getResource());
+
+		String context = EventCounters.context(event.getResource());
+		if ((context == null) || (userId == null)) return;
+
+		HyperLogLog users = window.m_users.get(context);
+		if (users == null)
+		{
+			if (window.m_users.size() >= MAX_CONTEXTS) return;
+
+			HyperLogLog newUsers = new HyperLogLog();
+			users = window.m_users.putIfAbsent(context, newUsers);
+			if (users == null) users = newUsers;
+		}
+
+		users.add(userId);
+	}
+
+	/**
+	 * Access the window for this time, snapshotting the current window if it has ended.
+	 */
+	protected Window window(long now)
+	{
+		Window window = m_current;
+		if ((window != null) && (now < window.m_start + m_windowLength)) return window;
+
+		synchronized (this)
+		{
+			window = m_current;
+			if ((window == null) || (now >= window.m_start + m_windowLength))
+			{
+				if (window != null)
+				{
+					m_snapshots.add(0, window);
+					while (m_snapshots.size() > m_keep)
+					{
+						m_snapshots.remove(m_snapshots.size() - 1);
+					}
+				}
+
+				window = new Window(now - (now % m_windowLength), m_topCapacity);
+				m_current = window;
+			}
+
+			return window;
+		}
+	}
+
+	/**
+	 * Access the current window and the snapshots that overlap a time range.
+	 *
+	 * @param since
+	 *        The start of the time range (ms since the epoch); the range runs to now.
+	 * @return The windows, newest first.
+	 */
+	public List<Window> getWindows(long since)
+	{
+		List<Window> rv = new ArrayList<Window>();
+		window(System.currentTimeMillis());
+
+		synchronized (this)
+		{
+			rv.add(m_current);
+			for (Window window : m_snapshots)
+			{
+				if (window.m_start + m_windowLength <= since) break;
+				rv.add(window);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Find the most accessed resources.
+	 *
+	 * @param since
+	 *        From this time (ms since the epoch) on, to the window.
+	 * @param max
+	 *        The most resources to return.
+	 * @return A Map of resource reference to estimated access count, largest first.
+	 */
+	public Map<String, Long> getTopResources(long since, int max)
+	{
+		TopKSketch merged = new TopKSketch(m_topCapacity);
+		for (Window window : getWindows(since))
+		{
+			merged.merge(window.m_resources);
+		}
+
+		return merged.top(max);
+	}
+
+	/**
+	 * Estimate the distinct users of a context.
+	 *
+	 * @param context
+	 *        The context (site id).
+	 * @param since
+	 *        From this time (ms since the epoch) on, to the window.
+	 * @return The estimated number of distinct users.
+	 */
+	public long getDistinctUsers(String context, long since)
+	{
+		HyperLogLog merged = new HyperLogLog();
+		for (Window window : getWindows(since))
+		{
+			HyperLogLog users = window.m_users.get(context);
+			if (users != null) merged.merge(users);
+		}
+
+		return merged.estimate();
+	}
+
+	/**
+	 * Window holds the sketches of one time window.
+	 */
+	public static class Window implements Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** The start of the window, in ms since the epoch. */
+		protected final long m_start;
+
+		/** The most accessed resources. */
+		protected final TopKSketch m_resources;
+
+		/** The distinct users of each context. */
+		protected final ConcurrentHashMap<String, HyperLogLog> m_users = new ConcurrentHashMap<String, HyperLogLog>();
+
+		public Window(long start, int topCapacity)
+		{
+			m_start = start;
+			m_resources = new TopKSketch(topCapacity);
+		}
+
+		/**
+		 * @return The start of the window, in ms since the epoch.
+		 */
+		public long getStart()
+		{
+			return m_start;
+		}
+
+		/**
+		 * Merge the sketches of the same window from another server into this one.
+		 *
+		 * @param other
+		 *        The other window.
+		 */
+		public void merge(Window other)
+		{
+			m_resources.merge(other.m_resources);
+			for (Map.Entry<String, HyperLogLog> entry : other.m_users.entrySet())
+			{
+				HyperLogLog users = m_users.get(entry.getKey());
+				if (users == null)
+				{
+					users = m_users.putIfAbsent(entry.getKey(), new HyperLogLog());
+					if (users == null) users = m_users.get(entry.getKey());
+				}
+				users.merge(entry.getValue());
+			}
+		}
+	}
+}
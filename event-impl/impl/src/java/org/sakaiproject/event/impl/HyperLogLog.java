@@ -0,0 +1,150 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * HyperLogLog estimates the number of distinct strings added to it, in a fixed 2^precision bytes. With the default precision of 10 (1KB), the
+ * estimate is typically within 3% of the true count.
+ * </p>
+ * <p>
+ * Sketches merge by taking the larger of each register, giving the sketch of the union, so the sketches of many servers, or of many time windows,
+ * can be combined. Adding from many threads at once is safe: a racing update may at worst lose a register increase, very slightly lowering the
+ * estimate.
+ * </p>
+ */
+public class HyperLogLog implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/** The default precision. */
+	public static final int PRECISION = 10;
+
+	/** The number of bits of the hash that choose the register. */
+	protected int m_precision = 0;
+
+	/** The registers: the most leading zeros (+1) seen in the hashes that fell to each. */
+	protected byte[] m_registers = null;
+
+	/**
+	 * Construct, with the default precision.
+	 */
+	public HyperLogLog()
+	{
+		this(PRECISION);
+	}
+
+	/**
+	 * Construct.
+	 *
+	 * @param precision
+	 *        The number of bits of the hash that choose the register (4 - 16).
+	 */
+	public HyperLogLog(int precision)
+	{
+		m_precision = precision;
+		m_registers = new byte[1 << precision];
+	}
+
+	/**
+	 * Add a string.
+	 *
+	 * @param value
+	 *        The string.
+	 */
+	public void add(String value)
+	{
+		if (value == null) return;
+
+		long hash = hash(value);
+		int register = (int) (hash >>> (64 - m_precision));
+		byte rank = (byte) (Long.numberOfLeadingZeros((hash << m_precision) | (1L << (m_precision - 1))) + 1);
+		if (m_registers[register] < rank) m_registers[register] = rank;
+	}
+
+	/**
+	 * Add the strings of another sketch (of the same precision) to this one.
+	 *
+	 * @param other
+	 *        The other sketch.
+	 */
+	public void merge(HyperLogLog other)
+	{
+		if (other.m_precision != m_precision) throw new IllegalArgumentException("precision: " + other.m_precision + " != " + m_precision);
+
+		for (int i = 0; i < m_registers.length; i++)
+		{
+			if (m_registers[i] < other.m_registers[i]) m_registers[i] = other.m_registers[i];
+		}
+	}
+
+	/**
+	 * Estimate the number of distinct strings added.
+	 *
+	 * @return The estimated count.
+	 */
+	public long estimate()
+	{
+		int m = m_registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < m; i++)
+		{
+			sum += 1.0 / (1L << m_registers[i]);
+			if (m_registers[i] == 0) zeros++;
+		}
+
+		double alpha = (m == 16) ? 0.673 : ((m == 32) ? 0.697 : ((m == 64) ? 0.709 : 0.7213 / (1 + 1.079 / m)));
+		double estimate = alpha * m * m / sum;
+
+		// small counts are better estimated from the empty registers
+		if ((estimate <= 2.5 * m) && (zeros > 0))
+		{
+			estimate = m * Math.log((double) m / zeros);
+		}
+
+		return Math.round(estimate);
+	}
+
+	/**
+	 * A 64 bit hash of a string: FNV-1a over the chars, finished with the MurmurHash3 mix so all the bits depend on all the input.
+	 */
+	protected static long hash(String value)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++)
+		{
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+}
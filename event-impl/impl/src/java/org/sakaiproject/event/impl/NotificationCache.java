@@ -27,12 +27,13 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
-import java.util.Observer;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventFilter;
+import org.sakaiproject.event.api.FilteredObserver;
 import org.sakaiproject.event.api.Notification;
 import org.sakaiproject.event.cover.EventTrackingService;
 import org.sakaiproject.memory.api.Cache;
@@ -48,7 +49,7 @@ import org.sakaiproject.memory.cover.MemoryServiceLocator;
  * When the object expires, the cache calls upon a CacheRefresher to update the key's value. The update is done in a separate thread.
  * </p>
  */
-public class NotificationCache implements Cacher, Observer {
+public class NotificationCache implements Cacher, FilteredObserver {
 	/** Our logger. */
 	private static Log M_log = LogFactory.getLog(NotificationCache.class);
 
@@ -457,6 +458,17 @@ public class NotificationCache implements Cacher, Observer {
 
 	} // update
 
+	/**
+	 * Access the filter of the events this cache is interested in: the modify events of resources in its pattern.
+	 * 
+	 * @return The filter.
+	 */
+	public EventFilter getEventFilter()
+	{
+		return new EventFilter(null, m_resourcePattern, true);
+
+	} // getEventFilter
+
 	/**
 	 * Complete the update, given an event that we know we need to act upon.
 	 * 
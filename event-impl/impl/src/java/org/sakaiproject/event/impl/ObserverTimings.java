@@ -0,0 +1,223 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * ObserverTimings keeps, for each event observer, a count of notifications and a histogram of the time spent in its update(), and logs a warning when
+ * an observer is slow to handle an event.
+ * </p>
+ * <p>
+ * Recording costs a map lookup and a few atomic updates per notification, so it can be left on in production. Warnings are limited to one per
+ * observer per minute.
+ * </p>
+ */
+public class ObserverTimings implements ObserverTimingsMBean
+{
+	/** Our logger. */
+	private static Log M_log = LogFactory.getLog(ObserverTimings.class);
+
+	/** The histogram bucket upper bounds are 1, 2, 4 ... ms; the last bucket holds everything slower. */
+	protected static final int BUCKETS = 16;
+
+	/** The least time between slow observer warnings for any one observer, in ms. */
+	protected static final long WARN_INTERVAL = 60L * 1000L;
+
+	/** The Timing for each observer. */
+	protected ConcurrentHashMap<Observer, Timing> m_timings = new ConcurrentHashMap<Observer, Timing>();
+
+	/** The threshold, in ms, over which a notification is logged as slow. */
+	protected volatile long m_slowThreshold = 1000L;
+
+	/**
+	 * Construct.
+	 *
+	 * @param slowThreshold
+	 *        The threshold, in ms, over which a notification is logged as slow.
+	 */
+	public ObserverTimings(long slowThreshold)
+	{
+		m_slowThreshold = slowThreshold;
+	}
+
+	/**
+	 * Record the time taken to notify an observer of an event.
+	 *
+	 * @param observer
+	 *        The observer.
+	 * @param nanos
+	 *        The time spent in the observer's update(), in ns.
+	 * @param event
+	 *        The event the observer was notified of.
+	 */
+	public void record(Observer observer, long nanos, Object event)
+	{
+		Timing timing = m_timings.get(observer);
+		if (timing == null)
+		{
+			Timing newTiming = new Timing(observer);
+			timing = m_timings.putIfAbsent(observer, newTiming);
+			if (timing == null) timing = newTiming;
+		}
+
+		long ms = nanos / 1000000L;
+		timing.record(nanos, ms);
+
+		if (ms >= m_slowThreshold)
+		{
+			long now = System.currentTimeMillis();
+			long last = timing.m_lastWarning.get();
+			if ((now - last >= WARN_INTERVAL) && timing.m_lastWarning.compareAndSet(last, now))
+			{
+				M_log.warn("slow observer: " + timing.m_name + " took " + ms + "ms for event: " + event + " (" + timing.m_count.get()
+						+ " notifications, max " + timing.m_max.get() / 1000000L + "ms)");
+			}
+		}
+	}
+
+	/**
+	 * Stop keeping statistics for this observer.
+	 *
+	 * @param observer
+	 *        The observer.
+	 */
+	public void remove(Observer observer)
+	{
+		m_timings.remove(observer);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String[] getObserverStatistics()
+	{
+		List<String> rv = new ArrayList<String>();
+		for (Iterator<Timing> i = m_timings.values().iterator(); i.hasNext();)
+		{
+			rv.add(i.next().toString());
+		}
+
+		return rv.toArray(new String[rv.size()]);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getSlowThreshold()
+	{
+		return m_slowThreshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setSlowThreshold(long ms)
+	{
+		m_slowThreshold = ms;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void reset()
+	{
+		m_timings.clear();
+	}
+
+	/**
+	 * Timing holds the statistics for one observer.
+	 */
+	protected static class Timing
+	{
+		/** The observer's name in the logs and statistics. */
+		protected String m_name = null;
+
+		/** Count of notifications. */
+		protected AtomicLong m_count = new AtomicLong();
+
+		/** Total time in update(), in ns. */
+		protected AtomicLong m_total = new AtomicLong();
+
+		/** Longest time in update(), in ns. */
+		protected AtomicLong m_max = new AtomicLong();
+
+		/** Count of notifications by power of two ms. */
+		protected AtomicLongArray m_histogram = new AtomicLongArray(BUCKETS);
+
+		/** When we last warned about this observer. */
+		protected AtomicLong m_lastWarning = new AtomicLong();
+
+		public Timing(Observer observer)
+		{
+			m_name = observer.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(observer));
+		}
+
+		protected void record(long nanos, long ms)
+		{
+			m_count.incrementAndGet();
+			m_total.addAndGet(nanos);
+
+			long max = m_max.get();
+			while ((nanos > max) && !m_max.compareAndSet(max, nanos))
+			{
+				max = m_max.get();
+			}
+
+			// bucket b holds times under 2^b ms
+			int bucket = 0;
+			while ((bucket < BUCKETS - 1) && (ms >= (1L << bucket)))
+			{
+				bucket++;
+			}
+			m_histogram.incrementAndGet(bucket);
+		}
+
+		public String toString()
+		{
+			long count = m_count.get();
+			StringBuilder buf = new StringBuilder();
+			buf.append(m_name).append(" count: ").append(count);
+			buf.append(" mean: ").append(count == 0 ? 0 : m_total.get() / count / 1000L).append("us");
+			buf.append(" max: ").append(m_max.get() / 1000L).append("us");
+			buf.append(" histogram (ms):");
+			for (int b = 0; b < BUCKETS; b++)
+			{
+				long n = m_histogram.get(b);
+				if (n == 0) continue;
+				buf.append(" ").append(b == BUCKETS - 1 ? ">=" + (1L << (b - 1)) : "<" + (1L << b)).append("=").append(n);
+			}
+
+			return buf.toString();
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+/**
+ * <p>
+ * ObserverTimingsMBean is the JMX management interface for the event observer dispatch timings.
+ * </p>
+ */
+public interface ObserverTimingsMBean
+{
+	/**
+	 * Access the dispatch statistics for each observer that has been notified.
+	 *
+	 * @return One line per observer: the observer, the count of notifications, the mean and max time spent in update(), and the latency histogram.
+	 */
+	String[] getObserverStatistics();
+
+	/**
+	 * Access the threshold over which a single observer notification is logged as slow.
+	 *
+	 * @return The threshold in ms.
+	 */
+	long getSlowThreshold();
+
+	/**
+	 * Set the threshold over which a single observer notification is logged as slow.
+	 *
+	 * @param ms
+	 *        The threshold in ms.
+	 */
+	void setSlowThreshold(long ms);
+
+	/**
+	 * Forget all the statistics gathered so far.
+	 */
+	void reset();
+}
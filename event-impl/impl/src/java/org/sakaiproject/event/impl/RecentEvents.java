@@ -0,0 +1,142 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.sakaiproject.event.api.Event;
+
+/**
+ * <p>
+ * RecentEvents keeps the most recent events in a fixed size ring, and answers queries over them from memory.
+ * </p>
+ * <p>
+ * Adding an event takes a slot with one atomic increment and fills it with one atomic set, so posting threads never wait on each other or on
+ * readers. Readers walk back from the newest slot; a slot that has been filled again by a newer event since the reader started is skipped, so a query
+ * sees each event at most once, and may miss those overwritten while it runs.
+ * </p>
+ */
+public class RecentEvents
+{
+	/** The ring of entries; the entry for position p is in slot p % size. */
+	protected AtomicReferenceArray<Entry> m_ring = null;
+
+	/** The next position to fill. */
+	protected AtomicLong m_next = new AtomicLong();
+
+	/**
+	 * Construct.
+	 *
+	 * @param size
+	 *        The number of events to keep.
+	 */
+	public RecentEvents(int size)
+	{
+		m_ring = new AtomicReferenceArray<Entry>(size);
+	}
+
+	/**
+	 * Add an event.
+	 *
+	 * @param event
+	 *        The event.
+	 * @param time
+	 *        The event time, in ms since the epoch.
+	 * @param userId
+	 *        The id of the user responsible for the event, if known, else null.
+	 */
+	public void add(Event event, long time, String userId)
+	{
+		long position = m_next.getAndIncrement();
+		m_ring.set((int) (position % m_ring.length()), new Entry(position, event, time, userId));
+	}
+
+	/**
+	 * Find the recent events that match all the criteria given, newest first.
+	 *
+	 * @param since
+	 *        Only events from this time on (ms since the epoch).
+	 * @param resourcePrefix
+	 *        If not null, only events whose resource starts with this.
+	 * @param userId
+	 *        If not null, only events of this user.
+	 * @param sessionId
+	 *        If not null, only events of this usage session.
+	 * @param function
+	 *        If not null, only events with this function.
+	 * @param max
+	 *        The most events to return.
+	 * @return The List (Event) of the matching events, newest first.
+	 */
+	public List<Event> find(long since, String resourcePrefix, String userId, String sessionId, String function, int max)
+	{
+		List<Event> rv = new ArrayList<Event>();
+
+		int size = m_ring.length();
+		long newest = m_next.get() - 1;
+		long oldest = Math.max(0, newest - size + 1);
+		for (long position = newest; (position >= oldest) && (rv.size() < max); position--)
+		{
+			Entry entry = m_ring.get((int) (position % size));
+
+			// not yet filled, or already filled again
+			if ((entry == null) || (entry.m_position != position)) continue;
+
+			if (entry.m_time < since) continue;
+
+			Event event = entry.m_event;
+			if ((function != null) && !function.equals(event.getEvent())) continue;
+			if ((sessionId != null) && !sessionId.equals(event.getSessionId())) continue;
+			if ((userId != null) && !userId.equals(entry.m_userId)) continue;
+			if ((resourcePrefix != null) && ((event.getResource() == null) || !event.getResource().startsWith(resourcePrefix))) continue;
+
+			rv.add(event);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Entry is an event in the ring.
+	 */
+	protected static class Entry
+	{
+		protected final long m_position;
+
+		protected final Event m_event;
+
+		protected final long m_time;
+
+		protected final String m_userId;
+
+		public Entry(long position, Event event, long time, String userId)
+		{
+			m_position = position;
+			m_event = event;
+			m_time = time;
+			m_userId = userId;
+		}
+	}
+}
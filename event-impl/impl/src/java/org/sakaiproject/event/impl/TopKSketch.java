@@ -0,0 +1,372 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * TopKSketch finds the most frequent keys of a stream in bounded memory, with the space-saving algorithm: it counts at most capacity keys, and a new
+ * key takes over the slot of the least counted key, starting from its count. Any key counted more than (stream length / capacity) times is sure to be
+ * found; each count is over by at most its recorded error.
+ * </p>
+ * <p>
+ * The counters are kept in the stream-summary structure: a list of buckets, one for each count in use, in order of count, each holding the counters
+ * with that count. Counting a key moves its counter to the next bucket up, and the least counted key is the first of the first bucket, so each add
+ * takes constant time however many keys are counted - a long tail of keys seen once costs no more than a few hot keys.
+ * </p>
+ * <p>
+ * Sketches merge by adding the counts of each key and keeping the capacity largest, so the sketches of many servers, or of many time windows, can be
+ * combined.
+ * </p>
+ */
+public class TopKSketch implements Serializable
+{
+	private static final long serialVersionUID = 2L;
+
+	/** The most keys counted. */
+	protected int m_capacity = 0;
+
+	/** The counter of each key counted. */
+	protected transient Map<String, Counter> m_counters = null;
+
+	/** The bucket of the least count, or null if nothing is counted. */
+	protected transient Bucket m_least = null;
+
+	/**
+	 * Construct.
+	 *
+	 * @param capacity
+	 *        The most keys to count.
+	 */
+	public TopKSketch(int capacity)
+	{
+		m_capacity = capacity;
+		m_counters = new HashMap<String, Counter>(capacity * 2);
+	}
+
+	/**
+	 * Count a key.
+	 *
+	 * @param key
+	 *        The key.
+	 */
+	public synchronized void add(String key)
+	{
+		if (key == null) return;
+
+		Counter counter = m_counters.get(key);
+		if (counter != null)
+		{
+			increment(counter);
+			return;
+		}
+
+		if (m_counters.size() < m_capacity)
+		{
+			counter = new Counter(key, 0);
+			m_counters.put(key, counter);
+
+			// 1 is the least possible count
+			Bucket ones = m_least;
+			if ((ones == null) || (ones.m_count != 1))
+			{
+				ones = new Bucket(1);
+				ones.m_next = m_least;
+				if (m_least != null) m_least.m_prev = ones;
+				m_least = ones;
+			}
+			ones.add(counter);
+			return;
+		}
+
+		// take over the slot of the least counted key
+		counter = m_least.m_first;
+		m_counters.remove(counter.m_key);
+		counter.m_key = key;
+		counter.m_error = counter.m_bucket.m_count;
+		m_counters.put(key, counter);
+		increment(counter);
+	}
+
+	/**
+	 * Move a counter up to the next count.
+	 */
+	protected void increment(Counter counter)
+	{
+		Bucket bucket = counter.m_bucket;
+		long count = bucket.m_count + 1;
+
+		Bucket target = bucket.m_next;
+		if ((target == null) || (target.m_count != count))
+		{
+			target = new Bucket(count);
+			target.m_prev = bucket;
+			target.m_next = bucket.m_next;
+			if (bucket.m_next != null) bucket.m_next.m_prev = target;
+			bucket.m_next = target;
+		}
+
+		bucket.remove(counter);
+		if (bucket.m_first == null) unlink(bucket);
+		target.add(counter);
+	}
+
+	/**
+	 * Take an empty bucket out of the list.
+	 */
+	protected void unlink(Bucket bucket)
+	{
+		if (bucket.m_prev != null)
+		{
+			bucket.m_prev.m_next = bucket.m_next;
+		}
+		else
+		{
+			m_least = bucket.m_next;
+		}
+		if (bucket.m_next != null) bucket.m_next.m_prev = bucket.m_prev;
+	}
+
+	/**
+	 * Add the counts of another sketch to this one.
+	 *
+	 * @param other
+	 *        The other sketch.
+	 */
+	public void merge(TopKSketch other)
+	{
+		Map<String, long[]> counts = other.copy();
+
+		synchronized (this)
+		{
+			for (Iterator<Counter> i = m_counters.values().iterator(); i.hasNext();)
+			{
+				Counter counter = i.next();
+				long[] count = counts.get(counter.m_key);
+				if (count == null)
+				{
+					counts.put(counter.m_key, new long[] {counter.m_bucket.m_count, counter.m_error});
+				}
+				else
+				{
+					count[0] += counter.m_bucket.m_count;
+					count[1] += counter.m_error;
+				}
+			}
+
+			rebuild(counts);
+		}
+	}
+
+	/**
+	 * Access the most counted keys.
+	 *
+	 * @param max
+	 *        The most keys to return.
+	 * @return A Map of key to count, in order of count, largest first.
+	 */
+	public synchronized Map<String, Long> top(int max)
+	{
+		// walk up from the least, keeping the last max seen
+		List<Counter> counters = new ArrayList<Counter>(m_counters.size());
+		for (Bucket bucket = m_least; bucket != null; bucket = bucket.m_next)
+		{
+			for (Counter counter = bucket.m_first; counter != null; counter = counter.m_next)
+			{
+				counters.add(counter);
+			}
+		}
+
+		Map<String, Long> rv = new LinkedHashMap<String, Long>();
+		for (int i = counters.size() - 1; (i >= 0) && (rv.size() < max); i--)
+		{
+			Counter counter = counters.get(i);
+			rv.put(counter.m_key, new Long(counter.m_bucket.m_count));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * @return A copy of the counts: key to count and error.
+	 */
+	protected synchronized Map<String, long[]> copy()
+	{
+		Map<String, long[]> rv = new HashMap<String, long[]>(m_counters.size() * 2);
+		for (Iterator<Counter> i = m_counters.values().iterator(); i.hasNext();)
+		{
+			Counter counter = i.next();
+			rv.put(counter.m_key, new long[] {counter.m_bucket.m_count, counter.m_error});
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Replace the counters with the capacity largest of some counts.
+	 *
+	 * @param counts
+	 *        The counts: key to count and error.
+	 */
+	protected void rebuild(Map<String, long[]> counts)
+	{
+		List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>()
+		{
+			public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b)
+			{
+				long diff = a.getValue()[0] - b.getValue()[0];
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+
+		m_counters = new HashMap<String, Counter>(m_capacity * 2);
+		m_least = null;
+		Bucket last = null;
+		for (int i = Math.max(0, entries.size() - m_capacity); i < entries.size(); i++)
+		{
+			Map.Entry<String, long[]> entry = entries.get(i);
+			long count = entry.getValue()[0];
+			if ((last == null) || (last.m_count != count))
+			{
+				Bucket bucket = new Bucket(count);
+				bucket.m_prev = last;
+				if (last != null)
+				{
+					last.m_next = bucket;
+				}
+				else
+				{
+					m_least = bucket;
+				}
+				last = bucket;
+			}
+
+			Counter counter = new Counter(entry.getKey(), entry.getValue()[1]);
+			m_counters.put(counter.m_key, counter);
+			last.add(counter);
+		}
+	}
+
+	/**
+	 * Write the counts, not the buckets.
+	 */
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException
+	{
+		out.defaultWriteObject();
+		out.writeObject(copy());
+	}
+
+	/**
+	 * Read the counts and rebuild the buckets.
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		rebuild((Map<String, long[]>) in.readObject());
+	}
+
+	/**
+	 * Counter counts one key.
+	 */
+	protected static class Counter
+	{
+		/** The key. */
+		protected String m_key;
+
+		/** How much the count may be over. */
+		protected long m_error;
+
+		/** The bucket of the key's count. */
+		protected Bucket m_bucket = null;
+
+		/** The neighbours in the bucket. */
+		protected Counter m_prev = null;
+
+		protected Counter m_next = null;
+
+		public Counter(String key, long error)
+		{
+			m_key = key;
+			m_error = error;
+		}
+	}
+
+	/**
+	 * Bucket holds the counters of one count.
+	 */
+	protected static class Bucket
+	{
+		/** The count. */
+		protected final long m_count;
+
+		/** The first of the counters with this count. */
+		protected Counter m_first = null;
+
+		/** The buckets of the next lower and higher counts in use. */
+		protected Bucket m_prev = null;
+
+		protected Bucket m_next = null;
+
+		public Bucket(long count)
+		{
+			m_count = count;
+		}
+
+		protected void add(Counter counter)
+		{
+			counter.m_bucket = this;
+			counter.m_prev = null;
+			counter.m_next = m_first;
+			if (m_first != null) m_first.m_prev = counter;
+			m_first = counter;
+		}
+
+		protected void remove(Counter counter)
+		{
+			if (counter.m_prev != null)
+			{
+				counter.m_prev.m_next = counter.m_next;
+			}
+			else
+			{
+				m_first = counter.m_next;
+			}
+			if (counter.m_next != null) counter.m_next.m_prev = counter.m_prev;
+			counter.m_prev = null;
+			counter.m_next = null;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sakaiproject.event.api.UsageSession;
+
+/**
+ * <p>
+ * UsageSessionCache holds the usage sessions read from the db, by id, so the tools that look sessions up row by row do not each cost a query.
+ * </p>
+ * <p>
+ * The cache is bounded: it holds at most a fixed number of sessions, dropping the least recently used, and each session for at most a fixed time. It
+ * is split into segments by session id, each an LRU map with its own lock, so the threads looking up sessions seldom wait on each other.
+ * </p>
+ */
+public class UsageSessionCache implements UsageSessionCacheMBean
+{
+	/** The number of segments. */
+	protected static final int SEGMENTS = 16;
+
+	/** The segments. */
+	protected Segment[] m_segments = new Segment[SEGMENTS];
+
+	/** The most sessions held. */
+	protected int m_maxSize = 0;
+
+	/** How long (ms) a session is held. */
+	protected long m_ttl = 0;
+
+	/** The count of lookups that found the session. */
+	protected AtomicLong m_hits = new AtomicLong();
+
+	/** The count of lookups that did not. */
+	protected AtomicLong m_misses = new AtomicLong();
+
+	/**
+	 * Construct.
+	 *
+	 * @param maxSize
+	 *        The most sessions to hold.
+	 * @param ttl
+	 *        How long (ms) to hold each session.
+	 */
+	public UsageSessionCache(int maxSize, long ttl)
+	{
+		m_maxSize = maxSize;
+		m_ttl = ttl;
+
+		int segmentSize = Math.max(1, (maxSize + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++)
+		{
+			m_segments[i] = new Segment(segmentSize);
+		}
+	}
+
+	/**
+	 * Find a session.
+	 *
+	 * @param id
+	 *        The session id.
+	 * @return The session, or null if it is not held (or has been held too long).
+	 */
+	public UsageSession get(String id)
+	{
+		if (id == null) return null;
+
+		Segment segment = segment(id);
+		Cached entry = null;
+		synchronized (segment)
+		{
+			entry = segment.get(id);
+			if ((entry != null) && (entry.m_expires < System.currentTimeMillis()))
+			{
+				segment.remove(id);
+				entry = null;
+			}
+		}
+
+		if (entry == null)
+		{
+			m_misses.incrementAndGet();
+			return null;
+		}
+
+		m_hits.incrementAndGet();
+		return entry.m_session;
+	}
+
+	/**
+	 * Hold a session.
+	 *
+	 * @param session
+	 *        The session.
+	 */
+	public void put(UsageSession session)
+	{
+		if ((session == null) || (session.getId() == null)) return;
+
+		Segment segment = segment(session.getId());
+		Cached entry = new Cached(session, System.currentTimeMillis() + m_ttl);
+		synchronized (segment)
+		{
+			segment.put(session.getId(), entry);
+		}
+	}
+
+	/**
+	 * Drop a session, if held.
+	 *
+	 * @param id
+	 *        The session id.
+	 */
+	public void remove(String id)
+	{
+		if (id == null) return;
+
+		Segment segment = segment(id);
+		synchronized (segment)
+		{
+			segment.remove(id);
+		}
+	}
+
+	/**
+	 * Drop all the sessions.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < SEGMENTS; i++)
+		{
+			synchronized (m_segments[i])
+			{
+				m_segments[i].clear();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getSize()
+	{
+		int rv = 0;
+		for (int i = 0; i < SEGMENTS; i++)
+		{
+			synchronized (m_segments[i])
+			{
+				rv += m_segments[i].size();
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxSize()
+	{
+		return m_maxSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getHits()
+	{
+		return m_hits.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getMisses()
+	{
+		return m_misses.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public double getHitRate()
+	{
+		long hits = m_hits.get();
+		long total = hits + m_misses.get();
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * @return The segment for a session id.
+	 */
+	protected Segment segment(String id)
+	{
+		int hash = id.hashCode();
+		hash ^= (hash >>> 16);
+		return m_segments[hash & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Cached holds a session and when it expires.
+	 */
+	protected static class Cached
+	{
+		protected final UsageSession m_session;
+
+		protected final long m_expires;
+
+		public Cached(UsageSession session, long expires)
+		{
+			m_session = session;
+			m_expires = expires;
+		}
+	}
+
+	/**
+	 * Segment is an LRU map of some of the sessions.
+	 */
+	protected static class Segment extends LinkedHashMap<String, Cached>
+	{
+		private static final long serialVersionUID = 1L;
+
+		/** The most sessions held in the segment. */
+		protected int m_max = 0;
+
+		public Segment(int max)
+		{
+			super(16, 0.75f, true);
+			m_max = max;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest)
+		{
+			return size() > m_max;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2008 The Sakai Foundation.
+ *
+ * Licensed under the Educational Community License, Version 1.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.opensource.org/licenses/ecl1.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+/**
+ * <p>
+ * UsageSessionCacheMBean is the JMX management interface for the usage session cache.
+ * </p>
+ */
+public interface UsageSessionCacheMBean
+{
+	/**
+	 * @return The number of sessions held.
+	 */
+	int getSize();
+
+	/**
+	 * @return The most sessions held.
+	 */
+	int getMaxSize();
+
+	/**
+	 * @return The count of lookups that found the session.
+	 */
+	long getHits();
+
+	/**
+	 * @return The count of lookups that did not find the session.
+	 */
+	long getMisses();
+
+	/**
+	 * @return The fraction of lookups that found the session (0 - 1).
+	 */
+	double getHitRate();
+}
@@ -21,17 +21,31 @@
 
 package org.sakaiproject.event.impl;
 
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.Callable;
 
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.logging.Log;
@@ -40,7 +54,10 @@ import org.sakaiproject.authz.api.AuthzGroupService;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.db.api.SqlReader;
 import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventFilter;
 import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.event.api.FilteredObserver;
 import org.sakaiproject.event.api.SessionState;
 import org.sakaiproject.event.api.SessionStateBindingListener;
 import org.sakaiproject.event.api.UsageSession;
@@ -160,6 +177,125 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		this.keepSessionDuration = keepSessionDuration;
 	}
 
+	/** How many old sessions to look at, and delete, in each cleanup transaction. */
+	protected int m_cleanupChunkSize = 1000;
+
+	/**
+	 * Configuration: set the number of old sessions to look at, and delete, in each cleanup transaction.
+	 * 
+	 * @param value
+	 *        The cleanup chunk size.
+	 */
+	public void setCleanupChunkSize(String value)
+	{
+		try
+		{
+			m_cleanupChunkSize = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** How long (ms) to pause between cleanup transactions, to let the session writes at login through. */
+	protected long m_cleanupChunkPause = 100L;
+
+	/**
+	 * Configuration: set the # ms to pause between cleanup transactions.
+	 * 
+	 * @param value
+	 *        The cleanup pause, in ms.
+	 */
+	public void setCleanupChunkPause(String value)
+	{
+		try
+		{
+			m_cleanupChunkPause = Long.parseLong(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** The most user ids to bind in one query. */
+	protected static final int MAX_USERS_PER_QUERY = 500;
+
+	/** The most sessions to cache, 0 to not cache them. */
+	protected int m_sessionCacheSize = 10000;
+
+	/**
+	 * Configuration: set the most sessions read from the db to cache, 0 to not cache them.
+	 * 
+	 * @param value
+	 *        The session cache size.
+	 */
+	public void setSessionCacheSize(String value)
+	{
+		try
+		{
+			m_sessionCacheSize = Integer.parseInt(value);
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** How long (ms) to cache a session. */
+	protected long m_sessionCacheTtl = 5L * 60L * 1000L;
+
+	/**
+	 * Configuration: set the # seconds to cache a session for.
+	 * 
+	 * @param value
+	 *        The session cache time to live, in seconds.
+	 */
+	public void setSessionCacheTtl(String value)
+	{
+		try
+		{
+			m_sessionCacheTtl = Long.parseLong(value) * 1000L;
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** How long (ms) between reconciling the view of the open sessions with the db, 0 to not keep the view. */
+	protected long m_openSessionsRefresh = 5L * 60L * 1000L;
+
+	/**
+	 * Configuration: set the # seconds between reconciling the view of the open sessions with the db, 0 to read the open sessions from the db each
+	 * time.
+	 * 
+	 * @param value
+	 *        The open sessions refresh, in seconds.
+	 */
+	public void setOpenSessionsRefresh(String value)
+	{
+		try
+		{
+			m_openSessionsRefresh = Long.parseLong(value) * 1000L;
+		}
+		catch (Exception any)
+		{
+		}
+	}
+
+	/** The size of the pages in which readOpenSessions() reads the open sessions. */
+	protected static final int OPEN_SESSIONS_PAGE = 1000;
+
+	/** The view of the open sessions, or null if we are not keeping one. */
+	protected OpenSessionView m_openSessions = null;
+
+	/** The name the session cache is registered with JMX under. */
+	protected static final String SESSION_CACHE_MBEAN = "org.sakaiproject.event:type=UsageSessionCache";
+
+	/** The cache of sessions read from the db, or null if we are not caching them. */
+	protected UsageSessionCache m_sessionCache = null;
+
+	/** The observer of login and logout events, which keeps the session cache and the open sessions view current. */
+	protected SessionEventObserver m_sessionEventObserver = null;
+
 	/** contains a map of the database dependent handlers. */
 	protected Map<String, UsageSessionServiceSql> databaseBeans;
 
@@ -203,7 +339,31 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 			// open storage
 			m_storage.open();
 
-			M_log.info("init()");
+			if (m_sessionCacheSize > 0)
+			{
+				m_sessionCache = new UsageSessionCache(m_sessionCacheSize, m_sessionCacheTtl);
+				try
+				{
+					ManagementFactory.getPlatformMBeanServer().registerMBean(m_sessionCache, new ObjectName(SESSION_CACHE_MBEAN));
+				}
+				catch (Exception e)
+				{
+					M_log.warn("init(): registering session cache with JMX: " + e);
+				}
+			}
+
+			if (m_openSessionsRefresh > 0)
+			{
+				m_openSessions = new OpenSessionView();
+			}
+
+			if ((m_sessionCache != null) || (m_openSessions != null))
+			{
+				m_sessionEventObserver = new SessionEventObserver();
+				eventTrackingService().addObserver(m_sessionEventObserver);
+			}
+
+			M_log.info("init() - session cache: " + m_sessionCacheSize + " open sessions refresh (ms): " + m_openSessionsRefresh);
 		}
 		catch (Throwable t)
 		{
@@ -217,6 +377,26 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 	 */
 	public void destroy()
 	{
+		if (m_sessionEventObserver != null)
+		{
+			eventTrackingService().deleteObserver(m_sessionEventObserver);
+			m_sessionEventObserver = null;
+		}
+		m_openSessions = null;
+
+		if (m_sessionCache != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(SESSION_CACHE_MBEAN));
+			}
+			catch (Exception e)
+			{
+				M_log.warn("destroy(): unregistering session cache with JMX: " + e);
+			}
+			m_sessionCache = null;
+		}
+
 		m_storage.close();
 
 		M_log.info("destroy()");
@@ -257,6 +437,10 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 			// store
 			if (m_storage.addSession(session))
 			{
+				if (m_sessionCache != null) m_sessionCache.put(session);
+				OpenSessionView open = m_openSessions;
+				if (open != null) open.opened(session);
+
 				// set as the current session
 				s.setAttribute(USAGE_SESSION_KEY, session);
 
@@ -371,17 +555,80 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 	 */
 	public UsageSession getSession(String id)
 	{
-		UsageSession rv = m_storage.getSession(id);
+		UsageSessionCache cache = m_sessionCache;
+		UsageSession rv = (cache == null) ? null : cache.get(id);
+		if (rv != null) return rv;
+
+		rv = m_storage.getSession(id);
+		if ((cache != null) && (rv != null)) cache.put(rv);
 
 		return rv;
 	}
 
+	/**
+	 * @return The count of session lookups found in the cache.
+	 */
+	public long getSessionCacheHits()
+	{
+		UsageSessionCache cache = m_sessionCache;
+		return (cache == null) ? 0 : cache.getHits();
+	}
+
+	/**
+	 * @return The count of session lookups not found in the cache.
+	 */
+	public long getSessionCacheMisses()
+	{
+		UsageSessionCache cache = m_sessionCache;
+		return (cache == null) ? 0 : cache.getMisses();
+	}
+
+	/**
+	 * @return The number of sessions in the cache.
+	 */
+	public int getSessionCacheSize()
+	{
+		UsageSessionCache cache = m_sessionCache;
+		return (cache == null) ? 0 : cache.getSize();
+	}
+
 	/**
 	 * @inheritDoc
 	 */
 	public List getSessions(List ids)
 	{
-		List rv = m_storage.getSessions(ids);
+		// take what we can from the cache, and read the rest
+		UsageSessionCache cache = m_sessionCache;
+		Map found = new HashMap();
+		List missing = new ArrayList();
+		for (Iterator i = ids.iterator(); i.hasNext();)
+		{
+			String id = (String) i.next();
+			if ((id == null) || found.containsKey(id)) continue;
+
+			UsageSession s = (cache == null) ? null : cache.get(id);
+			found.put(id, s);
+			if (s == null) missing.add(id);
+		}
+
+		if (!missing.isEmpty())
+		{
+			List sessions = m_storage.getSessions(missing);
+			for (Iterator i = sessions.iterator(); i.hasNext();)
+			{
+				UsageSession s = (UsageSession) i.next();
+				found.put(s.getId(), s);
+				if (cache != null) cache.put(s);
+			}
+		}
+
+		// in the order asked for
+		List rv = new Vector();
+		for (Iterator i = ids.iterator(); i.hasNext();)
+		{
+			UsageSession s = (UsageSession) found.get(i.next());
+			if (s != null) rv.add(s);
+		}
 
 		return rv;
 	}
@@ -417,6 +664,9 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 	 */
 	public List getOpenSessions()
 	{
+		OpenSessionView open = m_openSessions;
+		if (open != null) return open.getSnapshot().m_sessions;
+
 		return m_storage.getOpenSessions();
 	}
 
@@ -425,6 +675,9 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 	 */
 	public Map getOpenSessionsByServer()
 	{
+		OpenSessionView open = m_openSessions;
+		if (open != null) return open.getSnapshot().m_byServer;
+
 		List all = m_storage.getOpenSessions();
 
 		Map byServer = new TreeMap();
@@ -450,6 +703,72 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		return byServer;
 	}
 
+	/**
+	 * @inheritDoc
+	 */
+	public List getOpenSessions(UsageSession after, int max)
+	{
+		if (max <= 0) return new ArrayList();
+
+		OpenSessionView open = m_openSessions;
+		if (open == null) return m_storage.getOpenSessions(after, max);
+
+		// the snapshot is in the same order: take the page from it
+		List all = open.getSnapshot().m_sessions;
+		int from = 0;
+		if (after != null)
+		{
+			from = Collections.binarySearch(all, after, SERVER_START_ORDER);
+			from = (from >= 0) ? from + 1 : -(from + 1);
+		}
+
+		return all.subList(from, Math.min(from + max, all.size()));
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public void readOpenSessions(Observer observer)
+	{
+		UsageSession after = null;
+		while (true)
+		{
+			List page = getOpenSessions(after, OPEN_SESSIONS_PAGE);
+			for (Iterator i = page.iterator(); i.hasNext();)
+			{
+				after = (UsageSession) i.next();
+				observer.update(null, after);
+			}
+
+			if (page.size() < OPEN_SESSIONS_PAGE) break;
+		}
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public Map<String, Integer> getOpenSessionCountsByServer()
+	{
+		OpenSessionView open = m_openSessions;
+		if (open != null) return open.getCounts();
+
+		return m_storage.getOpenSessionCounts();
+	}
+
+	/**
+	 * @inheritDoc
+	 */
+	public int getOpenSessionCount()
+	{
+		int rv = 0;
+		for (Integer count : getOpenSessionCountsByServer().values())
+		{
+			rv += count.intValue();
+		}
+
+		return rv;
+	}
+
 	/**
 	 * @inheritDoc
 	 */
@@ -506,6 +825,346 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		}
 	}
 
+	/**
+	 * SessionEventObserver follows the sessions that log in and out, here or on other servers: those that log out are dropped from the session cache,
+	 * and the open sessions view is told of both.
+	 */
+	protected class SessionEventObserver implements FilteredObserver
+	{
+		/** We only need the login and logout events. */
+		protected EventFilter m_filter = new EventFilter(new String[] {EVENT_LOGIN, EVENT_LOGOUT}, null, false);
+
+		public EventFilter getEventFilter()
+		{
+			return m_filter;
+		}
+
+		public void update(Observable o, Object arg)
+		{
+			if (!(arg instanceof Event)) return;
+			Event event = (Event) arg;
+
+			OpenSessionView open = m_openSessions;
+			if (EVENT_LOGOUT.equals(event.getEvent()))
+			{
+				UsageSessionCache cache = m_sessionCache;
+				if (cache != null) cache.remove(event.getSessionId());
+				if (open != null) open.closed(event.getSessionId());
+			}
+			else if (EVENT_LOGIN.equals(event.getEvent()))
+			{
+				if (open != null) open.opened(event.getSessionId());
+			}
+		}
+	}
+
+	/**
+	 * OpenSessionSnapshot is the open sessions at some moment, in the forms getOpenSessions() and getOpenSessionsByServer() return. It is not changed
+	 * once made, so it may be handed to any number of callers.
+	 */
+	protected static class OpenSessionSnapshot
+	{
+		/** The open sessions, ordered by server, then by start. */
+		protected final List m_sessions;
+
+		/** The open sessions by server id, each a List ordered by start. */
+		protected final Map m_byServer;
+
+		public OpenSessionSnapshot(Collection sessions)
+		{
+			List all = new ArrayList(sessions);
+			Collections.sort(all, SERVER_START_ORDER);
+
+			Map byServer = new TreeMap();
+			List current = null;
+			String key = null;
+			for (Iterator i = all.iterator(); i.hasNext();)
+			{
+				UsageSession s = (UsageSession) i.next();
+				if ((current == null) || (key == null ? s.getServer() != null : !key.equals(s.getServer())))
+				{
+					if (current != null) byServer.put(key, Collections.unmodifiableList(current));
+					key = s.getServer();
+					current = new ArrayList();
+				}
+				current.add(s);
+			}
+			if (current != null) byServer.put(key, Collections.unmodifiableList(current));
+
+			m_sessions = Collections.unmodifiableList(all);
+			m_byServer = Collections.unmodifiableMap(byServer);
+		}
+	}
+
+	/** Orders sessions by server, then by start, then by id, as the open sessions are read from the db. */
+	protected static final Comparator SERVER_START_ORDER = new Comparator()
+	{
+		public int compare(Object o1, Object o2)
+		{
+			UsageSession s1 = (UsageSession) o1;
+			UsageSession s2 = (UsageSession) o2;
+
+			String server1 = (s1.getServer() == null) ? "" : s1.getServer();
+			String server2 = (s2.getServer() == null) ? "" : s2.getServer();
+			int rv = server1.compareTo(server2);
+			if (rv != 0) return rv;
+
+			long start1 = startMillis(s1);
+			long start2 = startMillis(s2);
+			if (start1 != start2) return (start1 < start2) ? -1 : 1;
+
+			String id1 = (s1.getId() == null) ? "" : s1.getId();
+			String id2 = (s2.getId() == null) ? "" : s2.getId();
+			return id1.compareTo(id2);
+		}
+	};
+
+	/**
+	 * @return The start of a session (ms), without making a Time for our own sessions.
+	 */
+	protected static long startMillis(UsageSession session)
+	{
+		if (session instanceof BaseUsageSession) return ((BaseUsageSession) session).m_start;
+
+		return (session.getStart() == null) ? 0 : session.getStart().getTime();
+	}
+
+	/**
+	 * <p>
+	 * OpenSessionView keeps the open sessions in memory, so getOpenSessions() need not read them all from the db each time.
+	 * </p>
+	 * <p>
+	 * Sessions started here are added as they start, and sessions closed here or logged out anywhere are removed as that happens. Sessions logged in
+	 * on other servers are known only by id from their login events; they are read, in one batch, when the open sessions are next asked for. The whole
+	 * view is reloaded from the db when it is older than the refresh period, to pick up anything the events missed (such as the sessions of a server
+	 * that stopped).
+	 * </p>
+	 */
+	protected class OpenSessionView
+	{
+		/** The open sessions, by id. */
+		protected Map m_open = new HashMap();
+
+		/** The ids of the sessions opened elsewhere that have not yet been read. */
+		protected Set m_unread = new HashSet();
+
+		/** The sessions opened while the view is being reloaded, or null if it is not. */
+		protected Map m_openedInLoad = null;
+
+		/** The ids of the sessions closed while the view is being reloaded, or null if it is not. */
+		protected Set m_closedInLoad = null;
+
+		/** When the view was last reloaded, 0 if it never has been. */
+		protected long m_loaded = 0;
+
+		/** The current snapshot, or null if the view has changed since the last one was made. */
+		protected volatile OpenSessionSnapshot m_snapshot = null;
+
+		/** The current counts of sessions by server, or null if the view has changed since they were made. */
+		protected volatile Map<String, Integer> m_counts = null;
+
+		/** Held while reloading, so only one thread reloads at a time. */
+		protected Object m_loadLock = new Object();
+
+		/**
+		 * Access the open sessions, bringing the view up to date first if needed.
+		 * 
+		 * @return The current snapshot of the open sessions.
+		 */
+		public OpenSessionSnapshot getSnapshot()
+		{
+			OpenSessionSnapshot rv = m_snapshot;
+			if ((rv != null) && !isStale()) return rv;
+
+			update();
+
+			synchronized (this)
+			{
+				if (m_snapshot == null)
+				{
+					m_snapshot = new OpenSessionSnapshot(m_open.values());
+				}
+				return m_snapshot;
+			}
+		}
+
+		/**
+		 * Count the open sessions by server, bringing the view up to date first if needed.
+		 * 
+		 * @return The current counts: a Map (server id -> Integer), ordered by server, that may not be changed.
+		 */
+		public Map<String, Integer> getCounts()
+		{
+			Map<String, Integer> rv = m_counts;
+			if ((rv != null) && !isStale()) return rv;
+
+			update();
+
+			synchronized (this)
+			{
+				if (m_counts == null)
+				{
+					Map<String, Integer> counts = new TreeMap<String, Integer>();
+					for (Iterator i = m_open.values().iterator(); i.hasNext();)
+					{
+						String server = ((UsageSession) i.next()).getServer();
+						if (server == null) continue;
+
+						Integer count = counts.get(server);
+						counts.put(server, new Integer((count == null) ? 1 : count.intValue() + 1));
+					}
+					m_counts = Collections.unmodifiableMap(counts);
+				}
+				return m_counts;
+			}
+		}
+
+		/**
+		 * Bring the view up to date: reload it if it is due, and read the sessions opened elsewhere.
+		 */
+		protected void update()
+		{
+			if (isStale()) reload();
+			readUnread();
+		}
+
+		/**
+		 * Note that the view has changed, so the snapshot and counts must be made again.
+		 */
+		protected void changed()
+		{
+			m_snapshot = null;
+			m_counts = null;
+		}
+
+		/**
+		 * A session was started here.
+		 * 
+		 * @param session
+		 *        The session.
+		 */
+		public synchronized void opened(UsageSession session)
+		{
+			m_open.put(session.getId(), session);
+			m_unread.remove(session.getId());
+			if (m_openedInLoad != null) m_openedInLoad.put(session.getId(), session);
+			changed();
+		}
+
+		/**
+		 * A session logged in, here or elsewhere.
+		 * 
+		 * @param id
+		 *        The session id.
+		 */
+		public synchronized void opened(String id)
+		{
+			if ((id == null) || m_open.containsKey(id)) return;
+
+			m_unread.add(id);
+			changed();
+		}
+
+		/**
+		 * A session closed or logged out, here or elsewhere.
+		 * 
+		 * @param id
+		 *        The session id.
+		 */
+		public synchronized void closed(String id)
+		{
+			if (id == null) return;
+
+			boolean removed = (m_open.remove(id) != null);
+			removed |= m_unread.remove(id);
+			if (m_closedInLoad != null)
+			{
+				m_closedInLoad.add(id);
+				m_openedInLoad.remove(id);
+			}
+			if (removed) changed();
+		}
+
+		/**
+		 * @return true if the view is due to be reloaded from the db.
+		 */
+		protected synchronized boolean isStale()
+		{
+			return (m_loaded == 0) || (System.currentTimeMillis() - m_loaded >= m_openSessionsRefresh);
+		}
+
+		/**
+		 * Reload the view from the db, keeping the changes seen while reading.
+		 */
+		protected void reload()
+		{
+			synchronized (m_loadLock)
+			{
+				// another thread may have just done it
+				if (!isStale()) return;
+
+				synchronized (this)
+				{
+					m_openedInLoad = new HashMap();
+					m_closedInLoad = new HashSet();
+				}
+
+				List all = m_storage.getOpenSessions();
+
+				synchronized (this)
+				{
+					Map open = new HashMap();
+					for (Iterator i = all.iterator(); i.hasNext();)
+					{
+						UsageSession s = (UsageSession) i.next();
+						if (!m_closedInLoad.contains(s.getId())) open.put(s.getId(), s);
+					}
+					open.putAll(m_openedInLoad);
+					m_unread.removeAll(open.keySet());
+
+					m_open = open;
+					m_openedInLoad = null;
+					m_closedInLoad = null;
+					m_loaded = System.currentTimeMillis();
+					changed();
+				}
+			}
+		}
+
+		/**
+		 * Read the sessions opened elsewhere that we know only by id.
+		 */
+		protected void readUnread()
+		{
+			List ids = null;
+			synchronized (this)
+			{
+				if (m_unread.isEmpty()) return;
+				ids = new ArrayList(m_unread);
+			}
+
+			List sessions = getSessions(ids);
+
+			synchronized (this)
+			{
+				for (Iterator i = sessions.iterator(); i.hasNext();)
+				{
+					UsageSession s = (UsageSession) i.next();
+
+					// skip those that closed while we were reading
+					if (!m_unread.contains(s.getId()) || s.isClosed()) continue;
+
+					m_open.put(s.getId(), s);
+					if (m_openedInLoad != null) m_openedInLoad.put(s.getId(), s);
+				}
+
+				// those not found are not open
+				m_unread.removeAll(ids);
+				changed();
+			}
+		}
+	}
+
 	/*************************************************************************************************************************************************
 	 * Storage
 	 ************************************************************************************************************************************************/
@@ -580,6 +1239,24 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		 * @return a List (UsageSession) of all open sessions, ordered by server, then by start (asc)
 		 */
 		List getOpenSessions();
+
+		/**
+		 * Access a page of the open sessions.
+		 * 
+		 * @param after
+		 *        The last session of the previous page, or null for the first page.
+		 * @param max
+		 *        The most sessions to return.
+		 * @return a List (UsageSession) of up to max of the open sessions that follow after, ordered by server, then by start (asc), then by id.
+		 */
+		List getOpenSessions(UsageSession after, int max);
+
+		/**
+		 * Count the open sessions on each server.
+		 * 
+		 * @return a Map (server id -> Integer) of the number of open sessions on each server that has any, ordered by server.
+		 */
+		Map<String, Integer> getOpenSessionCounts();
 	}
 
 	/*************************************************************************************************************************************************
@@ -606,11 +1283,11 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		/** The BrowserID string describing the browser used in this session. */
 		protected String m_browserId = null;
 
-		/** The time the session was started */
-		protected Time m_start = null;
+		/** The time (ms) the session was started - held as ms, not a Time, as many sessions may be held while few have their times asked for. */
+		protected long m_start = 0;
 
-		/** The time the session was closed. */
-		protected Time m_end = null;
+		/** The time (ms) the session was closed. */
+		protected long m_end = 0;
 
 		/** Flag for active session */
 		protected boolean m_active = false;
@@ -633,8 +1310,8 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 			m_user = result.getString(3);
 			m_ip = result.getString(4);
 			m_userAgent = result.getString(5);
-			m_start = timeService().newTime(result.getTimestamp(6, sqlService().getCal()).getTime());
-			m_end = timeService().newTime(result.getTimestamp(7, sqlService().getCal()).getTime());
+			m_start = result.getTimestamp(6, sqlService().getCal()).getTime();
+			m_end = result.getTimestamp(7, sqlService().getCal()).getTime();
 			Boolean isActive = result.getBoolean(8);
 			m_active = ((isActive != null) && isActive.booleanValue());
 			setBrowserId(m_userAgent);
@@ -661,7 +1338,7 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 			m_user = user;
 			m_ip = address;
 			m_userAgent = agent;
-			m_start = timeService().newTime();
+			m_start = System.currentTimeMillis();
 			m_end = m_start;
 			m_active = true;
 			setBrowserId(agent);
@@ -728,9 +1405,14 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		{
 			if (!isClosed())
 			{
-				m_end = timeService().newTime();
+				m_end = System.currentTimeMillis();
 				m_active = false;
 				m_storage.closeSession(this);
+
+				UsageSessionCache cache = m_sessionCache;
+				if (cache != null) cache.remove(m_id);
+				OpenSessionView open = m_openSessions;
+				if (open != null) open.closed(m_id);
 			}
 		}
 
@@ -826,7 +1508,7 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		 */
 		public Time getStart()
 		{
-			return timeService().newTime(m_start.getTime());
+			return timeService().newTime(m_start);
 		}
 
 		/**
@@ -834,7 +1516,7 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		 */
 		public Time getEnd()
 		{
-			return timeService().newTime(m_end.getTime());
+			return timeService().newTime(m_end);
 		}
 
 		/**
@@ -916,7 +1598,7 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		public String toString()
 		{
 			return "[" + ((m_id == null) ? "" : m_id) + " | " + ((m_server == null) ? "" : m_server) + " | " + ((m_user == null) ? "" : m_user)
-					+ " | " + ((m_ip == null) ? "" : m_ip) + " | " + ((m_userAgent == null) ? "" : m_userAgent) + " | " + m_start.toStringGmtFull()
+					+ " | " + ((m_ip == null) ? "" : m_ip) + " | " + ((m_userAgent == null) ? "" : m_userAgent) + " | " + getStart().toStringGmtFull()
 					+ " ]";
 		}
 	}
@@ -1243,12 +1925,34 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		 */
 		public List getSessions(List ids)
 		{
-			// TODO: do this in a single SQL call! -ggolden
+			// read the sessions a chunk of ids at a time
+			final Map found = new HashMap();
+			int max = usageSessionServiceSql.getMaxSessionIdsPerQuery();
+			for (int i = 0; i < ids.size(); i += max)
+			{
+				List some = ids.subList(i, Math.min(i + max, ids.size()));
+				sqlService().dbRead(usageSessionServiceSql.getSakaiSessionsSql(some.size()), some.toArray(), new SqlReader()
+				{
+					public Object readSqlResultRecord(ResultSet result)
+					{
+						try
+						{
+							UsageSession s = new BaseUsageSession(result);
+							found.put(s.getId(), s);
+						}
+						catch (SQLException ignore)
+						{
+						}
+						return null;
+					}
+				});
+			}
+
+			// in the order asked for
 			List rv = new Vector();
 			for (Iterator i = ids.iterator(); i.hasNext();)
 			{
-				String id = (String) i.next();
-				UsageSession s = getSession(id);
+				UsageSession s = (UsageSession) found.get(i.next());
 				if (s != null)
 				{
 					rv.add(s);
@@ -1348,6 +2052,63 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 
 			return sessions;
 		}
+
+		/**
+		 * @inheritDoc
+		 */
+		public List getOpenSessions(UsageSession after, int max)
+		{
+			String statement = usageSessionServiceSql.getOpenSessionsPageSql(after != null, max);
+			Object[] fields = null;
+			if (after != null)
+			{
+				Time start = after.getStart();
+				fields = new Object[] {after.getServer(), after.getServer(), start, start, after.getId()};
+			}
+
+			List sessions = sqlService().dbRead(statement, fields, new SqlReader()
+			{
+				public Object readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						return new BaseUsageSession(result);
+					}
+					catch (SQLException ignore)
+					{
+						return null;
+					}
+				}
+			});
+
+			return sessions;
+		}
+
+		/**
+		 * @inheritDoc
+		 */
+		public Map<String, Integer> getOpenSessionCounts()
+		{
+			final Map<String, Integer> rv = new TreeMap<String, Integer>();
+			String statement = usageSessionServiceSql.getOpenSessionCountsSql();
+			sqlService().dbRead(statement, null, new SqlReader()
+			{
+				public Object readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						String server = result.getString(1);
+						if (server != null) rv.put(server, new Integer(result.getInt(2)));
+					}
+					catch (SQLException ignore)
+					{
+					}
+					return null;
+				}
+			});
+
+			return rv;
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -1378,15 +2139,260 @@ public abstract class UsageSessionServiceAdaptor implements UsageSessionService
 		return sessions.size();
 	}
 	
+	/**
+	 * Removes the old, closed sessions from the database, except for the last session of each user.<br />
+	 * The sessions are taken a chunk at a time, in session id order, and each chunk is deleted in its own transaction, so the session writes at login are
+	 * not held up for long.
+	 */
 	public void cleanupSessions() {
-		String statement = usageSessionServiceSql.getCleanOldSessionsSql();
+		cleanupSessions(null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void cleanupSessions(Callable<Boolean> pause) {
 		M_log.debug("Cleaning up all old sessions.");
 		
 		final Time deleteBefore = timeService().newTime(System.currentTimeMillis() - keepSessionDuration);
-		if (sqlService().dbWrite(statement, new Object[]{deleteBefore})) {
-			M_log.debug("Sucessfully cleaned up");
-		} else {
-			M_log.warn("Problem cleaning up old sessions.");
+
+		String after = null;
+		long deleted = 0;
+		long kept = 0;
+		int chunks = 0;
+		while (true)
+		{
+			List<Object[]> sessions = readOldSessions(after, deleteBefore);
+			if (sessions.isEmpty()) break;
+			after = (String) sessions.get(sessions.size() - 1)[0];
+
+			// keep each user's latest session
+			Map<String, Long> latest = readLatestSessionStarts(sessions);
+			List<String> ids = new ArrayList<String>(sessions.size());
+			for (Object[] session : sessions)
+			{
+				if ((session[1] != null) && (session[2] != null) && session[2].equals(latest.get(session[1])))
+				{
+					kept++;
+				}
+				else
+				{
+					ids.add((String) session[0]);
+				}
+			}
+
+			int count = deleteSessions(ids);
+			if (count < 0)
+			{
+				M_log.warn("Problem cleaning up old sessions, stopped at session id: " + after + " after removing: " + deleted);
+				return;
+			}
+			deleted += count;
+			chunks++;
+
+			if (sessions.size() < m_cleanupChunkSize) break;
+
+			if (pause != null)
+			{
+				boolean more = false;
+				try
+				{
+					more = pause.call().booleanValue();
+				}
+				catch (Exception e)
+				{
+					M_log.warn("cleanupSessions: pause: " + e);
+				}
+				if (!more)
+				{
+					M_log.warn("cleanupSessions: stopped after removing " + deleted + " sessions, up to session id: " + after);
+					return;
+				}
+			}
+			else if (m_cleanupChunkPause > 0)
+			{
+				try
+				{
+					Thread.sleep(m_cleanupChunkPause);
+				}
+				catch (InterruptedException e)
+				{
+					M_log.warn("cleanupSessions: interrupted after removing " + deleted + " sessions");
+					return;
+				}
+			}
+		}
+
+		M_log.info("cleanupSessions: removed " + deleted + " sessions from before " + deleteBefore.toStringGmtFull() + " in " + chunks
+				+ " chunks, kept the last session of " + kept + " users");
+	}
+
+	/**
+	 * Read the next chunk of old, closed sessions.
+	 * 
+	 * @param after
+	 *        Read the sessions with ids after this one, or from the first if null.
+	 * @param deleteBefore
+	 *        Read the sessions that ended before this time.
+	 * @return A List of the session id, user id and start (Long, in ms) of each session, in session id order.
+	 */
+	protected List<Object[]> readOldSessions(String after, Time deleteBefore)
+	{
+		Object[] fields = (after == null) ? new Object[] {deleteBefore} : new Object[] {after, deleteBefore};
+		List rv = sqlService().dbRead(usageSessionServiceSql.getOldSessionsSql(after != null, m_cleanupChunkSize), fields,
+				new SqlReader()
+				{
+					public Object readSqlResultRecord(ResultSet result)
+					{
+						try
+						{
+							Timestamp start = result.getTimestamp(3, sqlService().getCal());
+							return new Object[] {result.getString(1), result.getString(2), (start == null) ? null : new Long(start.getTime())};
+						}
+						catch (SQLException ignore)
+						{
+							return null;
+						}
+					}
+				});
+
+		return (rv == null) ? new ArrayList<Object[]>() : (List<Object[]>) rv;
+	}
+
+	/**
+	 * Read the latest session start of each of the users of some sessions.
+	 * 
+	 * @param sessions
+	 *        The sessions, as from readOldSessions().
+	 * @return A Map of user id to the start of the user's latest session (Long, in ms).
+	 */
+	protected Map<String, Long> readLatestSessionStarts(List<Object[]> sessions)
+	{
+		final Map<String, Long> rv = new HashMap<String, Long>();
+
+		List<String> users = new ArrayList<String>();
+		for (Object[] session : sessions)
+		{
+			if ((session[1] != null) && !rv.containsKey(session[1]))
+			{
+				rv.put((String) session[1], null);
+				users.add((String) session[1]);
+			}
+		}
+
+		for (int i = 0; i < users.size(); i += MAX_USERS_PER_QUERY)
+		{
+			List<String> some = users.subList(i, Math.min(i + MAX_USERS_PER_QUERY, users.size()));
+			sqlService().dbRead(usageSessionServiceSql.getLatestSessionStartSql(some.size()), some.toArray(), new SqlReader()
+			{
+				public Object readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						Timestamp start = result.getTimestamp(2, sqlService().getCal());
+						if (start != null) rv.put(result.getString(1), new Long(start.getTime()));
+					}
+					catch (SQLException ignore)
+					{
+					}
+					return null;
+				}
+			});
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Delete some sessions, in one transaction.
+	 * 
+	 * @param ids
+	 *        The session ids.
+	 * @return The number of sessions deleted, or -1 if it failed.
+	 */
+	protected int deleteSessions(List<String> ids)
+	{
+		if (ids.isEmpty()) return 0;
+
+		Connection conn = null;
+		boolean wasCommit = true;
+		PreparedStatement stmt = null;
+		try
+		{
+			conn = sqlService().borrowConnection();
+			wasCommit = conn.getAutoCommit();
+			if (wasCommit)
+			{
+				conn.setAutoCommit(false);
+			}
+
+			stmt = conn.prepareStatement(usageSessionServiceSql.getDeleteSessionSql());
+			for (String id : ids)
+			{
+				stmt.setString(1, id);
+				stmt.addBatch();
+			}
+
+			int rv = 0;
+			int[] counts = stmt.executeBatch();
+			for (int i = 0; i < counts.length; i++)
+			{
+				if (counts[i] > 0)
+				{
+					rv += counts[i];
+				}
+				else if (counts[i] == Statement.SUCCESS_NO_INFO)
+				{
+					rv++;
+				}
+			}
+
+			conn.commit();
+			return rv;
+		}
+		catch (Throwable e)
+		{
+			if (conn != null)
+			{
+				try
+				{
+					conn.rollback();
+				}
+				catch (Exception ee)
+				{
+					M_log.warn("deleteSessions, while rolling back: " + ee);
+				}
+			}
+			M_log.warn("deleteSessions: " + e);
+			return -1;
+		}
+		finally
+		{
+			if (stmt != null)
+			{
+				try
+				{
+					stmt.close();
+				}
+				catch (Exception e)
+				{
+				}
+			}
+			if (conn != null)
+			{
+				try
+				{
+					if (conn.getAutoCommit() != wasCommit)
+					{
+						conn.setAutoCommit(wasCommit);
+					}
+				}
+				catch (Exception e)
+				{
+					M_log.warn("deleteSessions, while setting auto commit: " + e);
+				}
+				sqlService().returnConnection(conn);
+			}
 		}
 	}
 }
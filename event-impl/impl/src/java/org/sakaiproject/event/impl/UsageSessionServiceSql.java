@@ -38,11 +38,37 @@ public interface UsageSessionServiceSql
 	 */
 	String getSakaiSessionSql1();
 
+	/**
+	 * @return the SQL statement which retrieves the sakai sessions from the sakai_session table for a number of session ids.
+	 * @param ids
+	 *        The number of session ids to bind.
+	 */
+	String getSakaiSessionsSql(int ids);
+
+	/**
+	 * @return the most session ids to bind to one getSakaiSessionsSql() statement.
+	 */
+	int getMaxSessionIdsPerQuery();
+
 	/**
 	 * returns the sql statement which retrieves all the open sakai sessions from the sakai_session table.
 	 */
 	String getSakaiSessionSql2();
 
+	/**
+	 * @return the SQL statement which counts the open sakai sessions on each server.
+	 */
+	String getOpenSessionCountsSql();
+
+	/**
+	 * @return the SQL statement which retrieves a page of the open sakai sessions, ordered by server, start and id.
+	 * @param after
+	 *        If true, retrieve the sessions after a server, start and id, bound as server, server, start, start, id.
+	 * @param limit
+	 *        The most sessions to retrieve.
+	 */
+	String getOpenSessionsPageSql(boolean after, int limit);
+
 	/**
 	 * returns the sql statement which retrieves all the sakai sessions from the sakai_session table based on a join column and criteria.
 	 */
@@ -62,4 +88,26 @@ public interface UsageSessionServiceSql
 	 * @return the SQL statement which removes all old sessions.
 	 */
 	String getCleanOldSessionsSql();
+
+	/**
+	 * @return the SQL statement which retrieves the id, user and start of the next old sessions, in session id order, binding the session id to
+	 *         start after (if after is set) and the end time to end before.
+	 * @param after
+	 *        If true, retrieve the sessions after a session id; if false, from the first.
+	 * @param limit
+	 *        The most sessions to retrieve.
+	 */
+	String getOldSessionsSql(boolean after, int limit);
+
+	/**
+	 * @return the SQL statement which retrieves the latest session start of each of a number of users.
+	 * @param users
+	 *        The number of user ids to bind.
+	 */
+	String getLatestSessionStartSql(int users);
+
+	/**
+	 * @return the SQL statement which removes a session.
+	 */
+	String getDeleteSessionSql();
 }
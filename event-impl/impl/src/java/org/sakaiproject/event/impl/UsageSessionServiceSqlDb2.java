@@ -26,4 +26,19 @@ package org.sakaiproject.event.impl;
  */
 public class UsageSessionServiceSqlDb2 extends UsageSessionServiceSqlDefault
 {
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOldSessionsSql(boolean after, int limit)
+	{
+		return "select SESSION_ID,SESSION_USER,SESSION_START from SAKAI_SESSION " + oldSessionsWhere(after) + " fetch first " + limit + " rows only";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOpenSessionsPageSql(boolean after, int limit)
+	{
+		return "select " + USAGE_SESSION_COLUMNS + " from SAKAI_SESSION " + openSessionsPageWhere(after) + " fetch first " + limit + " rows only";
+	}
 }
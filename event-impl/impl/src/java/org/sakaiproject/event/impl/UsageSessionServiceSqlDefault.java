@@ -46,6 +46,30 @@ public class UsageSessionServiceSqlDefault implements UsageSessionServiceSql
 		return "select " + USAGE_SESSION_COLUMNS + " from SAKAI_SESSION where SESSION_ID = ?";
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getSakaiSessionsSql(int ids)
+	{
+		StringBuilder sql = new StringBuilder("select " + USAGE_SESSION_COLUMNS + " from SAKAI_SESSION where SESSION_ID in (");
+		for (int i = 0; i < ids; i++)
+		{
+			if (i > 0) sql.append(",");
+			sql.append("?");
+		}
+		sql.append(")");
+
+		return sql.toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxSessionIdsPerQuery()
+	{
+		return 500;
+	}
+
 	/**
 	 * returns the sql statement which retrieves all the open sakai sessions from the sakai_session table.
 	 */
@@ -54,6 +78,32 @@ public class UsageSessionServiceSqlDefault implements UsageSessionServiceSql
 		return "select " + USAGE_SESSION_COLUMNS + " from SAKAI_SESSION where SESSION_ACTIVE=1 ORDER BY SESSION_SERVER ASC, SESSION_START ASC";
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOpenSessionCountsSql()
+	{
+		return "select SESSION_SERVER, COUNT(*) from SAKAI_SESSION where SESSION_ACTIVE=1 group by SESSION_SERVER";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOpenSessionsPageSql(boolean after, int limit)
+	{
+		return "select TOP " + limit + " " + USAGE_SESSION_COLUMNS + " from SAKAI_SESSION " + openSessionsPageWhere(after);
+	}
+
+	/**
+	 * @return The selection and order of a page of open sessions, after a server, start and id if after is set.
+	 */
+	protected String openSessionsPageWhere(boolean after)
+	{
+		return "where SESSION_ACTIVE=1"
+				+ (after ? " and (SESSION_SERVER > ? or (SESSION_SERVER = ? and (SESSION_START > ? or (SESSION_START = ? and SESSION_ID > ?))))" : "")
+				+ " ORDER BY SESSION_SERVER ASC, SESSION_START ASC, SESSION_ID ASC";
+	}
+
 	/**
 	 * returns the sql statement which retrieves all the sakai sessions from the sakai_session table based on a join column and criteria.
 	 */
@@ -91,4 +141,45 @@ public class UsageSessionServiceSqlDefault implements UsageSessionServiceSql
 	public String getCleanOldSessionsSql() {
 		return "delete from SAKAI_SESSION WHERE SESSION_ACTIVE IS NULL AND SESSION_END < ?"; 
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOldSessionsSql(boolean after, int limit)
+	{
+		return "select TOP " + limit + " SESSION_ID,SESSION_USER,SESSION_START from SAKAI_SESSION " + oldSessionsWhere(after);
+	}
+
+	/**
+	 * @return The selection and order of old sessions, after a session id if after is set.
+	 */
+	protected String oldSessionsWhere(boolean after)
+	{
+		// no bound on the first chunk: an empty string bound is null on oracle, and would match nothing
+		return "where " + (after ? "SESSION_ID > ? and " : "") + "SESSION_ACTIVE IS NULL and SESSION_END < ? order by SESSION_ID";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getLatestSessionStartSql(int users)
+	{
+		StringBuilder sql = new StringBuilder("select SESSION_USER, MAX(SESSION_START) from SAKAI_SESSION where SESSION_USER in (");
+		for (int i = 0; i < users; i++)
+		{
+			if (i > 0) sql.append(",");
+			sql.append("?");
+		}
+		sql.append(") group by SESSION_USER");
+
+		return sql.toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getDeleteSessionSql()
+	{
+		return "delete from SAKAI_SESSION where SESSION_ID = ?";
+	}
 }
@@ -26,4 +26,12 @@ package org.sakaiproject.event.impl;
  */
 public class UsageSessionServiceSqlMsSql extends UsageSessionServiceSqlDefault
 {
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxSessionIdsPerQuery()
+	{
+		// sql server allows at most 2100 parameters to a statement
+		return 2000;
+	}
 }
@@ -26,4 +26,28 @@ package org.sakaiproject.event.impl;
  */
 public class UsageSessionServiceSqlOracle extends UsageSessionServiceSqlDefault
 {
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOldSessionsSql(boolean after, int limit)
+	{
+		return "select * from (select SESSION_ID,SESSION_USER,SESSION_START from SAKAI_SESSION " + oldSessionsWhere(after) + ") where ROWNUM <= " + limit;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getOpenSessionsPageSql(boolean after, int limit)
+	{
+		return "select * from (select " + USAGE_SESSION_COLUMNS + " from SAKAI_SESSION " + openSessionsPageWhere(after) + ") where ROWNUM <= " + limit;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getMaxSessionIdsPerQuery()
+	{
+		// oracle allows at most 1000 expressions in an in list
+		return 1000;
+	}
 }
@@ -13,6 +13,11 @@ CREATE TABLE SAKAI_EVENT
 	PRIMARY KEY (EVENT_ID)
 );
 
+CREATE INDEX IE_SAKAI_EVENT_SESSION_ID ON SAKAI_EVENT
+(
+	SESSION_ID
+);
+
 CREATE SEQUENCE SAKAI_EVENT_SEQ;
 
 CREATE TABLE SAKAI_EVENT_ARCHIVE
@@ -24,4 +29,41 @@ CREATE TABLE SAKAI_EVENT_ARCHIVE
 	SESSION_ID VARCHAR (163),
 	EVENT_CODE VARCHAR (1),
 	PRIMARY KEY (EVENT_ID)
-);
\ No newline at end of file
+);
+
+CREATE TABLE SAKAI_EVENT_MAINTENANCE
+(
+	TASK_NAME VARCHAR (64) NOT NULL,
+	SERVER_ID VARCHAR (64),
+	LOCK_UNTIL TIMESTAMP,
+	LAST_RUN TIMESTAMP,
+	PRIMARY KEY (TASK_NAME)
+);
+
+CREATE TABLE SAKAI_EVENT_ROLLUP
+(
+	ROLLUP_HOUR TIMESTAMP NOT NULL,
+	EVENT VARCHAR (32) NOT NULL,
+	CONTEXT VARCHAR (99) NOT NULL,
+	EVENT_CODE VARCHAR (1) NOT NULL,
+	EVENT_COUNT BIGINT NOT NULL,
+	PRIMARY KEY (ROLLUP_HOUR, EVENT, CONTEXT, EVENT_CODE)
+);
+
+CREATE INDEX SAKAI_EVENT_ROLLUP_CONTEXT_IE ON SAKAI_EVENT_ROLLUP
+(
+	CONTEXT,
+	ROLLUP_HOUR
+);
+
+CREATE TABLE SAKAI_EVENT_FUNCTION
+(
+	FUNCTION_ID INTEGER NOT NULL,
+	FUNCTION_NAME VARCHAR (32) NOT NULL,
+	PRIMARY KEY (FUNCTION_ID)
+);
+
+CREATE UNIQUE INDEX SAKAI_EVENT_FUNCTION_NAME ON SAKAI_EVENT_FUNCTION
+(
+	FUNCTION_NAME
+);
@@ -0,0 +1,17 @@
+-- Optional normalized SAKAI_EVENT schema, for normalizedSchema@org.sakaiproject.event.api.EventTrackingService=true
+-- Events store a numeric function id, from the SAKAI_EVENT_FUNCTION dictionary, in EVENT_FUNCTION_ID and leave EVENT null
+-- (an event whose function could not be added to the dictionary keeps the name in EVENT, with a null EVENT_FUNCTION_ID).
+-- Rows written before the change keep their EVENT and are read as before (they are not moved over here).
+
+-- the dictionary (also created by sakai_event.sql)
+CREATE TABLE SAKAI_EVENT_FUNCTION
+(
+	FUNCTION_ID INTEGER NOT NULL,
+	FUNCTION_NAME VARCHAR (32) NOT NULL,
+	PRIMARY KEY (FUNCTION_ID)
+);
+CREATE UNIQUE INDEX SAKAI_EVENT_FUNCTION_NAME ON SAKAI_EVENT_FUNCTION (FUNCTION_NAME);
+
+-- the function id columns (the archive is filled with "select *", so it must match)
+alter table SAKAI_EVENT add column EVENT_FUNCTION_ID INTEGER;
+alter table SAKAI_EVENT_ARCHIVE add column EVENT_FUNCTION_ID INTEGER;
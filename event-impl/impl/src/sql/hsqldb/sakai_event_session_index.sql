@@ -0,0 +1,4 @@
+-- Index SAKAI_EVENT by SESSION_ID, for the session and user timelines (getSessionEvents, getUserEvents)
+-- and the session cleanup. New installs get it from sakai_event.sql; run this on an existing db that lacks it.
+
+CREATE INDEX IE_SAKAI_EVENT_SESSION_ID ON SAKAI_EVENT (SESSION_ID);
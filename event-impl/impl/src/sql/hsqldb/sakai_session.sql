@@ -31,3 +31,9 @@ create index SESSION_ACTIVE_IE on SAKAI_SESSION
 (
 	SESSION_ACTIVE
 );
+
+CREATE INDEX SAKAI_SESSION_USER_IE ON SAKAI_SESSION
+(
+	SESSION_USER,
+	SESSION_START
+);
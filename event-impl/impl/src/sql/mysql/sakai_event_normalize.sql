@@ -0,0 +1,42 @@
+-- Optional normalized SAKAI_EVENT schema, for normalizedSchema@org.sakaiproject.event.api.EventTrackingService=true
+-- Events store a numeric function id, from the SAKAI_EVENT_FUNCTION dictionary, in EVENT_FUNCTION_ID and leave EVENT null
+-- (an event whose function could not be added to the dictionary keeps the name in EVENT, with a null EVENT_FUNCTION_ID).
+-- Run the schema changes before turning the setting on. Rows written before the change keep their EVENT and are read as before;
+-- the last part moves them to function ids, and may be run later, at a quiet time. It commits every 10000 event ids, so it can run
+-- while the servers are up without holding the whole table locked, and can be stopped and run again. Rows whose function is not
+-- in the dictionary (one the servers could not add) keep their EVENT.
+
+-- the dictionary (also created by sakai_event.sql)
+CREATE TABLE SAKAI_EVENT_FUNCTION
+(
+	FUNCTION_ID INT NOT NULL,
+	FUNCTION_NAME VARCHAR (32) NOT NULL,
+	PRIMARY KEY (FUNCTION_ID)
+);
+CREATE UNIQUE INDEX SAKAI_EVENT_FUNCTION_NAME ON SAKAI_EVENT_FUNCTION (FUNCTION_NAME);
+
+-- the function id columns (the archive is filled with "select *", so it must match)
+alter table SAKAI_EVENT add column EVENT_FUNCTION_ID INT;
+alter table SAKAI_EVENT_ARCHIVE add column EVENT_FUNCTION_ID INT;
+
+-- move the existing rows over
+set @n = (select COALESCE(MAX(FUNCTION_ID), 0) from SAKAI_EVENT_FUNCTION);
+insert into SAKAI_EVENT_FUNCTION (FUNCTION_ID, FUNCTION_NAME)
+	select @n := @n + 1, F.EVENT from (select distinct EVENT from SAKAI_EVENT where EVENT is not null
+		and EVENT not in (select FUNCTION_NAME from SAKAI_EVENT_FUNCTION)) F;
+DELIMITER //
+create procedure SAKAI_EVENT_NORMALIZE()
+begin
+	declare V_LOW BIGINT;
+	declare V_HIGH BIGINT;
+	select COALESCE(MIN(EVENT_ID), 0), COALESCE(MAX(EVENT_ID), -1) into V_LOW, V_HIGH from SAKAI_EVENT;
+	while V_LOW <= V_HIGH do
+		update SAKAI_EVENT E join SAKAI_EVENT_FUNCTION F on (E.EVENT = F.FUNCTION_NAME) set E.EVENT_FUNCTION_ID = F.FUNCTION_ID, E.EVENT = null
+			where E.EVENT_ID >= V_LOW and E.EVENT_ID < V_LOW + 10000;
+		commit;
+		set V_LOW = V_LOW + 10000;
+	end while;
+end //
+DELIMITER ;
+call SAKAI_EVENT_NORMALIZE();
+drop procedure SAKAI_EVENT_NORMALIZE;
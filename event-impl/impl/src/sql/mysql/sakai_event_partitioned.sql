@@ -0,0 +1,73 @@
+-----------------------------------------------------------------------------
+-- SAKAI_EVENT, range partitioned by EVENT_DATE
+-- Use with eventTracking partitionRetention, which adds the dated partitions
+-- (split off PMAX) and drops them once all their events are old enough.
+-----------------------------------------------------------------------------
+
+CREATE TABLE SAKAI_EVENT
+(
+	EVENT_ID BIGINT AUTO_INCREMENT,
+	EVENT_DATE DATETIME NOT NULL,
+	EVENT VARCHAR (32),
+	REF VARCHAR (255),
+	SESSION_ID VARCHAR (163),
+	EVENT_CODE VARCHAR (1),
+	PRIMARY KEY (EVENT_ID, EVENT_DATE)
+)
+PARTITION BY RANGE (TO_DAYS(EVENT_DATE))
+(
+	PARTITION PMAX VALUES LESS THAN MAXVALUE
+);
+
+CREATE INDEX IE_SAKAI_EVENT_SESSION_ID ON SAKAI_EVENT 
+(
+	SESSION_ID	ASC
+);
+
+CREATE TABLE SAKAI_EVENT_ARCHIVE
+(
+	EVENT_ID BIGINT,
+	EVENT_DATE DATETIME,
+	EVENT VARCHAR (32),
+	REF VARCHAR (255),
+	SESSION_ID VARCHAR (163),
+	EVENT_CODE VARCHAR (1),
+	PRIMARY KEY (EVENT_ID)
+);
+
+CREATE TABLE SAKAI_EVENT_MAINTENANCE
+(
+	TASK_NAME VARCHAR (64) NOT NULL,
+	SERVER_ID VARCHAR (64),
+	LOCK_UNTIL DATETIME,
+	LAST_RUN DATETIME,
+	PRIMARY KEY (TASK_NAME)
+);
+
+CREATE TABLE SAKAI_EVENT_ROLLUP
+(
+	ROLLUP_HOUR DATETIME NOT NULL,
+	EVENT VARCHAR (32) NOT NULL,
+	CONTEXT VARCHAR (99) NOT NULL,
+	EVENT_CODE VARCHAR (1) NOT NULL,
+	EVENT_COUNT BIGINT NOT NULL,
+	PRIMARY KEY (ROLLUP_HOUR, EVENT, CONTEXT, EVENT_CODE)
+);
+
+CREATE INDEX SAKAI_EVENT_ROLLUP_CONTEXT_IE ON SAKAI_EVENT_ROLLUP
+(
+	CONTEXT,
+	ROLLUP_HOUR
+);
+
+CREATE TABLE SAKAI_EVENT_FUNCTION
+(
+	FUNCTION_ID INT NOT NULL,
+	FUNCTION_NAME VARCHAR (32) NOT NULL,
+	PRIMARY KEY (FUNCTION_ID)
+);
+
+CREATE UNIQUE INDEX SAKAI_EVENT_FUNCTION_NAME ON SAKAI_EVENT_FUNCTION
+(
+	FUNCTION_NAME
+);
@@ -17,6 +17,11 @@ CREATE UNIQUE INDEX SAKAI_EVENT_INDEX ON SAKAI_EVENT
 	EVENT_ID
 );
 
+CREATE INDEX IE_SAKAI_EVENT_SESSION_ID ON SAKAI_EVENT
+(
+	SESSION_ID
+);
+
 CREATE SEQUENCE SAKAI_EVENT_SEQ;
 
 CREATE TABLE SAKAI_EVENT_ARCHIVE
@@ -27,4 +32,41 @@ CREATE TABLE SAKAI_EVENT_ARCHIVE
 	REF VARCHAR2 (255),
 	SESSION_ID VARCHAR2 (163),
 	EVENT_CODE VARCHAR2 (1)
-);
\ No newline at end of file
+);
+
+CREATE TABLE SAKAI_EVENT_MAINTENANCE
+(
+	TASK_NAME VARCHAR2 (64) NOT NULL,
+	SERVER_ID VARCHAR2 (64),
+	LOCK_UNTIL DATE,
+	LAST_RUN DATE,
+	PRIMARY KEY (TASK_NAME)
+);
+
+CREATE TABLE SAKAI_EVENT_ROLLUP
+(
+	ROLLUP_HOUR DATE NOT NULL,
+	EVENT VARCHAR2 (32) NOT NULL,
+	CONTEXT VARCHAR2 (99) NOT NULL,
+	EVENT_CODE VARCHAR2 (1) NOT NULL,
+	EVENT_COUNT NUMBER NOT NULL,
+	PRIMARY KEY (ROLLUP_HOUR, EVENT, CONTEXT, EVENT_CODE)
+);
+
+CREATE INDEX SAKAI_EVENT_ROLLUP_CONTEXT_IE ON SAKAI_EVENT_ROLLUP
+(
+	CONTEXT,
+	ROLLUP_HOUR
+);
+
+CREATE TABLE SAKAI_EVENT_FUNCTION
+(
+	FUNCTION_ID NUMBER NOT NULL,
+	FUNCTION_NAME VARCHAR2 (32) NOT NULL,
+	PRIMARY KEY (FUNCTION_ID)
+);
+
+CREATE UNIQUE INDEX SAKAI_EVENT_FUNCTION_NAME ON SAKAI_EVENT_FUNCTION
+(
+	FUNCTION_NAME
+);
@@ -0,0 +1,9 @@
+-- Index SAKAI_EVENT_ARCHIVE by EVENT_ID, for partition retention with archiveEvents: the partitions are archived a range of event ids at a
+-- time, skipping the events already archived, so an interrupted archive or a failed drop does not archive the same events twice.
+-- New installs from sakai_event_partitioned.sql get it; run this on an existing db before turning partitionRetention on.
+
+-- remove any events a failed drop has already archived twice
+delete from SAKAI_EVENT_ARCHIVE A where A.ROWID > (select MIN(B.ROWID) from SAKAI_EVENT_ARCHIVE B where B.EVENT_ID = A.EVENT_ID);
+commit;
+
+create unique index SAKAI_EVENT_ARCHIVE_INDEX on SAKAI_EVENT_ARCHIVE (EVENT_ID) online;
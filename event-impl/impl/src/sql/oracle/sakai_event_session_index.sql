@@ -0,0 +1,9 @@
+-- Index SAKAI_EVENT by SESSION_ID, for the session and user timelines (getSessionEvents, getUserEvents)
+-- and the session cleanup. New installs get it from sakai_event.sql; run this on an existing db.
+-- ONLINE keeps the table writable while the index is built (Enterprise Edition; drop it otherwise).
+
+-- for a SAKAI_EVENT from sakai_event.sql
+create index IE_SAKAI_EVENT_SESSION_ID on SAKAI_EVENT (SESSION_ID) online;
+
+-- or, for a SAKAI_EVENT from sakai_event_partitioned.sql
+-- create index IE_SAKAI_EVENT_SESSION_ID on SAKAI_EVENT (SESSION_ID) local online;